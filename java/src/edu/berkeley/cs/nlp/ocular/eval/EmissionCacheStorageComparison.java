@@ -0,0 +1,142 @@
+package edu.berkeley.cs.nlp.ocular.eval;
+
+import java.util.List;
+
+import edu.berkeley.cs.nlp.ocular.data.Document;
+import edu.berkeley.cs.nlp.ocular.data.LazyRawImageLoaderResource;
+import edu.berkeley.cs.nlp.ocular.font.FontVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.gsm.GlyphSubstitutionModel;
+import edu.berkeley.cs.nlp.ocular.gsm.NoSubGlyphSubstitutionModel;
+import edu.berkeley.cs.nlp.ocular.lm.CodeSwitchLanguageModel;
+import edu.berkeley.cs.nlp.ocular.main.FonttrainTranscribeSharedResource;
+import edu.berkeley.cs.nlp.ocular.main.FonttrainTranscribeSharedResource.EmissionCacheInnerLoopType;
+import edu.berkeley.cs.nlp.ocular.main.FonttrainTranscribeSharedResource.EmissionCacheStorageType;
+import edu.berkeley.cs.nlp.ocular.main.NoDocumentsFoundException;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.model.DecoderEMVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.model.DecoderEMVarLineHeight.DecodeSettings;
+import edu.berkeley.cs.nlp.ocular.model.em.DenseBigramTransitionModel;
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+import edu.berkeley.cs.nlp.ocular.train.FontTrainerResource;
+import edu.berkeley.cs.nlp.ocular.util.Tuple2;
+import indexer.Indexer;
+
+import org.exist.xquery.ocr.ocular.InitializeFont;
+import org.exist.xquery.ocr.ocular.InitializeLanguageModel;
+
+/**
+ * Transcribe the same documents once with the full-precision emission cache
+ * and once with each reduced-precision cache storage, and report how far the
+ * reduced-precision transcriptions drift from the full-precision ones: the
+ * character edit distance between the two decodes (over the number of
+ * full-precision characters) and the change in average joint log prob.
+ *
+ * Usage: EmissionCacheStorageComparison inputDocPath fontPath lmPath [numDocs [lineHeight]]
+ * e.g. with inputDocPath resources/input-docs/swe and the matching trained
+ * font and language model.
+ */
+public class EmissionCacheStorageComparison {
+
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.out.println("Usage: EmissionCacheStorageComparison inputDocPath fontPath lmPath [numDocs [lineHeight]]");
+			System.exit(1);
+		}
+		String inputDocPath = args[0];
+		String fontPath = args[1];
+		String lmPath = args[2];
+		int numDocs = (args.length > 3 ? Integer.valueOf(args[3]) : Integer.MAX_VALUE);
+		int lineHeight = (args.length > 4 ? Integer.valueOf(args[4]) : CharacterTemplateVarLineHeight.LINE_HEIGHT);
+
+		CodeSwitchLanguageModel lm = InitializeLanguageModel.readCodeSwitchLM(lmPath);
+		FontVarLineHeight font = InitializeFont.readFont(fontPath);
+		Indexer<String> charIndexer = lm.getCharacterIndexer();
+		GlyphSubstitutionModel gsm = new NoSubGlyphSubstitutionModel();
+		CharacterTemplateVarLineHeight[] templates = FontTrainerResource.loadTemplates(font, charIndexer);
+		DenseBigramTransitionModel backwardTransitionModel = new DenseBigramTransitionModel(lm);
+		List<Document> documents = LazyRawImageLoaderResource.loadDocuments(inputDocPath, null, numDocs, 0, lineHeight, 5, 100, lineHeight);
+		if (documents.isEmpty()) throw new NoDocumentsFoundException("No documents found in " + inputDocPath);
+
+		// only the storage changes between runs: no pruning, line-specific exposures or offsets, incremental cache or glyph substitution
+		boolean lazyEmissionCache = false;
+		double incrementalEmissionCacheGb = 0.0;
+		double incrementalEmissionCacheTolerance = 0.0;
+		double emissionPruningMargin = 0.0;
+		int lineExposureCandidates = 0;
+		int lineOffsetRadius = -1;
+		boolean recordEmissionAlignments = false;
+		boolean allowGlyphSubstitution = false;
+		double gsmNoCharSubPrior = 0.9;
+		boolean gsmElideAnything = false;
+		boolean markovVerticalOffset = false;
+		int beamSize = FonttrainTranscribeSharedResource.beamSize;
+		int numDecodeThreads = 1;
+		int numMstepThreads = 1;
+		DecodeSettings decodeSettings = new DecodeSettings();
+		decodeSettings.successorCacheSize = FonttrainTranscribeSharedResource.successorCacheSize;
+		// no retries with a wider beam, so that every storage decodes with the same beam
+		decodeSettings.maxBeamSize = beamSize;
+
+		EmissionCacheStorageType[] storageTypes = EmissionCacheStorageType.values();
+		int[][][][] decodedChars = new int[storageTypes.length][documents.size()][][];
+		double[] totalJointLogProbs = new double[storageTypes.length];
+		for (int s=0; s<storageTypes.length; ++s) {
+			DecoderEMVarLineHeight decoderEM = FonttrainTranscribeSharedResource.makeDecoder(charIndexer, EmissionCacheInnerLoopType.DEFAULT, storageTypes[s], lazyEmissionCache, incrementalEmissionCacheGb, incrementalEmissionCacheTolerance, emissionPruningMargin, lineExposureCandidates, lineOffsetRadius, recordEmissionAlignments, lineHeight, allowGlyphSubstitution, gsmNoCharSubPrior, gsmElideAnything, markovVerticalOffset, beamSize, numDecodeThreads, numMstepThreads, FonttrainTranscribeSharedResource.decodeBatchSize, decodeSettings);
+			for (int docNum=0; docNum<documents.size(); ++docNum) {
+				Tuple2<Tuple2<TransitionState[][], int[][]>, Double> decodeResults = decoderEM.computeEStep(documents.get(docNum), false, lm, gsm, templates, backwardTransitionModel);
+				TransitionState[][] decodeStates = decodeResults._1._1;
+				decodedChars[s][docNum] = new int[decodeStates.length][];
+				for (int line=0; line<decodeStates.length; ++line) {
+					decodedChars[s][docNum][line] = new int[decodeStates[line].length];
+					for (int i=0; i<decodeStates[line].length; ++i) {
+						decodedChars[s][docNum][line][i] = decodeStates[line][i].getGlyphChar().templateCharIndex;
+					}
+				}
+				totalJointLogProbs[s] += decodeResults._2;
+			}
+		}
+
+		int reference = EmissionCacheStorageType.HEAP.ordinal();
+		StringBuilder buf = new StringBuilder();
+		buf.append("Emission cache storage comparison against " + storageTypes[reference] + " on " + documents.size() + " documents from " + inputDocPath + "\n");
+		for (int s=0; s<storageTypes.length; ++s) {
+			long numChars = 0;
+			long numEdits = 0;
+			int numLines = 0;
+			int numIdenticalLines = 0;
+			for (int docNum=0; docNum<documents.size(); ++docNum) {
+				for (int line=0; line<decodedChars[reference][docNum].length; ++line) {
+					int[] expected = decodedChars[reference][docNum][line];
+					int[] actual = decodedChars[s][docNum][line];
+					int edits = editDistance(expected, actual);
+					numChars += expected.length;
+					numEdits += edits;
+					numLines++;
+					if (edits == 0) numIdenticalLines++;
+				}
+			}
+			buf.append(String.format("  %-8s char error vs %s: %.4f%% (%d/%d), identical lines: %d/%d, avg joint log prob delta: %.4f\n",
+					storageTypes[s], storageTypes[reference], 100.0 * numEdits / Math.max(1, numChars), numEdits, numChars, numIdenticalLines, numLines,
+					(totalJointLogProbs[s] - totalJointLogProbs[reference]) / documents.size()));
+		}
+		System.out.println(buf.toString());
+	}
+
+	private static int editDistance(int[] a, int[] b) {
+		int[] prev = new int[b.length+1];
+		int[] curr = new int[b.length+1];
+		for (int j=0; j<=b.length; ++j) prev[j] = j;
+		for (int i=1; i<=a.length; ++i) {
+			curr[0] = i;
+			for (int j=1; j<=b.length; ++j) {
+				int sub = prev[j-1] + (a[i-1] == b[j-1] ? 0 : 1);
+				curr[j] = Math.min(sub, Math.min(prev[j], curr[j-1]) + 1);
+			}
+			int[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+		}
+		return prev[b.length];
+	}
+
+}
@@ -0,0 +1,138 @@
+package edu.berkeley.cs.nlp.ocular.image;
+
+import java.util.Arrays;
+
+import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
+
+/**
+ * A binarized line image packed one bit per pixel. Each column is stored as
+ * wordsPerColumn() consecutive longs in two masks, one for black pixels and
+ * one for white pixels; pixels set in neither mask are obscured. Row j of
+ * column t is bit (j % 64) of word t*wordsPerColumn() + j/64.
+ */
+public class BitPackedLine {
+
+	private final int sequenceLength;
+	private final int lineHeight;
+	private final int wordsPerColumn;
+	private final long[] black;
+	private final long[] white;
+
+	public BitPackedLine(PixelType[][] observations, int lineHeight) {
+		this.sequenceLength = observations.length;
+		this.lineHeight = lineHeight;
+		this.wordsPerColumn = wordsPerColumn(lineHeight);
+		this.black = new long[sequenceLength*wordsPerColumn];
+		this.white = new long[sequenceLength*wordsPerColumn];
+		for (int t=0; t<sequenceLength; ++t) {
+			for (int j=0; j<lineHeight; ++j) {
+				int word = t*wordsPerColumn + (j >>> 6);
+				long bit = 1L << (j & 63);
+				if (observations[t][j] == PixelType.BLACK) {
+					black[word] |= bit;
+				} else if (observations[t][j] == PixelType.WHITE) {
+					white[word] |= bit;
+				}
+			}
+		}
+	}
+
+	public BitPackedLine(float[] whiteObservations, float[] blackObservations, int sequenceLength, int lineHeight) {
+		this.sequenceLength = sequenceLength;
+		this.lineHeight = lineHeight;
+		this.wordsPerColumn = wordsPerColumn(lineHeight);
+		this.black = new long[sequenceLength*wordsPerColumn];
+		this.white = new long[sequenceLength*wordsPerColumn];
+		for (int t=0; t<sequenceLength; ++t) {
+			for (int j=0; j<lineHeight; ++j) {
+				int word = t*wordsPerColumn + (j >>> 6);
+				long bit = 1L << (j & 63);
+				if (blackObservations[t*lineHeight+j] != 0.0f) {
+					black[word] |= bit;
+				} else if (whiteObservations[t*lineHeight+j] != 0.0f) {
+					white[word] |= bit;
+				}
+			}
+		}
+	}
+
+	private BitPackedLine(long[] black, long[] white, int sequenceLength, int lineHeight) {
+		this.sequenceLength = sequenceLength;
+		this.lineHeight = lineHeight;
+		this.wordsPerColumn = wordsPerColumn(lineHeight);
+		this.black = black;
+		this.white = white;
+	}
+
+	/**
+	 * Columns start (inclusive) to end (exclusive) as a line of their own.
+	 */
+	public BitPackedLine columns(int start, int end) {
+		long[] blackColumns = Arrays.copyOfRange(black, start*wordsPerColumn, end*wordsPerColumn);
+		long[] whiteColumns = Arrays.copyOfRange(white, start*wordsPerColumn, end*wordsPerColumn);
+		return new BitPackedLine(blackColumns, whiteColumns, end-start, lineHeight);
+	}
+
+	public static int wordsPerColumn(int lineHeight) {
+		return (lineHeight + 63) >>> 6;
+	}
+
+	public int sequenceLength() {
+		return sequenceLength;
+	}
+
+	public int lineHeight() {
+		return lineHeight;
+	}
+
+	public int wordsPerColumn() {
+		return wordsPerColumn;
+	}
+
+	public long[] blackWords() {
+		return black;
+	}
+
+	public long[] whiteWords() {
+		return white;
+	}
+
+	public boolean isBlack(int t, int j) {
+		return (black[t*wordsPerColumn + (j >>> 6)] & (1L << (j & 63))) != 0L;
+	}
+
+	public boolean isWhite(int t, int j) {
+		return (white[t*wordsPerColumn + (j >>> 6)] & (1L << (j & 63))) != 0L;
+	}
+
+	public int numBlack(int t) {
+		int count = 0;
+		for (int w=0; w<wordsPerColumn; ++w) count += Long.bitCount(black[t*wordsPerColumn + w]);
+		return count;
+	}
+
+	public int numWhite(int t) {
+		int count = 0;
+		for (int w=0; w<wordsPerColumn; ++w) count += Long.bitCount(white[t*wordsPerColumn + w]);
+		return count;
+	}
+
+	/**
+	 * Expand into the dense 0/1 planes used by the float inner loops, laid
+	 * out as t*lineHeight+j. Both arrays must hold sequenceLength*lineHeight
+	 * entries; anything beyond that is left untouched.
+	 */
+	public void unpack(float[] whiteObservations, float[] blackObservations) {
+		for (int t=0; t<sequenceLength; ++t) {
+			for (int j=0; j<lineHeight; ++j) {
+				whiteObservations[t*lineHeight+j] = isWhite(t, j) ? 1.0f : 0.0f;
+				blackObservations[t*lineHeight+j] = isBlack(t, j) ? 1.0f : 0.0f;
+			}
+		}
+	}
+
+	public long numBytes() {
+		return 8L * (black.length + white.length);
+	}
+
+}
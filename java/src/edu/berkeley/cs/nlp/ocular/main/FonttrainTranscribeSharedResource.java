@@ -19,12 +19,28 @@ import edu.berkeley.cs.nlp.ocular.gsm.GlyphSubstitutionModel;
 import edu.berkeley.cs.nlp.ocular.gsm.NoSubGlyphSubstitutionModel;
 import edu.berkeley.cs.nlp.ocular.lm.CodeSwitchLanguageModel;
 import edu.berkeley.cs.nlp.ocular.model.DecoderEMVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.model.DecoderEMVarLineHeight.DecodeSettings;
+import edu.berkeley.cs.nlp.ocular.model.em.BitPackedInnerLoopVarLineHeight;
 import edu.berkeley.cs.nlp.ocular.model.em.CUDAInnerLoopVarLineHeight;
 import edu.berkeley.cs.nlp.ocular.model.em.DefaultInnerLoopVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.model.em.EmissionCacheInnerLoopCalibration;
 import edu.berkeley.cs.nlp.ocular.model.em.EmissionCacheInnerLoopVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.model.em.FFTInnerLoopVarLineHeight;
 import edu.berkeley.cs.nlp.ocular.model.em.OpenCLInnerLoopRC4;
+import edu.berkeley.cs.nlp.ocular.model.em.SharedOffsetInnerLoopVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.model.em.SparseInnerLoopVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.model.em.VectorizedInnerLoopVarLineHeight;
 import edu.berkeley.cs.nlp.ocular.model.emission.CachingEmissionModelVarLineHeight.CachingEmissionModelFactory;
 import edu.berkeley.cs.nlp.ocular.model.emission.CachingEmissionModelExplicitOffsetVarLineHeight.CachingEmissionModelExplicitOffsetFactory;
+import edu.berkeley.cs.nlp.ocular.model.emission.DirectEmissionCacheStorage.DirectEmissionCacheStorageFactory;
+import edu.berkeley.cs.nlp.ocular.model.emission.EmissionCacheStorage.EmissionCacheStorageFactory;
+import edu.berkeley.cs.nlp.ocular.model.emission.HeapEmissionCacheStorage.HeapEmissionCacheStorageFactory;
+import edu.berkeley.cs.nlp.ocular.model.emission.IncrementalEmissionCache;
+import edu.berkeley.cs.nlp.ocular.model.emission.LazyEmissionModelVarLineHeight.LazyEmissionModelFactory;
+import edu.berkeley.cs.nlp.ocular.model.emission.MappedEmissionCacheStorage;
+import edu.berkeley.cs.nlp.ocular.model.emission.MappedEmissionCacheStorage.MappedEmissionCacheStorageFactory;
+import edu.berkeley.cs.nlp.ocular.model.emission.QuantizedEmissionCacheStorage.Precision;
+import edu.berkeley.cs.nlp.ocular.model.emission.QuantizedEmissionCacheStorage.QuantizedEmissionCacheStorageFactory;
 import edu.berkeley.cs.nlp.ocular.model.emission.EmissionModelVarLineHeight.EmissionModelFactory;
 import fig.Option;
 import indexer.Indexer;
@@ -94,9 +110,33 @@ public abstract class FonttrainTranscribeSharedResource extends LineExtractionOp
 
 	// ##### Miscellaneous Options
 	
-	@Option(gloss = "Engine to use for inner loop of emission cache computation. `DEFAULT`: Uses Java on CPU, which works on any machine but is the slowest method. `OPENCL`: Faster engine that uses either the CPU or integrated GPU (depending on processor) and requires OpenCL installation. `CUDA`: Fastest method, but requires a discrete NVIDIA GPU and CUDA installation.")
+	@Option(gloss = "Engine to use for inner loop of emission cache computation. `DEFAULT`: Uses Java on CPU, which works on any machine but is the slowest method. `VECTOR`: Java on CPU, laid out so the JIT can use SIMD instructions; works on any machine and is usually faster than `DEFAULT`. `SPARSE`: Java on CPU, only visits the non-white pixels of each line; fastest CPU option on mostly white pages. `SHARED_OFFSET`: like `SPARSE`, but scores the vertical offsets of each template together from one shared copy of it. `BITPACKED`: Java on CPU, scores 8-bit quantized templates against bit-packed lines with popcounts (approximate). `FFT`: Java on CPU, scores wide templates by FFT cross-correlation, whose cost does not grow with the template width or the amount of ink; for tall lines and wide fonts. `OPENCL`: Faster engine that uses either the CPU or integrated GPU (depending on processor) and requires OpenCL installation. `CUDA`: Fastest method, but requires a discrete NVIDIA GPU and CUDA installation. `AUTO`: times `DEFAULT`, `VECTOR`, `SPARSE`, `SHARED_OFFSET`, `FFT` and `OPENCL` (where available) at several thread counts on a short synthetic batch the first time it is needed, and uses the fastest; numEmissionCacheThreads is then ignored.")
 	public static EmissionCacheInnerLoopType emissionEngine = EmissionCacheInnerLoopType.DEFAULT; // Default: DEFAULT
 
+	@Option(gloss = "Where to keep the emission log-probability cache of a decode batch. `HEAP`: one flat float array per line on the Java heap. `DIRECT`: off-heap direct buffers, which keeps the cache out of -Xmx and out of the garbage collector's way (native memory is bounded by -XX:MaxDirectMemorySize). `HALF`, `INT16`, `INT8`: reduced-precision copies relative to each column's best score, 2x, 2x and 4x smaller than `HEAP`. Scores near the best are kept to within about 0.05% (`HALF`), 0.008 (`INT16`) and 0.13 (`INT8`); scores more than 65504, 1024 and 64 below it are raised to that. `MAPPED`: a memory-mapped temporary file in java.io.tmpdir that the operating system pages in on demand, with long lines scored a window of columns at a time, for pages too wide to cache in memory.")
+	public static EmissionCacheStorageType emissionCacheStorage = EmissionCacheStorageType.HEAP;
+
+	@Option(gloss = "Score (line, column, character) emission blocks only when the beam first asks for them, instead of filling the whole emission cache up front. The coarse backward pass then uses a cheap upper bound on the emission scores. Uses much less memory and skips most of the emission work; emissionEngine and emissionCacheStorage are ignored.")
+	public static boolean lazyEmissionCache = false;
+
+	@Option(gloss = "Keep up to this many gigabytes of full-precision emission scores across decode batches and EM iterations, and only recompute the characters whose templates changed since a line was last scored. Mostly useful for font training. 0 turns it off.")
+	public static double incrementalEmissionCacheGb = 0.0;
+
+	@Option(gloss = "How far a template parameter (a template weight or a log width probability) may move before the character is rescored when incrementalEmissionCacheGb is on. 0 rescores on any change.")
+	public static double incrementalEmissionCacheTolerance = 0.0;
+
+	@Option(gloss = "Skip the emission scores of a character at a position and template width when a cheap bound from the ink counts of the columns under it falls more than this many nats below the whitespace score of the same columns; the character is left at -infinity there. Only for the caching emission models; the DEFAULT, SPARSE and SHARED_OFFSET engines skip the pruned work, the others still score it. 0 turns it off.")
+	public static double emissionPruningMargin = 0.0;
+
+	@Option(gloss = "Score each line only under this many of the exposures, those that best explain its ink density, estimated in a cheap pass over the line, instead of under all 3. 1 or 2 cut the emission work accordingly on scans of uniform quality; the DEFAULT, SPARSE and SHARED_OFFSET engines skip the other exposures, the others still score them. Only for the caching emission models. 0 scores all exposures.")
+	public static int lineExposureCandidates = 0;
+
+	@Option(gloss = "Score each line only under the vertical offsets within this many pixels of where its text sits, estimated from the line's per-row ink counts, instead of under all 11; lines where the estimate is ambiguous keep all of them. With markovVerticalOffset this also shrinks the emission cache. The DEFAULT and SPARSE engines skip the other offsets, the others still score them. Only for the caching emission models. -1 tries all offsets.")
+	public static int lineOffsetRadius = -1;
+
+	@Option(gloss = "Record, while building the emission cache, the exposure, vertical offset and padding width behind every cached score, one byte per score, so that training looks up the alignment of each decoded glyph instead of searching the templates for it again. Adds a quarter of the HEAP cache's size (as much as an INT8 cache takes) to the emission cache's memory. Only for the caching emission models.")
+	public static boolean recordEmissionAlignments = false;
+
 	@Option(gloss = "Size of beam for Viterbi inference. (Usually in range 10-50. Increasing beam size can improve accuracy, but will reduce speed.)")
 	public static int beamSize = 10;
 
@@ -106,7 +146,7 @@ public abstract class FonttrainTranscribeSharedResource extends LineExtractionOp
 	@Option(gloss = "Number of threads to use for LFBGS during m-step.")
 	public static int numMstepThreads = 8;
 
-	@Option(gloss = "Number of threads to use during emission cache computation. (Only has effect when emissionEngine is set to DEFAULT.)")
+	@Option(gloss = "Number of threads to use during emission cache computation. (Only has effect when emissionEngine is set to DEFAULT, VECTOR, SPARSE, SHARED_OFFSET, BITPACKED or FFT.)")
 	public static int numEmissionCacheThreads = 8;
 
 	@Option(gloss = "Number of threads to use for decoding. (More thread may increase speed, but may cause a loss of continuity across lines.)")
@@ -115,6 +155,30 @@ public abstract class FonttrainTranscribeSharedResource extends LineExtractionOp
 	@Option(gloss = "Number of lines that compose a single decode batch. (Smaller batch size can reduce memory consumption.)")
 	public static int decodeBatchSize = 32;
 
+	@Option(gloss = "Memory budget in gigabytes for the emission cache of a decode batch. Lines are packed into variable-size batches by their predicted emission cache size, and decodeBatchSize is ignored. (0.0 means batches of decodeBatchSize lines.)")
+	public static double decodeMemoryBudget = 0.0;
+
+	@Option(gloss = "Number of successor rows (the language and glyph substitution model weighted next states) kept across lines, batches and documents while decoding. A transition state has up to two rows, one for the rest of its line and one for the start of the next; past the limit, the least recently used rows are dropped and recomputed when needed. The states themselves and their ids are not bounded by it and are kept for as long as the models stay the same. Raise it for high-order language models if memory allows. 0 keeps them all.")
+	public static int successorCacheSize = 100000;
+
+	@Option(gloss = "Keep only this many of the most probable preceding characters per character in the coarse backward pass that ranks the decoder's beam candidates, and bound the rest by the largest dropped transition, which makes the pass O(numChars * k) per column instead of O(numChars^2). Worth it with large character sets; the beam ranking gets coarser. 0 keeps all transitions.")
+	public static int coarseBackwardTopK = 0;
+
+	@Option(gloss = "With numDecodeThreads > 1, decode every thread's block of lines from the generic line start states at once, then re-decode the lines after each block boundary from where the previous block actually ends until they come out as before, so that the output is the single-threaded Viterbi decode. Without it, each block starts afresh and the decode differs slightly at the boundaries.")
+	public static boolean speculativeDecode = false;
+
+	@Option(gloss = "Build the next batch's emission model on a separate thread while the current batch is decoded and counted, so that the two overlap. At most two batches' emission models are in memory at once, and with decodeMemoryBudget each batch is packed within half of the budget.")
+	public static boolean pipelineEStep = false;
+
+	@Option(gloss = "Relative log-score threshold for adaptive beam pruning: a hypothesis whose score plus backward bound falls more than this below the best one at its column is kept but not extended, except for the best minBeamSize. Saves work on easy columns. (0.0 extends every hypothesis on the beam.)")
+	public static double beamThreshold = 0.0;
+
+	@Option(gloss = "Fewest hypotheses extended per column under beamThreshold.")
+	public static int minBeamSize = 1;
+
+	@Option(gloss = "Largest beam a line is retried with when no hypothesis reaches its end: the line is decoded again with twice the beam size and twice the beamThreshold until one does, or the beam would exceed this. (0 means 4 * beamSize.)")
+	public static int maxBeamSize = 0;
+
 	@Option(gloss = "Min horizontal padding between characters in pixels. (Best left at default value.)")
 	public static int paddingMinWidth = 1;
 
@@ -144,7 +208,8 @@ public abstract class FonttrainTranscribeSharedResource extends LineExtractionOp
 	public static boolean evalBatches = false;
 	
 	
-	public static enum EmissionCacheInnerLoopType { DEFAULT, OPENCL, CUDA };
+	public static enum EmissionCacheInnerLoopType { DEFAULT, VECTOR, SPARSE, SHARED_OFFSET, BITPACKED, FFT, OPENCL, CUDA, AUTO };
+	public static enum EmissionCacheStorageType { HEAP, DIRECT, HALF, INT16, INT8, MAPPED };
 
 	//
 	
@@ -243,27 +308,111 @@ public abstract class FonttrainTranscribeSharedResource extends LineExtractionOp
 		}
 	}
 
-	public static DecoderEMVarLineHeight makeDecoder(Indexer<String> charIndexer, EmissionCacheInnerLoopType emissionEngine, int lineHeight, boolean allowGlyphSubstitution, double gsmNoCharSubPrior, boolean gsmElideAnything, boolean markovVerticalOffset, int beamSize, int numDecodeThreads, int numMstepThreads, int decodeBatchSize) {
-		EmissionModelFactory emissionModelFactory = makeEmissionModelFactory(charIndexer, emissionEngine, markovVerticalOffset, lineHeight);
-		return new DecoderEMVarLineHeight(emissionModelFactory, lineHeight, allowGlyphSubstitution, gsmNoCharSubPrior, gsmElideAnything, allowLanguageSwitchOnPunct, markovVerticalOffset, beamSize, numDecodeThreads, numMstepThreads, decodeBatchSize);
+	public static DecoderEMVarLineHeight makeDecoder(Indexer<String> charIndexer, EmissionCacheInnerLoopType emissionEngine, EmissionCacheStorageType emissionCacheStorage, boolean lazyEmissionCache, double incrementalEmissionCacheGb, double incrementalEmissionCacheTolerance, double emissionPruningMargin, int lineExposureCandidates, int lineOffsetRadius, boolean recordEmissionAlignments, int lineHeight, boolean allowGlyphSubstitution, double gsmNoCharSubPrior, boolean gsmElideAnything, boolean markovVerticalOffset, int beamSize, int numDecodeThreads, int numMstepThreads, int decodeBatchSize, DecodeSettings decodeSettings) {
+		EmissionModelFactory emissionModelFactory = makeEmissionModelFactory(charIndexer, emissionEngine, emissionCacheStorage, lazyEmissionCache, incrementalEmissionCacheGb, incrementalEmissionCacheTolerance, emissionPruningMargin, lineExposureCandidates, lineOffsetRadius, recordEmissionAlignments, markovVerticalOffset, lineHeight);
+		return new DecoderEMVarLineHeight(emissionModelFactory, lineHeight, allowGlyphSubstitution, gsmNoCharSubPrior, gsmElideAnything, allowLanguageSwitchOnPunct, markovVerticalOffset, beamSize, numDecodeThreads, numMstepThreads, decodeBatchSize, decodeSettings);
 	}
 
-	public static EmissionModelFactory makeEmissionModelFactory(Indexer<String> charIndexer, EmissionCacheInnerLoopType emissionEngine, final boolean markovVerticalOffset, int lineHeight) {
-		EmissionCacheInnerLoopVarLineHeight emissionInnerLoop = getEmissionInnerLoop(emissionEngine);
+	public static EmissionModelFactory makeEmissionModelFactory(Indexer<String> charIndexer, EmissionCacheInnerLoopType emissionEngine, EmissionCacheStorageType emissionCacheStorage, boolean lazyEmissionCache, double incrementalEmissionCacheGb, double incrementalEmissionCacheTolerance, double emissionPruningMargin, int lineExposureCandidates, int lineOffsetRadius, boolean recordEmissionAlignments, final boolean markovVerticalOffset, int lineHeight) {
+		if (lazyEmissionCache) return new LazyEmissionModelFactory(charIndexer, paddingMinWidth, paddingMaxWidth, lineHeight, markovVerticalOffset);
+		EmissionCacheInnerLoopVarLineHeight emissionInnerLoop = getEmissionInnerLoop(emissionEngine, lineHeight);
+		EmissionCacheStorageFactory storageFactory = getEmissionCacheStorageFactory(emissionCacheStorage);
+		IncrementalEmissionCache incrementalCache = (incrementalEmissionCacheGb > 0.0 ? new IncrementalEmissionCache((float) incrementalEmissionCacheTolerance, (long) (incrementalEmissionCacheGb * 1e9)) : null);
+		int columnWindow = (emissionCacheStorage == EmissionCacheStorageType.MAPPED ? MappedEmissionCacheStorage.COLUMN_WINDOW : 0);
 		return (markovVerticalOffset ? 
-			new CachingEmissionModelExplicitOffsetFactory(charIndexer, paddingMinWidth, paddingMaxWidth, lineHeight, emissionInnerLoop) : 
-			new CachingEmissionModelFactory(charIndexer, paddingMinWidth, paddingMaxWidth, lineHeight, emissionInnerLoop));
+			new CachingEmissionModelExplicitOffsetFactory(charIndexer, paddingMinWidth, paddingMaxWidth, lineHeight, emissionInnerLoop, storageFactory, incrementalCache, columnWindow, emissionPruningMargin, lineExposureCandidates, lineOffsetRadius, recordEmissionAlignments) : 
+			new CachingEmissionModelFactory(charIndexer, paddingMinWidth, paddingMaxWidth, lineHeight, emissionInnerLoop, storageFactory, incrementalCache, columnWindow, emissionPruningMargin, lineExposureCandidates, lineOffsetRadius, recordEmissionAlignments));
+	}
+
+	public static EmissionCacheStorageFactory getEmissionCacheStorageFactory(EmissionCacheStorageType emissionCacheStorage) {
+		switch (emissionCacheStorage) {
+			case HEAP: return new HeapEmissionCacheStorageFactory();
+			case DIRECT: return new DirectEmissionCacheStorageFactory();
+			case HALF: return new QuantizedEmissionCacheStorageFactory(Precision.HALF);
+			case INT16: return new QuantizedEmissionCacheStorageFactory(Precision.INT16);
+			case INT8: return new QuantizedEmissionCacheStorageFactory(Precision.INT8);
+			case MAPPED: return new MappedEmissionCacheStorageFactory();
+		}
+		throw new RuntimeException("emissionCacheStorage=" + emissionCacheStorage + " not supported");
 	}
 
-	public static EmissionCacheInnerLoopVarLineHeight getEmissionInnerLoop(EmissionCacheInnerLoopType emissionEngine) {
+	public static EmissionCacheInnerLoopVarLineHeight getEmissionInnerLoop(EmissionCacheInnerLoopType emissionEngine, int lineHeight) {
+		if (emissionEngine == EmissionCacheInnerLoopType.AUTO) return getAutoTunedEmissionInnerLoop(lineHeight);
+		return makeEmissionInnerLoop(emissionEngine, numEmissionCacheThreads, OpenCLInnerLoopRC4.CPU_ROLL_X);
+	}
+
+	private static EmissionCacheInnerLoopVarLineHeight makeEmissionInnerLoop(EmissionCacheInnerLoopType emissionEngine, int numThreads, int openCLCpuRollX) {
 		switch (emissionEngine) {
-			case DEFAULT: return new DefaultInnerLoopVarLineHeight(numEmissionCacheThreads);
-			case OPENCL: return new OpenCLInnerLoopRC4(numEmissionCacheThreads);
-			case CUDA: return new CUDAInnerLoopVarLineHeight(numEmissionCacheThreads, cudaDeviceID);
+			case DEFAULT: return new DefaultInnerLoopVarLineHeight(numThreads);
+			case VECTOR: return new VectorizedInnerLoopVarLineHeight(numThreads);
+			case SPARSE: return new SparseInnerLoopVarLineHeight(numThreads);
+			case SHARED_OFFSET: return new SharedOffsetInnerLoopVarLineHeight(numThreads);
+			case BITPACKED: return new BitPackedInnerLoopVarLineHeight(numThreads);
+			case FFT: return new FFTInnerLoopVarLineHeight(numThreads);
+			case OPENCL: return new OpenCLInnerLoopRC4(numThreads, openCLCpuRollX);
+			case CUDA: return new CUDAInnerLoopVarLineHeight(numThreads, cudaDeviceID);
+			default: break;
 		}
 		throw new RuntimeException("emissionEngine=" + emissionEngine + " not supported");
 	}
 
+	// the AUTO choice, made once per JVM (and line height)
+	private static EmissionCacheInnerLoopType autoTunedEngine = null;
+	private static int autoTunedNumThreads;
+	private static int autoTunedOpenCLCpuRollX;
+	private static int autoTunedLineHeight;
+
+	/**
+	 * The exact engines (BITPACKED is approximate and CUDA needs a discrete
+	 * GPU, so neither is considered) are timed on a synthetic batch at 1, 2,
+	 * 4, ... threads up to the number of processors, and OpenCL at a few
+	 * roll sizes, since its per-vendor defaults are only a guess for a given
+	 * CPU. A faster setting only wins if it is at least 5% faster, so that
+	 * timing noise does not buy extra threads. Engines that fail to start
+	 * (e.g. OpenCL without a driver) are skipped.
+	 */
+	public static synchronized EmissionCacheInnerLoopVarLineHeight getAutoTunedEmissionInnerLoop(int lineHeight) {
+		if (autoTunedEngine == null || autoTunedLineHeight != lineHeight) {
+			long nanoTime = System.nanoTime();
+			autoTunedEngine = null;
+			EmissionCacheInnerLoopCalibration calibration = new EmissionCacheInnerLoopCalibration(lineHeight);
+			int numProcessors = Runtime.getRuntime().availableProcessors();
+			int numThreadCounts = 1;
+			for (int n=1; n<numProcessors; n*=2) numThreadCounts++;
+			int[] threadCounts = new int[numThreadCounts];
+			for (int i=0, n=1; n<numProcessors; n*=2) threadCounts[i++] = n;
+			threadCounts[numThreadCounts-1] = numProcessors;
+			EmissionCacheInnerLoopType[] candidates = new EmissionCacheInnerLoopType[] { EmissionCacheInnerLoopType.DEFAULT, EmissionCacheInnerLoopType.VECTOR, EmissionCacheInnerLoopType.SPARSE, EmissionCacheInnerLoopType.SHARED_OFFSET, EmissionCacheInnerLoopType.FFT, EmissionCacheInnerLoopType.OPENCL };
+			int[] openCLCpuRollXs = new int[] { 4, 8, 16 };
+			double bestSecondsPerLine = Double.POSITIVE_INFINITY;
+			for (EmissionCacheInnerLoopType candidate : candidates) {
+				// OpenCL scores one line at a time and only threads the populate step, so the roll size is what there is to tune
+				int[] numThreadsChoices = (candidate == EmissionCacheInnerLoopType.OPENCL ? new int[] { numProcessors } : threadCounts);
+				int[] rollXChoices = (candidate == EmissionCacheInnerLoopType.OPENCL ? openCLCpuRollXs : new int[] { OpenCLInnerLoopRC4.CPU_ROLL_X });
+				try {
+					for (int numThreads : numThreadsChoices) {
+						for (int rollX : rollXChoices) {
+							double secondsPerLine = calibration.secondsPerLine(makeEmissionInnerLoop(candidate, numThreads, rollX));
+							System.out.println(String.format("Emission engine calibration: %s, %d threads%s: %.2fms per line", candidate, numThreads, (candidate == EmissionCacheInnerLoopType.OPENCL ? ", roll " + rollX : ""), secondsPerLine * 1000));
+							if (secondsPerLine < 0.95 * bestSecondsPerLine) {
+								bestSecondsPerLine = secondsPerLine;
+								autoTunedEngine = candidate;
+								autoTunedNumThreads = numThreads;
+								autoTunedOpenCLCpuRollX = rollX;
+							}
+						}
+					}
+				} catch (Throwable t) {
+					System.out.println("Emission engine calibration: " + candidate + " not available (" + t + ")");
+				}
+			}
+			if (autoTunedEngine == null) throw new RuntimeException("No emission engine could be calibrated");
+			autoTunedLineHeight = lineHeight;
+			System.out.println("Emission engine calibration: using " + autoTunedEngine + " with " + autoTunedNumThreads + " threads" + (autoTunedEngine == EmissionCacheInnerLoopType.OPENCL ? ", roll " + autoTunedOpenCLCpuRollX : "") + " (" + (System.nanoTime() - nanoTime)/1000000 + "ms)");
+		}
+		return makeEmissionInnerLoop(autoTunedEngine, autoTunedNumThreads, autoTunedOpenCLCpuRollX);
+	}
+
 	public static MultiDocumentTranscriberVarLineHeight makeEvalSetEvaluator(Indexer<String> charIndexer, DecoderEMVarLineHeight decoderEM, SingleDocumentEvaluatorAndOutputPrinter documentOutputPrinterAndEvaluator, final String evalInputDocPath, final String evalExtractedLinesPath, final int evalNumDocs, final boolean uniformLineHeight, final int lineHeight, final double binarizeThreshold, final boolean crop, final int numExtractIterations, final int numExtractRestarts, int extractLineHeight, final String outputPath) {
 		if (evalInputDocPath != null) {
 			List<Document> evalDocuments = LazyRawImageLoaderResource.loadDocuments(evalInputDocPath, evalExtractedLinesPath, evalNumDocs, 0, uniformLineHeight, lineHeight, binarizeThreshold, crop, numExtractIterations, numExtractRestarts, extractLineHeight);
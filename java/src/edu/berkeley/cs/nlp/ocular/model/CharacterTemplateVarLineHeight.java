@@ -277,11 +277,43 @@ public class CharacterTemplateVarLineHeight implements Serializable {
 		incrementWidthCounts(width, count);
 	}
 	
+	/**
+	 * Computes the template log probabilities of every exposure and width now
+	 * instead of on first use. Until the parameters change again, reading
+	 * them then writes nothing, so emission models can be built from these
+	 * templates on one thread while another thread uses them.
+	 */
+	public void precomputeTemplateLogProbs() {
+		if (character.equals(Charset.SPACE)) return;
+		for (int e=0; e<EXP_GAINS.length; ++e) {
+			for (int width=templateMinWidth(); width<=templateMaxWidth(); ++width) {
+				templateLogProbs(width, e, true);
+			}
+		}
+	}
+
 	public void updateParameters() {
 		updateWidthParameters(LEARN_WIDTH_MIN_VAR, LEARN_WIDTH_STD_THRESH);
 		updateEmissionParameters(MSTEP_LBFGS_TOL, MSTEP_LBFGS_ITERS);
 	}
 
+	/**
+	 * A copy of the parameters the emission scores of this template are
+	 * computed from: the template weights, followed by the log width
+	 * probabilities.
+	 */
+	public float[] parameterSnapshot() {
+		int numWeights = (templateWeights == null ? 0 : templateWeights.length*lineHeight);
+		float[] snapshot = new float[numWeights + templateWidthProbs.length];
+		for (int i=0; i<numWeights/lineHeight; ++i) {
+			System.arraycopy(templateWeights[i], 0, snapshot, i*lineHeight, lineHeight);
+		}
+		for (int w=0; w<templateWidthProbs.length; ++w) {
+			snapshot[numWeights + w] = (float) Math.log(templateWidthProbs[w]);
+		}
+		return snapshot;
+	}
+
 	public String getCharacter() {
 		return character;
 	}
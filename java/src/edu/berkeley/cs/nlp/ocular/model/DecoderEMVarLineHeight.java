@@ -3,7 +3,10 @@ package edu.berkeley.cs.nlp.ocular.model;
 import static edu.berkeley.cs.nlp.ocular.util.Tuple2.Tuple2;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
 
 import edu.berkeley.cs.nlp.ocular.data.Document;
 import edu.berkeley.cs.nlp.ocular.gsm.GlyphSubstitutionModel;
@@ -11,7 +14,9 @@ import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
 import edu.berkeley.cs.nlp.ocular.lm.CodeSwitchLanguageModel;
 import edu.berkeley.cs.nlp.ocular.lm.SingleLanguageModel;
 import edu.berkeley.cs.nlp.ocular.model.em.BeamingSemiMarkovDPVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.model.em.DecoderWorkspace;
 import edu.berkeley.cs.nlp.ocular.model.em.DenseBigramTransitionModel;
+import edu.berkeley.cs.nlp.ocular.model.em.TransitionStateInterner;
 import edu.berkeley.cs.nlp.ocular.model.emission.EmissionModelVarLineHeight;
 import edu.berkeley.cs.nlp.ocular.model.emission.EmissionModelVarLineHeight.EmissionModelFactory;
 import edu.berkeley.cs.nlp.ocular.model.transition.CharacterNgramTransitionModel;
@@ -28,6 +33,26 @@ import threading.BetterThreader;
  */
 public class DecoderEMVarLineHeight {
 
+	/**
+	 * How the E-step decodes, beyond the beam size, threads and batch size.
+	 * The defaults decode as the decoder always has.
+	 */
+	public static class DecodeSettings {
+		/** Pack lines into batches whose emission caches fit this many gb; 0 for fixed-size batches. */
+		public double decodeMemoryBudget = 0.0;
+		/** Rows of the forward transitions' successor cache. */
+		public int successorCacheSize = 100000;
+		/** Successors kept per character in the coarse backward pass; 0 for all. */
+		public int coarseBackwardTopK = 0;
+		public boolean speculativeDecode = false;
+		public boolean pipelineEStep = false;
+		/** Log-prob margin below the best hypothesis for the adaptive beam; 0 for a fixed beam. */
+		public double beamThreshold = 0.0;
+		public int minBeamSize = 1;
+		/** Widest beam a line that fails to decode is retried with; 0 for four times the beam size. */
+		public int maxBeamSize = 0;
+	}
+
 	private EmissionModelFactory emissionModelFactory;
     private int lineHeight;
 
@@ -41,10 +66,22 @@ public class DecoderEMVarLineHeight {
 	private int numDecodeThreads;
 	private int numMstepThreads;
 	private int decodeBatchSize;
+	private double decodeMemoryBudget;
+	private int successorCacheSize;
+	private int coarseBackwardTopK;
+	private boolean speculativeDecode;
+	private boolean pipelineEStep;
+	private double beamThreshold;
+	private int minBeamSize;
+	private int maxBeamSize;
+	
+	private CodeSwitchLanguageModel internedLm;
+	private GlyphSubstitutionModel internedGsm;
+	private TransitionStateInterner forwardTransitions;
 	
 	public DecoderEMVarLineHeight(EmissionModelFactory emissionModelFactory, int lineHeight, boolean allowGlyphSubstitution, double noCharSubPrior, boolean elideAnything,
 			boolean allowLanguageSwitchOnPunct, boolean markovVerticalOffset,
-			int beamSize, int numDecodeThreads, int numMstepThreads, int decodeBatchSize) {
+			int beamSize, int numDecodeThreads, int numMstepThreads, int decodeBatchSize, DecodeSettings settings) {
 		this.emissionModelFactory = emissionModelFactory;
 		this.lineHeight = lineHeight;
 		this.allowGlyphSubstitution = allowGlyphSubstitution;
@@ -56,6 +93,14 @@ public class DecoderEMVarLineHeight {
 		this.numDecodeThreads = numDecodeThreads;
 		this.numMstepThreads = numMstepThreads;
 		this.decodeBatchSize = decodeBatchSize;
+		this.decodeMemoryBudget = settings.decodeMemoryBudget;
+		this.successorCacheSize = settings.successorCacheSize;
+		this.coarseBackwardTopK = settings.coarseBackwardTopK;
+		this.speculativeDecode = settings.speculativeDecode;
+		this.pipelineEStep = settings.pipelineEStep;
+		this.beamThreshold = settings.beamThreshold;
+		this.minBeamSize = settings.minBeamSize;
+		this.maxBeamSize = (settings.maxBeamSize > 0 ? settings.maxBeamSize : 4*beamSize);
 	}
 
 	public Tuple2<Tuple2<TransitionState[][], int[][]>, Double> computeEStep(
@@ -67,56 +112,184 @@ public class DecoderEMVarLineHeight {
 		TransitionState[][] decodeStates = new TransitionState[pixels.length][0];
 		int[][] decodeWidths = new int[pixels.length][0];
 
-		int totalNanoTime = 0;
+		long eStepNanoTime = System.nanoTime();
+		long totalNanoTime = 0L;
+		long buildNanoTime = 0L;
+		long decodeAndCountNanoTime = 0L;
+		long waitNanoTime = 0L;
 		double totalJointLogProb = 0.0;
-		int numBatches = (int) Math.ceil(pixels.length / (double) decodeBatchSize);
-		for (int b = 0; b < numBatches; ++b) {
-			System.gc();
-			System.gc();
-			System.gc();
+		final int[] batchStarts = batchStarts(pixels, templates);
+		final int numBatches = batchStarts.length - 1;
+		
+		// With the pipeline, a builder thread makes the next batch's emission model
+		// while this thread decodes the current one. The hand-off holds nothing, so
+		// the builder waits with the next model until this thread asks for it, and
+		// at most two batches' emission models are alive at a time.
+		Thread builder = null;
+		final SynchronousQueue<Batch> builtBatches = new SynchronousQueue<Batch>();
+		if (pipelineEStep && numBatches > 1) {
+			for (CharacterTemplateVarLineHeight template : templates) template.precomputeTemplateLogProbs();
+			builder = new Thread(new Runnable() {
+				public void run() {
+					for (int b = 0; b < numBatches; ++b) {
+						Batch batch = buildBatch(b, batchStarts, pixels, templates);
+						try {
+							builtBatches.put(batch);
+						} catch (InterruptedException e) {
+							return;
+						}
+						if (batch.failure != null) return;
+					}
+				}
+			}, "emission-model-builder");
+			builder.setDaemon(true);
+			builder.start();
+		}
+		
+		// the batches decode in the same beams and backward bounds, which go back to the pool for the next document
+		DecoderWorkspace workspace = DecoderWorkspace.acquire();
+		try {
+			for (int b = 0; b < numBatches; ++b) {
+				System.out.println("Batch: " + b);
+
+				Batch batch;
+				if (builder != null) {
+					long waitStartNanoTime = System.nanoTime();
+					try {
+						batch = builtBatches.take();
+					} catch (InterruptedException e) {
+						throw new RuntimeException("Interrupted while waiting for the emission model of batch " + b, e);
+					}
+					waitNanoTime += (System.nanoTime() - waitStartNanoTime);
+				} else {
+					batch = buildBatch(b, batchStarts, pixels, templates);
+				}
+				if (batch.failure instanceof RuntimeException) throw (RuntimeException) batch.failure;
+				else if (batch.failure instanceof Error) throw (Error) batch.failure;
+				else if (batch.failure != null) throw new RuntimeException("Failed to build the emission model of batch " + b, batch.failure);
+				buildNanoTime += batch.buildNanoTime;
+				long decodeAndCountStartNanoTime = System.nanoTime();
+				
+				int startLine = batchStarts[b];
+				final EmissionModelVarLineHeight emissionModel = batch.emissionModel;
+				long nanoTime = System.nanoTime();
+				TransitionStateInterner forwardTransitions = forwardTransitions(lm, gsm);
+				BeamingSemiMarkovDPVarLineHeight dp = new BeamingSemiMarkovDPVarLineHeight(emissionModel, forwardTransitions, backwardTransitionModel, coarseBackwardTopK, workspace);
+				System.out.println("Ready to run decoder");
+				Tuple2<Tuple2<TransitionState[][], int[][]>, Double> decodeStatesAndWidthsAndJointLogProb = dp.decode(beamSize, numDecodeThreads, speculativeDecode, beamThreshold, minBeamSize, maxBeamSize);
+				System.out.println("Done running decoder");
+				System.out.println("Successor cache: " + forwardTransitions.statistics());
+				totalNanoTime += (System.nanoTime() - nanoTime);
+				final TransitionState[][] batchDecodeStates = decodeStatesAndWidthsAndJointLogProb._1._1;
+				final int[][] batchDecodeWidths = decodeStatesAndWidthsAndJointLogProb._1._2;
+				totalJointLogProb += decodeStatesAndWidthsAndJointLogProb._2;
+				for (int line = 0; line < emissionModel.numSequences(); ++line) {
+					decodeStates[startLine + line] = batchDecodeStates[line];
+					decodeWidths[startLine + line] = batchDecodeWidths[line];
+				}
 
-			System.out.println("Batch: " + b);
+				if (updateFontParameterCounts) {
+					System.out.println("Ready to run increment counts");
+					incrementCounts(emissionModel, batchDecodeStates, batchDecodeWidths);
+				}
+				emissionModel.releaseCache();
+				decodeAndCountNanoTime += (System.nanoTime() - decodeAndCountStartNanoTime);
+			}
+		} finally {
+			if (builder != null) builder.interrupt();
+			DecoderWorkspace.release(workspace);
+		}
+		long eStepWallNanoTime = System.nanoTime() - eStepNanoTime;
+		System.out.println("Decode: " + (totalNanoTime / 1000000) + "ms");
+		System.out.println("E-step: " + (eStepWallNanoTime / 1000000) + "ms, building emission models " + (buildNanoTime / 1000000) + "ms, decoding and counting " + (decodeAndCountNanoTime / 1000000) + "ms, waiting for the builder " + (waitNanoTime / 1000000) + "ms, overlapped " + (Math.max(0L, buildNanoTime + decodeAndCountNanoTime - eStepWallNanoTime) / 1000000) + "ms");
+		double avgLogProb = totalJointLogProb / numBatches;
+		return Tuple2(Tuple2(decodeStates, decodeWidths), avgLogProb);
+	}
 
-			int startLine = b * decodeBatchSize;
-			int endLine = Math.min((b + 1) * decodeBatchSize, pixels.length);
+	/**
+	 * A batch's emission model with its cache built, or why it could not be.
+	 */
+	private static class Batch {
+		public EmissionModelVarLineHeight emissionModel;
+		public long buildNanoTime;
+		public Throwable failure;
+	}
+
+	private Batch buildBatch(int b, int[] batchStarts, PixelType[][][] pixels, CharacterTemplateVarLineHeight[] templates) {
+		Batch batch = new Batch();
+		long nanoTime = System.nanoTime();
+		try {
+			int startLine = batchStarts[b];
+			int endLine = batchStarts[b + 1];
 			PixelType[][][] batchPixels = new PixelType[endLine - startLine][][];
+			long batchBytes = 0L;
 			for (int line = startLine; line < endLine; ++line) {
 				batchPixels[line - startLine] = pixels[line];
+				if (decodeMemoryBudget > 0.0) batchBytes += emissionModelFactory.estimateNumBytes(templates, pixels[line]);
 			}
+			if (decodeMemoryBudget > 0.0) System.out.println("Batch " + b + " of " + (endLine - startLine) + " lines, estimated emission cache size " + String.format("%.3f", batchBytes / 1e9) + "gb");
 
-			System.out.println("Initializing EmissionModel    " + (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime())));
-			final EmissionModelVarLineHeight emissionModel = emissionModelFactory.make(templates, batchPixels);
-			System.out.println("Rebuilding cache    " + (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime())));
-			//long emissionCacheNanoTime = System.nanoTime();
-			emissionModel.rebuildCache();
-			System.out.println("Done rebuilding cache    " + (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime())));
-			//overallEmissionCacheNanoTime += (System.nanoTime() - emissionCacheNanoTime);
+			System.out.println("Initializing EmissionModel for batch " + b + "    " + (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime())));
+			batch.emissionModel = emissionModelFactory.make(templates, batchPixels);
+			System.out.println("Rebuilding cache for batch " + b + "    " + (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime())));
+			batch.emissionModel.rebuildCache();
+			System.out.println("Done rebuilding cache for batch " + b + "    " + (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime())));
+		} catch (Throwable e) {
+			// anything, out of memory included, has to reach the decoding thread, or it waits for this batch forever
+			batch.emissionModel = null;
+			batch.failure = e;
+		}
+		batch.buildNanoTime = System.nanoTime() - nanoTime;
+		return batch;
+	}
 
-			long nanoTime = System.nanoTime();
-			System.out.println("Constructing forwardTransitionModel");
-			SparseTransitionModel forwardTransitionModel = constructTransitionModel(lm, gsm);
-			BeamingSemiMarkovDPVarLineHeight dp = new BeamingSemiMarkovDPVarLineHeight(emissionModel, forwardTransitionModel, backwardTransitionModel);
-			System.out.println("Ready to run decoder");
-			Tuple2<Tuple2<TransitionState[][], int[][]>, Double> decodeStatesAndWidthsAndJointLogProb = dp.decode(beamSize, numDecodeThreads);
-			System.out.println("Done running decoder");
-			totalNanoTime += (System.nanoTime() - nanoTime);
-			final TransitionState[][] batchDecodeStates = decodeStatesAndWidthsAndJointLogProb._1._1;
-			final int[][] batchDecodeWidths = decodeStatesAndWidthsAndJointLogProb._1._2;
-			totalJointLogProb += decodeStatesAndWidthsAndJointLogProb._2;
-			for (int line = 0; line < emissionModel.numSequences(); ++line) {
-				decodeStates[startLine + line] = batchDecodeStates[line];
-				decodeWidths[startLine + line] = batchDecodeWidths[line];
+	/**
+	 * Line numbers at which the batches start, followed by the number of lines.
+	 * Without a memory budget every batch has decodeBatchSize lines. With one,
+	 * lines are added to a batch as long as the emission model's predicted
+	 * size stays within the budget (but each batch gets at least one line).
+	 * With the pipelined E-step two batches are in memory at once, so each
+	 * gets half of the budget.
+	 */
+	private int[] batchStarts(PixelType[][][] pixels, CharacterTemplateVarLineHeight[] templates) {
+		List<Integer> batchStarts = new ArrayList<Integer>();
+		if (decodeMemoryBudget <= 0.0) {
+			for (int line = 0; line < pixels.length; line += decodeBatchSize) batchStarts.add(line);
+		}
+		else {
+			long budgetBytes = (long) (decodeMemoryBudget * 1e9);
+			if (pipelineEStep) budgetBytes /= 2;
+			long batchBytes = 0L;
+			for (int line = 0; line < pixels.length; ++line) {
+				long lineBytes = emissionModelFactory.estimateNumBytes(templates, pixels[line]);
+				if (line == 0 || batchBytes + lineBytes > budgetBytes) {
+					batchStarts.add(line);
+					batchBytes = 0L;
+				}
+				batchBytes += lineBytes;
 			}
+			System.out.println("Packed " + pixels.length + " lines into " + batchStarts.size() + " batches within " + (pipelineEStep ? "half of " : "") + "a " + decodeMemoryBudget + "gb decode memory budget");
+		}
+		int[] result = new int[batchStarts.size() + 1];
+		for (int b = 0; b < batchStarts.size(); ++b) result[b] = batchStarts.get(b);
+		result[batchStarts.size()] = pixels.length;
+		return result;
+	}
 
-			if (updateFontParameterCounts) {
-				System.out.println("Ready to run increment counts");
-				incrementCounts(emissionModel, batchDecodeStates, batchDecodeWidths);
-			}
-			
+	/**
+	 * The forward transitions, interned. The transition model and its successor
+	 * cache are only built again when the language model or glyph substitution
+	 * model changes, so the successor rows filled for one batch or document
+	 * serve the following ones.
+	 */
+	private TransitionStateInterner forwardTransitions(CodeSwitchLanguageModel lm, GlyphSubstitutionModel gsm) {
+		if (forwardTransitions == null || lm != internedLm || gsm != internedGsm) {
+			System.out.println("Constructing forwardTransitionModel");
+			forwardTransitions = new TransitionStateInterner(constructTransitionModel(lm, gsm), successorCacheSize);
+			internedLm = lm;
+			internedGsm = gsm;
 		}
-		System.out.println("Decode: " + (totalNanoTime / 1000000) + "ms");
-		double avgLogProb = totalJointLogProb / numBatches;
-		return Tuple2(Tuple2(decodeStates, decodeWidths), avgLogProb);
+		return forwardTransitions;
 	}
 
 	private SparseTransitionModel constructTransitionModel(CodeSwitchLanguageModel codeSwitchLM, GlyphSubstitutionModel codeSwitchGSM) {
@@ -3,18 +3,16 @@ package edu.berkeley.cs.nlp.ocular.model.em;
 import static edu.berkeley.cs.nlp.ocular.util.Tuple2.Tuple2;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import threading.BetterThreader;
-import util.GeneralPriorityQueue;
 import arrays.a;
 import edu.berkeley.cs.nlp.ocular.model.emission.EmissionModelVarLineHeight;
-import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel;
 import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
 import edu.berkeley.cs.nlp.ocular.util.Tuple2;
 
@@ -23,75 +21,133 @@ import edu.berkeley.cs.nlp.ocular.util.Tuple2;
  */
 public class BeamingSemiMarkovDPVarLineHeight {
 	
-	private static class BeamState {
+	private static class StartState {
+		private final int transStateId;
 		private final TransitionState transState;
 		public double score = Double.NEGATIVE_INFINITY;
-		public Tuple2<Integer,TransitionState> backPointer = null;
-		public BeamState(TransitionState transState) {
+		public TransitionState previousFinalState = null;
+		public StartState(int transStateId, TransitionState transState) {
+			this.transStateId = transStateId;
 			this.transState = transState;
 		}
-		public int hashCode() {
-			return transState.hashCode();
-		}
-		public boolean equals(Object obj) {
-			if (obj instanceof BeamState) {
-				return transState.equals(((BeamState) obj).transState);
-			} else {
-				return false;
-			}
-		}
 	}
 	
-	private GeneralPriorityQueue<BeamState>[][] alphas;
-	double[][][] betas;
-	private SparseTransitionModel forwardTransitionModel;
-	private DenseBigramTransitionModel backwardTransitionModel;
+	private PrimitiveBeam[][] alphas;
+	private TransitionState[][] startBackPointers;
+	private List<StartState>[] lineStartStates;
+	private double[] lineStartShifts;
+	private boolean[] lineRestarted;
+	private double[] lineBestFinalScores;
+	private int[] lineBeamSizes;
+	private long[] lineNumExtended;
+	private long[] lineNumHypotheses;
+	private Collection<StartState>[] lineEndStartStates;
+	float[][][] betas;
+	private TransitionStateInterner forwardTransitions;
+	private CoarseBackwardPass coarseBackwardPass;
 	private EmissionModelVarLineHeight emissionModel;
+	private DecoderWorkspace workspace;
+	private double beamThreshold;
+	private int minBeamSize;
+	private int maxBeamSize;
+
+	public BeamingSemiMarkovDPVarLineHeight(EmissionModelVarLineHeight emissionModel, TransitionStateInterner forwardTransitions, DenseBigramTransitionModel backwardTransitionModel, int backwardTopK) {
+		this(emissionModel, forwardTransitions, backwardTransitionModel, backwardTopK, new DecoderWorkspace());
+	}
 
+	/**
+	 * @param workspace	Where the beams and backward bounds are kept; the
+	 * 					decoder reuses whatever buffers it already holds.
+	 * 					It must not be shared with a decode running at the
+	 * 					same time.
+	 */
 	@SuppressWarnings("unchecked")
-	public BeamingSemiMarkovDPVarLineHeight(EmissionModelVarLineHeight emissionModel, SparseTransitionModel forwardTransitionModel, DenseBigramTransitionModel backwardTransitionModel) {
+	public BeamingSemiMarkovDPVarLineHeight(EmissionModelVarLineHeight emissionModel, TransitionStateInterner forwardTransitions, DenseBigramTransitionModel backwardTransitionModel, int backwardTopK, DecoderWorkspace workspace) {
 		this.emissionModel = emissionModel;
-		this.forwardTransitionModel = forwardTransitionModel;
-		this.backwardTransitionModel = backwardTransitionModel;
-		this.alphas = new GeneralPriorityQueue[emissionModel.numSequences()][];
+		this.forwardTransitions = forwardTransitions;
+		this.coarseBackwardPass = new CoarseBackwardPass(backwardTransitionModel, emissionModel.numChars(), backwardTopK);
+		this.workspace = workspace;
+		workspace.ensureNumLines(emissionModel.numSequences());
+		// the beams are taken from the workspace by the forward pass, once the beam size is known
+		this.alphas = new PrimitiveBeam[emissionModel.numSequences()][];
+		this.startBackPointers = new TransitionState[emissionModel.numSequences()][];
+		this.lineStartStates = new List[emissionModel.numSequences()];
+		this.lineStartShifts = new double[emissionModel.numSequences()];
+		this.lineRestarted = new boolean[emissionModel.numSequences()];
+		this.lineBestFinalScores = new double[emissionModel.numSequences()];
+		this.lineBeamSizes = new int[emissionModel.numSequences()];
+		this.lineNumExtended = new long[emissionModel.numSequences()];
+		this.lineNumHypotheses = new long[emissionModel.numSequences()];
+		this.lineEndStartStates = new Collection[emissionModel.numSequences()];
+		this.betas = new float[emissionModel.numSequences()][][];
 		for (int d=0; d<emissionModel.numSequences(); ++d) {
-			this.alphas[d] = new GeneralPriorityQueue[emissionModel.sequenceLength(d)+1];
-			for (int t=0; t<emissionModel.sequenceLength(d)+1; ++t) {
-				this.alphas[d][t] = new GeneralPriorityQueue<BeamState>();
-			}
-		}
-		this.betas = new double[emissionModel.numSequences()][][];
-		for (int d=0; d<emissionModel.numSequences(); ++d) {
-			this.betas[d] = new double[emissionModel.sequenceLength(d)+1][emissionModel.numChars()];
+			this.betas[d] = workspace.betas(d, emissionModel.sequenceLength(d)+1, emissionModel.numChars());
 		}
 	}
 
 	public Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decode(final int beamSize, int numThreads) {
+		return decode(beamSize, numThreads, false);
+	}
+
+	/**
+	 * @param speculative	With several threads, decode every block of lines
+	 * 						in parallel from the generic start states, then
+	 * 						re-decode the lines after each block boundary from
+	 * 						the previous block's actual end until they come out
+	 * 						as before, which gives the single-threaded output.
+	 * 						Without it, the blocks are decoded independently.
+	 */
+	public Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decode(final int beamSize, int numThreads, boolean speculative) {
+		return decode(beamSize, numThreads, speculative, 0.0, beamSize, beamSize);
+	}
+
+	/**
+	 * @param beamThreshold	With a positive threshold, a hypothesis whose
+	 * 						score plus backward bound falls more than this
+	 * 						below the best one at its column stays on the
+	 * 						beam but is not extended, except for the best
+	 * 						minBeamSize of the column.
+	 * @param maxBeamSize	When no hypothesis reaches the end of a line, the
+	 * 						line is decoded again with twice the beam size
+	 * 						and twice the threshold, as long as the beam size
+	 * 						stays within this.
+	 */
+	public Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decode(final int beamSize, int numThreads, boolean speculative, double beamThreshold, int minBeamSize, int maxBeamSize) {
+		if (minBeamSize < 1) throw new RuntimeException("Minimum beam size must be positive, got " + minBeamSize);
+		this.beamThreshold = beamThreshold;
+		this.minBeamSize = minBeamSize;
+		this.maxBeamSize = maxBeamSize;
 		System.out.print("Decoding");
 		
-		if (numThreads == 1) return decodeSingleThread(beamSize);
-		else return decodeMultipleThreads(beamSize, numThreads);
+		Tuple2<Tuple2<TransitionState[][],int[][]>,Double> result;
+		if (numThreads == 1) result = decodeSingleThread(beamSize);
+		else if (speculative) result = decodeSpeculatively(beamSize, numThreads);
+		else result = decodeMultipleThreads(beamSize, numThreads);
+		printBeamStatistics(beamSize);
+		return result;
+	}
+	
+	private void printBeamStatistics(int beamSize) {
+		long numExtended = 0L;
+		long numHypotheses = 0L;
+		int numRetried = 0;
+		int maxLineBeamSize = beamSize;
+		for (int d=0; d<emissionModel.numSequences(); ++d) {
+			numExtended += lineNumExtended[d];
+			numHypotheses += lineNumHypotheses[d];
+			if (lineBeamSizes[d] > beamSize) numRetried++;
+			maxLineBeamSize = Math.max(maxLineBeamSize, lineBeamSizes[d]);
+		}
+		if (beamThreshold > 0.0) System.out.println(String.format("Adaptive beam: extended %d of %d hypotheses (%.1f%%)", numExtended, numHypotheses, (numHypotheses > 0 ? 100.0 * numExtended / numHypotheses : 0.0)));
+		if (numRetried > 0) System.out.println("Retried " + numRetried + " lines with a wider beam, up to " + maxLineBeamSize);
 	}
 
 	private Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decodeSingleThread(int beamSize) {
-		Collection<BeamState> startStates = null;
-		double logJointProb = Double.NEGATIVE_INFINITY;
 		for (int d = 0; d < emissionModel.numSequences(); ++d) {
-			Tuple2<Double,Collection<BeamState>> logJointProbAndNextStartStates = doForwardPassLogSpace(d, beamSize, startStates);
-			logJointProb = logJointProbAndNextStartStates._1;
-			startStates = logJointProbAndNextStartStates._2;
-		}
-		
-		TransitionState[][] decodeStates = new TransitionState[emissionModel.numSequences()][];
-		int[][] decodeWidths = new int[emissionModel.numSequences()][];
-		TransitionState finalState = null;
-		for (int d = emissionModel.numSequences()-1; d >= 0; --d) {
-			Tuple2<Tuple2<TransitionState[],int[]>,TransitionState> statesAndWidthsAndNextFinalState = followBackpointers(d, finalState);
-			decodeStates[d] = statesAndWidthsAndNextFinalState._1._1;
-			decodeWidths[d] = statesAndWidthsAndNextFinalState._1._2;
-			finalState = statesAndWidthsAndNextFinalState._2;
+			doForwardPassLogSpace(d, beamSize, (d == 0 ? null : lineEndStartStates[d-1]), true);
 		}
-		return Tuple2(Tuple2(decodeStates, decodeWidths), logJointProb);
+		double logJointProb = chainLogJointProb(0, emissionModel.numSequences());
+		return Tuple2(followBackpointers(0, emissionModel.numSequences()), logJointProb);
 	}
 	
 	private Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decodeMultipleThreads(final int beamSize, int numThreads) {
@@ -101,23 +157,16 @@ public class BeamingSemiMarkovDPVarLineHeight {
 		final double[] logJointProb = new double[] {0.0};
 		{
 			BetterThreader.Function<Integer,Object> func = new BetterThreader.Function<Integer,Object>(){public void call(Integer b, Object ignore) {
-				double blockLogJointProb = Double.NEGATIVE_INFINITY;
-				Collection<BeamState> startStates = null;
-				for (int d=b*blockSize; d<(b+1)*blockSize; ++d) {
-					if (d < emissionModel.numSequences()) {
-						Tuple2<Double,Collection<BeamState>> logJointProbAndNextStartStates = doForwardPassLogSpace(d, beamSize, startStates);
-						blockLogJointProb = logJointProbAndNextStartStates._1;
-						startStates = logJointProbAndNextStartStates._2;
-					}
+				int blockStart = Math.min(b*blockSize, emissionModel.numSequences());
+				int blockEnd = Math.min((b+1)*blockSize, emissionModel.numSequences());
+				for (int d=blockStart; d<blockEnd; ++d) {
+					doForwardPassLogSpace(d, beamSize, (d == blockStart ? null : lineEndStartStates[d-1]), true);
 				}
-				TransitionState finalState = null;
-				for (int d=(b+1)*blockSize-1; d>=b*blockSize; --d) {
-					if (d < emissionModel.numSequences()) {
-						Tuple2<Tuple2<TransitionState[],int[]>,TransitionState> statesAndWidthsAndNextFinalState = followBackpointers(d, finalState);
-						decodeStates[d] = statesAndWidthsAndNextFinalState._1._1;
-						decodeWidths[d] = statesAndWidthsAndNextFinalState._1._2;
-						finalState = statesAndWidthsAndNextFinalState._2;
-					}
+				double blockLogJointProb = chainLogJointProb(blockStart, blockEnd);
+				Tuple2<TransitionState[][],int[][]> blockStatesAndWidths = followBackpointers(blockStart, blockEnd);
+				for (int d=blockStart; d<blockEnd; ++d) {
+					decodeStates[d] = blockStatesAndWidths._1[d-blockStart];
+					decodeWidths[d] = blockStatesAndWidths._2[d-blockStart];
 				}
 				synchronized (logJointProb) {
 					logJointProb[0] += blockLogJointProb;
@@ -132,23 +181,160 @@ public class BeamingSemiMarkovDPVarLineHeight {
 		return Tuple2(Tuple2(decodeStates, decodeWidths), logJointProb[0]);
 	}
 	
-	private Tuple2<Double,Collection<BeamState>> doForwardPassLogSpace(int d, int beamSize, Collection<BeamState> startStates) {
+	private Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decodeSpeculatively(final int beamSize, int numThreads) {
+		final int numSequences = emissionModel.numSequences();
+		final int blockSize = (int) Math.ceil(((double) numSequences) / ((double)numThreads));
+		final int numBlocks = (int) Math.ceil(((double) numSequences) / ((double)blockSize));
+		{
+			BetterThreader.Function<Integer,Object> func = new BetterThreader.Function<Integer,Object>(){public void call(Integer b, Object ignore) {
+				int blockStart = b*blockSize;
+				int blockEnd = Math.min((b+1)*blockSize, numSequences);
+				for (int d=blockStart; d<blockEnd; ++d) {
+					doForwardPassLogSpace(d, beamSize, (d == blockStart ? null : lineEndStartStates[d-1]), true);
+				}
+			}};
+			BetterThreader<Integer,Object> threader = new BetterThreader<Integer,Object>(func, numThreads);
+			for (int b=0; b<numBlocks; ++b) threader.addFunctionArgument(b);
+			threader.run();
+		}
+		
+		// A line decoded from the same (normalized) start states as before comes
+		// out the same, and so do the lines after it. A block re-decoded up to its
+		// end may hand the next block different start states, hence the rounds.
+		int numRounds = 0;
+		final int[] numRedecoded = new int[] {0};
+		while (true) {
+			final Map<Integer,Collection<StartState>> staleBlockStarts = new HashMap<Integer,Collection<StartState>>();
+			for (int b=1; b<numBlocks; ++b) {
+				Collection<StartState> startStates = lineEndStartStates[b*blockSize-1];
+				if (!sameStartStates(b*blockSize, startStates)) staleBlockStarts.put(b, startStates);
+			}
+			if (staleBlockStarts.isEmpty()) break;
+			numRounds++;
+			BetterThreader.Function<Integer,Object> func = new BetterThreader.Function<Integer,Object>(){public void call(Integer b, Object ignore) {
+				int blockStart = b*blockSize;
+				int blockEnd = Math.min((b+1)*blockSize, numSequences);
+				Collection<StartState> startStates = staleBlockStarts.get(b);
+				for (int d=blockStart; d<blockEnd; ++d) {
+					if (sameStartStates(d, startStates)) {
+						setStartStates(d, startStates);
+						break;
+					}
+					doForwardPassLogSpace(d, beamSize, startStates, false);
+					synchronized (numRedecoded) {
+						numRedecoded[0]++;
+					}
+					startStates = lineEndStartStates[d];
+				}
+			}};
+			BetterThreader<Integer,Object> threader = new BetterThreader<Integer,Object>(func, numThreads);
+			for (int b : staleBlockStarts.keySet()) threader.addFunctionArgument(b);
+			threader.run();
+		}
+		System.out.println();
+		System.out.println("Speculative decode: " + numBlocks + " blocks, " + numRedecoded[0] + " of " + numSequences + " lines re-decoded in " + numRounds + " rounds");
+		
+		double logJointProb = chainLogJointProb(0, numSequences);
+		return Tuple2(followBackpointers(0, numSequences), logJointProb);
+	}
+	
+	/**
+	 * The log joint probability of the best decode of lines from through to-1,
+	 * each line starting where the one before it ended. Lines are decoded from
+	 * start scores shifted to a maximum of zero, so the shifts are added back.
+	 */
+	private double chainLogJointProb(int from, int to) {
+		if (to <= from) return Double.NEGATIVE_INFINITY;
+		double logJointProb = 0.0;
+		for (int d=from; d<to; ++d) {
+			if (lineRestarted[d]) logJointProb = 0.0;
+			logJointProb += lineStartShifts[d];
+		}
+		return logJointProb + lineBestFinalScores[to-1];
+	}
+	
+	/**
+	 * Sets line d up to start from the previous line's end states (null or
+	 * empty for the transition model's start states), with the scores shifted
+	 * to a maximum of zero so that the line's decode does not depend on the
+	 * scores of the lines before it, only on their differences.
+	 */
+	private List<StartState> setStartStates(int d, Collection<StartState> previousLineEndStates) {
+		boolean restarted = (previousLineEndStates == null || previousLineEndStates.isEmpty());
+		Collection<StartState> unshiftedStartStates = (restarted ? addNullBackpointers(forwardTransitions.startStates()) : previousLineEndStates);
+		List<StartState> startStates = shiftedStartStates(unshiftedStartStates);
+		lineRestarted[d] = restarted;
+		lineStartShifts[d] = maxScore(unshiftedStartStates);
+		lineStartStates[d] = startStates;
+		// a backpointer to column 0 is the index of the start state, whose own backpointer is the previous line's final state
+		startBackPointers[d] = new TransitionState[startStates.size()];
+		for (int i=0; i<startStates.size(); ++i) {
+			startBackPointers[d][i] = startStates.get(i).previousFinalState;
+		}
+		return startStates;
+	}
+	
+	/**
+	 * Whether line d was decoded from these start states, up to a shift of
+	 * their scores, in which case decoding it again would change nothing.
+	 */
+	private boolean sameStartStates(int d, Collection<StartState> previousLineEndStates) {
+		boolean restarted = (previousLineEndStates == null || previousLineEndStates.isEmpty());
+		if (restarted != lineRestarted[d]) return false;
+		if (restarted) return true;
+		List<StartState> startStates = shiftedStartStates(previousLineEndStates);
+		List<StartState> decodedStartStates = lineStartStates[d];
+		if (startStates.size() != decodedStartStates.size()) return false;
+		for (int i=0; i<startStates.size(); ++i) {
+			if (startStates.get(i).transStateId != decodedStartStates.get(i).transStateId) return false;
+			if (startStates.get(i).score != decodedStartStates.get(i).score) return false;
+		}
+		return true;
+	}
+	
+	private static List<StartState> shiftedStartStates(Collection<StartState> unshiftedStartStates) {
+		double shift = maxScore(unshiftedStartStates);
+		List<StartState> startStates = new ArrayList<StartState>(unshiftedStartStates.size());
+		for (StartState unshiftedStartState : unshiftedStartStates) {
+			StartState startState = new StartState(unshiftedStartState.transStateId, unshiftedStartState.transState);
+			startState.score = unshiftedStartState.score - shift;
+			startState.previousFinalState = unshiftedStartState.previousFinalState;
+			startStates.add(startState);
+		}
+		return startStates;
+	}
+	
+	private static double maxScore(Collection<StartState> startStates) {
+		double maxScore = Double.NEGATIVE_INFINITY;
+		for (StartState startState : startStates) {
+			maxScore = Math.max(maxScore, startState.score);
+		}
+		return (maxScore == Double.NEGATIVE_INFINITY ? 0.0 : maxScore);
+	}
+	
+	private void doForwardPassLogSpace(int d, int beamSize, Collection<StartState> previousLineEndStates, boolean computeBetas) {
+		doForwardPassLogSpace(d, beamSize, beamThreshold, previousLineEndStates, computeBetas);
+	}
+
+	private void doForwardPassLogSpace(int d, int beamSize, double beamThreshold, Collection<StartState> previousLineEndStates, boolean computeBetas) {
 		System.out.print(".");
 		
 //		System.out.printf("Backward pass: %d%n", d);
-		doDenseCoarseBackwardPassLogSpace(d, betas[d]);
+		if (computeBetas) coarseBackwardPass.compute(emissionModel, d, betas[d]);
 		
 //		System.out.printf("Forward pass: %d%n", d);
-		for (GeneralPriorityQueue<BeamState> queue : alphas[d]) queue.clear();
+		alphas[d] = workspace.beams(d, emissionModel.sequenceLength(d)+1, beamSize);
+		lineBeamSizes[d] = beamSize;
+		lineNumExtended[d] = 0L;
+		lineNumHypotheses[d] = 0L;
+		List<StartState> startStates = setStartStates(d, previousLineEndStates);
 		for (int t=0; t<emissionModel.sequenceLength(d)+1; ++t) {
 			if (t == 0) {
-				if (startStates == null || startStates.isEmpty()) {
-					startStates = addNullBackpointers(forwardTransitionModel.startStates());
-					//if (startStates.isEmpty()) new EmptyBeamException("The forwardTransitionModel has no possible start states.");
-				}
-				for (BeamState startBeamState : startStates) {
-					TransitionState nextTs = startBeamState.transState;
-					double startLogProb = startBeamState.score;
+				//if (startStates.isEmpty()) new EmptyBeamException("The forwardTransitionModel has no possible start states.");
+				for (int startSlot=0; startSlot<startStates.size(); ++startSlot) {
+					StartState startState = startStates.get(startSlot);
+					TransitionState nextTs = startState.transState;
+					double startLogProb = startState.score;
 					if (startLogProb != Double.NEGATIVE_INFINITY) {
 						for (int w : emissionModel.allowedWidths(nextTs)) {
 							if (t + w < emissionModel.sequenceLength(d)+1) {
@@ -156,25 +342,31 @@ public class BeamingSemiMarkovDPVarLineHeight {
 								double emissionLogProb = emissionModel.logProb(d, t, nextTs, nextT-t);
 								double score = startLogProb + emissionLogProb;
 								if (score != Double.NEGATIVE_INFINITY) {
-									addToBeam(alphas[d][nextT], nextTs, score, betas[d][nextT][nextTs.getGlyphChar().templateCharIndex], new Tuple2<Integer,TransitionState>(0, startBeamState.backPointer._2), beamSize);
+									alphas[d][nextT].add(startState.transStateId, nextTs, score, betas[d][nextT][nextTs.getGlyphChar().templateCharIndex], 0, startSlot);
 								}
 							}
 						}
 					}
 				}
 			} else {
-				for (BeamState beamState : alphas[d][t].getObjects()) {
-					Collection<Tuple2<TransitionState,Double>> allowedTrans = beamState.transState.forwardTransitions();
-					for (Tuple2<TransitionState,Double> trans : allowedTrans) {
-						TransitionState nextTs = trans._1;
-						double transLogProb = trans._2;
+				PrimitiveBeam beam = alphas[d][t];
+				double rankCutoff = (beamThreshold > 0.0 ? beam.rankCutoff(beamThreshold, minBeamSize) : Double.NEGATIVE_INFINITY);
+				lineNumHypotheses[d] += beam.size();
+				for (int slot=0; slot<beam.size(); ++slot) {
+					if (beam.rankScore(slot) < rankCutoff) continue;
+					lineNumExtended[d]++;
+					double beamScore = beam.score(slot);
+					TransitionStateInterner.Successors allowedTrans = forwardTransitions.forwardTransitions(beam.stateId(slot), beam.state(slot));
+					for (int i=0; i<allowedTrans.size(); ++i) {
+						TransitionState nextTs = allowedTrans.states[i];
+						double transLogProb = allowedTrans.logProbs[i];
 						for (int w : emissionModel.allowedWidths(nextTs)) {
 							if (t + w < emissionModel.sequenceLength(d)+1) {
 								int nextT = t + w;
 								double emissionLogProb = emissionModel.logProb(d, t, nextTs, nextT-t);
-								double score = beamState.score + transLogProb + emissionLogProb;
+								double score = beamScore + transLogProb + emissionLogProb;
 								if (score != Double.NEGATIVE_INFINITY) {
-									addToBeam(alphas[d][nextT], nextTs, score, betas[d][nextT][nextTs.getGlyphChar().templateCharIndex], Tuple2(t, beamState.transState), beamSize);
+									alphas[d][nextT].add(allowedTrans.ids[i], nextTs, score, betas[d][nextT][nextTs.getGlyphChar().templateCharIndex], t, slot);
 								}
 							}
 						}
@@ -184,68 +376,76 @@ public class BeamingSemiMarkovDPVarLineHeight {
 		}
 		
 		double bestFinalScore = Double.NEGATIVE_INFINITY;
-		Map<TransitionState,BeamState> wrappedStartStatesMap = new HashMap<TransitionState,BeamState>();
-		for (BeamState endBeamState : alphas[d][emissionModel.sequenceLength(d)].getObjects()) {
-			double endScore = endBeamState.score + endBeamState.transState.endLogProb();
+		Map<TransitionState,StartState> wrappedStartStatesMap = new HashMap<TransitionState,StartState>();
+		PrimitiveBeam finalBeam = alphas[d][emissionModel.sequenceLength(d)];
+		for (int slot=0; slot<finalBeam.size(); ++slot) {
+			TransitionState endTs = finalBeam.state(slot);
+			double endScore = finalBeam.score(slot) + endTs.endLogProb();
 			if (endScore != Double.NEGATIVE_INFINITY) {
 				if (endScore > bestFinalScore) {
 					bestFinalScore = endScore;
 				}
-				for (Tuple2<TransitionState,Double> startTransitionPair : endBeamState.transState.nextLineStartStates()) {
-					double score = endScore + startTransitionPair._2;
+				TransitionStateInterner.Successors nextLineStartStates = forwardTransitions.nextLineStartStates(finalBeam.stateId(slot), endTs);
+				for (int i=0; i<nextLineStartStates.size(); ++i) {
+					double score = endScore + nextLineStartStates.logProbs[i];
 					if (score != Double.NEGATIVE_INFINITY) {
-						BeamState startBeamState = wrappedStartStatesMap.get(startTransitionPair._1);
-						if (startBeamState == null) {
-							startBeamState = new BeamState(startTransitionPair._1);
-							startBeamState.score = Double.NEGATIVE_INFINITY;
-							startBeamState.backPointer = new Tuple2<Integer, TransitionState>(-1, null);
-							wrappedStartStatesMap.put(startTransitionPair._1, startBeamState);
+						StartState startState = wrappedStartStatesMap.get(nextLineStartStates.states[i]);
+						if (startState == null) {
+							startState = new StartState(nextLineStartStates.ids[i], nextLineStartStates.states[i]);
+							wrappedStartStatesMap.put(nextLineStartStates.states[i], startState);
 						}
-						if (score > startBeamState.score) {
-							startBeamState.score = score;
-							startBeamState.backPointer = Tuple2(-1, endBeamState.transState);
+						if (score > startState.score) {
+							startState.score = score;
+							startState.previousFinalState = endTs;
 						}
 					}
 				}
 			}
 		}
-		Collection<BeamState> wrappedStartStates = new ArrayList<BeamState>();
-		for (Map.Entry<TransitionState, BeamState> entry : wrappedStartStatesMap.entrySet()) {
-			wrappedStartStates.add(entry.getValue());
+		if (bestFinalScore == Double.NEGATIVE_INFINITY && beamSize < maxBeamSize) {
+			// nothing made it to the end of the line, so try again with more room
+			int widerBeamSize = Math.min(2*beamSize, maxBeamSize);
+			System.out.print("(line " + d + ": retrying with beam size " + widerBeamSize + ")");
+			doForwardPassLogSpace(d, widerBeamSize, 2*beamThreshold, previousLineEndStates, false);
+			return;
 		}
+		// in id order, so that sameStartStates can compare them position by position whatever order the map holds them in
+		List<StartState> wrappedStartStates = new ArrayList<StartState>(wrappedStartStatesMap.values());
+		Collections.sort(wrappedStartStates, new Comparator<StartState>() {
+			public int compare(StartState s1, StartState s2) {
+				return Integer.compare(s1.transStateId, s2.transStateId);
+			}
+		});
 		
-		return Tuple2(bestFinalScore, wrappedStartStates);
+		lineBestFinalScores[d] = bestFinalScore;
+		lineEndStartStates[d] = wrappedStartStates;
 	}
 	
-	private static void addToBeam(GeneralPriorityQueue<BeamState> queue, TransitionState nextTs, double score, double forwardScore, Tuple2<Integer,TransitionState> backPointer, int beamSize) {
-		double priority = -(score+forwardScore);
-		if (queue.isEmpty() || priority < queue.getPriority()) {
-			BeamState key = new BeamState(nextTs);
-			if (queue.containsKey(key)) {
-				queue.decreasePriority(key, priority);
-			} else {
-				queue.setPriority(key, priority);
-			}
-			BeamState object = queue.getObject(key);
-			if (object.score < score) {
-				object.score = score;
-				object.backPointer = backPointer;
-			}
-			while (queue.size() > beamSize) {
-				queue.removeFirst(); 
-			}
+	private static Collection<StartState> addNullBackpointers(TransitionStateInterner.Successors without) {
+		List<StartState> with = new ArrayList<StartState>();
+		for (int i=0; i<without.size(); ++i) {
+			StartState startState = new StartState(without.ids[i], without.states[i]);
+			startState.score = without.logProbs[i];
+			with.add(startState);
 		}
+		return with;
 	}
-	
-	private static Collection<BeamState> addNullBackpointers(Collection<Tuple2<TransitionState,Double>> without) {
-		List<BeamState> with = new ArrayList<BeamState>();
-		for (Tuple2<TransitionState,Double> startPair : without) {
-			BeamState beamState = new BeamState(startPair._1);
-			beamState.score = startPair._2;
-			beamState.backPointer = Tuple2(-1, null);
-			with.add(beamState);
+
+	/**
+	 * The decoded states and widths of lines from through to-1, from the best
+	 * final state of the last one back.
+	 */
+	private Tuple2<TransitionState[][],int[][]> followBackpointers(int from, int to) {
+		TransitionState[][] decodeStates = new TransitionState[to-from][];
+		int[][] decodeWidths = new int[to-from][];
+		TransitionState finalState = null;
+		for (int d = to-1; d >= from; --d) {
+			Tuple2<Tuple2<TransitionState[],int[]>,TransitionState> statesAndWidthsAndNextFinalState = followBackpointers(d, finalState);
+			decodeStates[d-from] = statesAndWidthsAndNextFinalState._1._1;
+			decodeWidths[d-from] = statesAndWidthsAndNextFinalState._1._2;
+			finalState = statesAndWidthsAndNextFinalState._2;
 		}
-		return with;
+		return Tuple2(decodeStates, decodeWidths);
 	}
 
 	private Tuple2<Tuple2<TransitionState[],int[]>,TransitionState> followBackpointers(int d, TransitionState finalTs) {
@@ -254,38 +454,38 @@ public class BeamingSemiMarkovDPVarLineHeight {
 		TransitionState nextFinalTs = null;
 		
 		try {
-		TransitionState bestFinalTs = null;
+		PrimitiveBeam finalBeam = alphas[d][emissionModel.sequenceLength(d)];
+		int bestFinalSlot = -1;
 		if (finalTs == null) {
 			double bestFinalScore = Double.NEGATIVE_INFINITY;
-			Collection<BeamState> possibleBeamStates = alphas[d][emissionModel.sequenceLength(d)].getObjects();
-			if (possibleBeamStates.isEmpty()) throw new EmptyBeamException("No possible final states found for this line. Consider increasing -beamSize.");
-			for (BeamState beamState : possibleBeamStates) {
-				double score = beamState.score + beamState.transState.endLogProb();
+			if (finalBeam.size() == 0) throw new EmptyBeamException("No possible final states found for this line. Consider increasing -beamSize or -maxBeamSize.");
+			for (int slot=0; slot<finalBeam.size(); ++slot) {
+				double score = finalBeam.score(slot) + finalBeam.state(slot).endLogProb();
 				if (score > bestFinalScore) {
 					bestFinalScore = score;
-					bestFinalTs = beamState.transState;
+					bestFinalSlot = slot;
 				}
 			}
-			if (bestFinalTs == null) throw new EmptyBeamException("No final-state possibilities with non-zero probabilities for this line. Consider increasing -beamSize.");
+			if (bestFinalSlot < 0) throw new EmptyBeamException("No final-state possibilities with non-zero probabilities for this line. Consider increasing -beamSize or -maxBeamSize.");
 		} else {
-			bestFinalTs = finalTs;
+			bestFinalSlot = finalBeam.slotOf(forwardTransitions.id(finalTs));
+			if (bestFinalSlot < 0) throw new EmptyBeamException("The next line's start state does not follow any final state of this line.");
 		}
 
 		int currentT = emissionModel.sequenceLength(d);
-		TransitionState currentTs = bestFinalTs;
+		int currentSlot = bestFinalSlot;
 		//System.out.print("Line "+d+"   Backward decode: ");
 		while (true) {
-			if (currentTs == null) throw new EmptyBeamException("No current-state possiblities with non-zero probabilities when following backpointers. Consider increasing -beamSize.");
-			Tuple2<Integer,TransitionState> backpointer = alphas[d][currentT].getObject(new BeamState(currentTs)).backPointer;
-			int width =  currentT - backpointer._1;
-			transStateDecodeList.add(currentTs);
+			PrimitiveBeam beam = alphas[d][currentT];
+			int backPointerColumn = beam.backPointerColumn(currentSlot);
+			int width =  currentT - backPointerColumn;
+			transStateDecodeList.add(beam.state(currentSlot));
 			widthsDecodeList.add(width);
-			currentT = backpointer._1;
-			currentTs = backpointer._2;
-			//System.out.println("Horizontal pixel "+currentT+", character ["+emissionModel.getCharIndexer().getObject(currentTs.getCharIndex())+"]");
-			//System.out.print(currentTs != null ? emissionModel.getCharIndexer().getObject(currentTs.getCharIndex()) : "#" );
+			currentSlot = beam.backPointerSlot(currentSlot);
+			currentT = backPointerColumn;
+			//System.out.println("Horizontal pixel "+currentT+", character ["+emissionModel.getCharIndexer().getObject(beam.state(currentSlot).getCharIndex())+"]");
 			if (currentT == 0) {
-				nextFinalTs = currentTs;
+				nextFinalTs = startBackPointers[d][currentSlot];
 				break;
 			}
 		}
@@ -302,32 +502,4 @@ public class BeamingSemiMarkovDPVarLineHeight {
 		return Tuple2(Tuple2(transStateDecodeList.toArray(new TransitionState[0]), widthsDecode), nextFinalTs);
 	}
 	
-	private void doDenseCoarseBackwardPassLogSpace(int d, double[][] betas) {
-		int numChars = emissionModel.numChars();
-		for (int t=emissionModel.sequenceLength(d); t>=0; --t) {
-			Arrays.fill(betas[t], Double.NEGATIVE_INFINITY);
-			if (t==emissionModel.sequenceLength(d)) {
-				for (int c=0; c<numChars; ++c) {
-					betas[t][c] = backwardTransitionModel.endLogProb(c);
-				}
-			} else {
-				for (int nextC=0; nextC<numChars; ++nextC) {
-					double betaWithoutTrans = Double.NEGATIVE_INFINITY;
-					int[] allowedWidths = emissionModel.allowedWidths(nextC);
-					for (int w : allowedWidths) {
-						if (t + w <= emissionModel.sequenceLength(d)) {
-							double emissionLogProb = emissionModel.logProb(d, t, nextC, w);
-							betaWithoutTrans = Math.max(betaWithoutTrans, emissionLogProb + betas[t+w][nextC]);
-						}
-					}
-					double[] betasCol = betas[t];
-					double[] logTransProbs = backwardTransitionModel.backwardTransitions(nextC);
-					for (int c=0; c<numChars; ++c) {
-						betasCol[c] = Math.max(betasCol[c], logTransProbs[c] + betaWithoutTrans);
-					}
-				}
-			}
-		}
-	}
-	
 }
@@ -0,0 +1,171 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import edu.berkeley.cs.nlp.ocular.image.BitPackedLine;
+import gpu.CudaUtil;
+
+/**
+ * CPU engine for the emission cache inner loop that works directly on
+ * bit-packed lines.
+ *
+ * Each template's white and black log probabilities are quantized to
+ * numBits-bit integers relative to the template's own minimum and range,
+ * and stored as numBits bit planes with the same column/word layout as
+ * BitPackedLine. Since the observations are 0/1, the dot product of a
+ * plane with a window of the line is a popcount of the AND of the words,
+ * and the template score is recovered as
+ *
+ *   min * (number of pixels) + scale * sum_b 2^b * popcount(plane_b & pixels)
+ *
+ * separately for the white and the black pixels. With the default 8 bits the
+ * per-pixel quantization error is at most half a percent of the template's
+ * log-probability range.
+ */
+public class BitPackedInnerLoopVarLineHeight implements EmissionCacheInnerLoopVarLineHeight {
+
+	public static final int DEFAULT_NUM_BITS = 8;
+
+	int numThreads;
+	int numBits;
+	int[] templateNumIndices;
+	int[] templateIndicesOffsets;
+	int maxTemplateWidth;
+	int minTemplateWidth;
+	int lineHeight;
+	int wordsPerColumn;
+	long[][] whitePlanes;
+	long[][] blackPlanes;
+	float[][] whiteMins;
+	float[][] whiteScales;
+	float[][] blackMins;
+	float[][] blackScales;
+
+	public BitPackedInnerLoopVarLineHeight(int numThreads) {
+		this(numThreads, DEFAULT_NUM_BITS);
+	}
+
+	public BitPackedInnerLoopVarLineHeight(int numThreads, int numBits) {
+		if (numBits < 1 || numBits > 24) throw new IllegalArgumentException("numBits must be in [1,24], was " + numBits);
+		this.numThreads = numThreads;
+		this.numBits = numBits;
+	}
+
+	public void startup(float[][] whiteTemplates, float[][] blackTemplates, int[] templateNumIndices, int[] templateIndicesOffsets, int minTemplateWidth, int maxTemplateWidth, int maxSequenceLength, int totalTemplateNumIndices, int lineHeight) {
+		this.templateNumIndices = templateNumIndices;
+		this.templateIndicesOffsets = templateIndicesOffsets;
+		this.maxTemplateWidth = maxTemplateWidth;
+		this.minTemplateWidth = minTemplateWidth;
+		this.lineHeight = lineHeight;
+		this.wordsPerColumn = BitPackedLine.wordsPerColumn(lineHeight);
+
+		int numTemplateWidths = (maxTemplateWidth-minTemplateWidth)+1;
+		this.whitePlanes = new long[numTemplateWidths][];
+		this.blackPlanes = new long[numTemplateWidths][];
+		this.whiteMins = new float[numTemplateWidths][];
+		this.whiteScales = new float[numTemplateWidths][];
+		this.blackMins = new float[numTemplateWidths][];
+		this.blackScales = new float[numTemplateWidths][];
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			whitePlanes[tw-minTemplateWidth] = new long[numIndices*numBits*tw*wordsPerColumn];
+			blackPlanes[tw-minTemplateWidth] = new long[numIndices*numBits*tw*wordsPerColumn];
+			whiteMins[tw-minTemplateWidth] = new float[numIndices];
+			whiteScales[tw-minTemplateWidth] = new float[numIndices];
+			blackMins[tw-minTemplateWidth] = new float[numIndices];
+			blackScales[tw-minTemplateWidth] = new float[numIndices];
+			for (int i=0; i<numIndices; ++i) {
+				quantize(whiteTemplates[tw-minTemplateWidth], i, tw, whitePlanes[tw-minTemplateWidth], whiteMins[tw-minTemplateWidth], whiteScales[tw-minTemplateWidth]);
+				quantize(blackTemplates[tw-minTemplateWidth], i, tw, blackPlanes[tw-minTemplateWidth], blackMins[tw-minTemplateWidth], blackScales[tw-minTemplateWidth]);
+			}
+		}
+	}
+
+	private void quantize(float[] templates, int i, int tw, long[] planes, float[] mins, float[] scales) {
+		int templateLength = tw*lineHeight;
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for (int j=0; j<templateLength; ++j) {
+			min = Math.min(min, templates[i*templateLength+j]);
+			max = Math.max(max, templates[i*templateLength+j]);
+		}
+		int maxLevel = (1 << numBits) - 1;
+		float scale = (max > min) ? (max - min) / maxLevel : 0.0f;
+		mins[i] = min;
+		scales[i] = scale;
+		if (scale == 0.0f) return;
+		for (int k=0; k<tw; ++k) {
+			for (int j=0; j<lineHeight; ++j) {
+				int level = Math.round((templates[i*templateLength + k*lineHeight + j] - min) / scale);
+				int word = k*wordsPerColumn + (j >>> 6);
+				long bit = 1L << (j & 63);
+				for (int b=0; b<numBits; ++b) {
+					if ((level & (1 << b)) != 0) planes[(i*numBits + b)*tw*wordsPerColumn + word] |= bit;
+				}
+			}
+		}
+	}
+
+	public void shutdown() {
+		this.whitePlanes = null;
+		this.blackPlanes = null;
+	}
+
+	public void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength) {
+		compute(scores, new BitPackedLine(whiteObservations, blackObservations, sequenceLength, lineHeight));
+	}
+
+	public void compute(final float[] scores, final BitPackedLine observations) {
+		int sequenceLength = observations.sequenceLength();
+		long[] whiteObservations = observations.whiteWords();
+		long[] blackObservations = observations.blackWords();
+		int[] whiteCounts = new int[sequenceLength+1];
+		int[] blackCounts = new int[sequenceLength+1];
+		for (int t=0; t<sequenceLength; ++t) {
+			whiteCounts[t+1] = whiteCounts[t] + observations.numWhite(t);
+			blackCounts[t+1] = blackCounts[t] + observations.numBlack(t);
+		}
+
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			if (numIndices == 0) continue;
+			long[] whitePlanesForWidth = whitePlanes[tw-minTemplateWidth];
+			long[] blackPlanesForWidth = blackPlanes[tw-minTemplateWidth];
+			float[] whiteMinsForWidth = whiteMins[tw-minTemplateWidth];
+			float[] whiteScalesForWidth = whiteScales[tw-minTemplateWidth];
+			float[] blackMinsForWidth = blackMins[tw-minTemplateWidth];
+			float[] blackScalesForWidth = blackScales[tw-minTemplateWidth];
+			int scoresOffset = templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength;
+			int windowWords = tw*wordsPerColumn;
+			for (int t=0; t<(sequenceLength-tw)+1; ++t) {
+				int base = t*wordsPerColumn;
+				int numWhite = whiteCounts[t+tw] - whiteCounts[t];
+				int numBlack = blackCounts[t+tw] - blackCounts[t];
+				for (int i=0; i<numIndices; ++i) {
+					long whiteSum = 0L;
+					long blackSum = 0L;
+					for (int b=0; b<numBits; ++b) {
+						int planeBase = (i*numBits + b)*windowWords;
+						int whitePop = 0;
+						int blackPop = 0;
+						for (int k=0; k<windowWords; ++k) {
+							whitePop += Long.bitCount(whiteObservations[base+k] & whitePlanesForWidth[planeBase+k]);
+							blackPop += Long.bitCount(blackObservations[base+k] & blackPlanesForWidth[planeBase+k]);
+						}
+						whiteSum += ((long) whitePop) << b;
+						blackSum += ((long) blackPop) << b;
+					}
+					float score = whiteMinsForWidth[i]*numWhite + whiteScalesForWidth[i]*whiteSum + blackMinsForWidth[i]*numBlack + blackScalesForWidth[i]*blackSum;
+					scores[scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, t, i)] += score;
+				}
+			}
+		}
+	}
+
+	public int numOuterThreads() {
+		return numThreads;
+	}
+
+	public int numPopulateThreads() {
+		return 1;
+	}
+
+}
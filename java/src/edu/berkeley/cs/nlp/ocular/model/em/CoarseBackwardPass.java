@@ -0,0 +1,130 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import edu.berkeley.cs.nlp.ocular.model.emission.EmissionModelVarLineHeight;
+
+/**
+ * The dense coarse backward pass of the beaming decoder: for every column of a
+ * line and every character, a bound on the best log probability of the rest
+ * of the line given that the character ends at the column, under the bigram
+ * backward transitions and the emission model's logProbBound(). The beam adds
+ * it to a candidate's score to rank it.
+ *
+ * The pass runs in float. The transitions are copied once into float rows, one
+ * per following character, and the max-plus update of a column is a
+ * Math.max over a whole row, a loop shape the JIT vectorizes (it does not
+ * when the rows are flattened into one array). A following character that
+ * cannot start at the column (all of its emission bounds are -infinity, as
+ * they are wherever the emission cache pruned it) is skipped outright.
+ *
+ * With topK, each row keeps its k most probable preceding characters, and
+ * the others share the row's largest dropped log probability, so a column
+ * takes O(numChars * k) instead of O(numChars^2). The bounds only get looser,
+ * never tighter, so they stay bounds.
+ */
+public class CoarseBackwardPass {
+
+	private final int numChars;
+	private final float[] endLogProbs;
+	private final float[][] transitions;
+	private final int[][] topKChars;
+	private final float[][] topKLogProbs;
+	private final float[] droppedLogProbs;
+
+	/**
+	 * @param topK	The most probable preceding characters to keep per
+	 * 				following character, 0 to keep them all.
+	 */
+	public CoarseBackwardPass(DenseBigramTransitionModel backwardTransitionModel, int numChars, int topK) {
+		if (topK < 0) throw new RuntimeException("Backward pass top-k must not be negative, got " + topK);
+		this.numChars = numChars;
+		this.endLogProbs = new float[numChars];
+		for (int c=0; c<numChars; ++c) {
+			endLogProbs[c] = (float) backwardTransitionModel.endLogProb(c);
+		}
+		if (topK == 0 || topK >= numChars) {
+			this.transitions = new float[numChars][numChars];
+			for (int nextC=0; nextC<numChars; ++nextC) {
+				double[] logTransProbs = backwardTransitionModel.backwardTransitions(nextC);
+				for (int c=0; c<numChars; ++c) {
+					transitions[nextC][c] = (float) logTransProbs[c];
+				}
+			}
+			this.topKChars = null;
+			this.topKLogProbs = null;
+			this.droppedLogProbs = null;
+		} else {
+			this.transitions = null;
+			this.topKChars = new int[numChars][topK];
+			this.topKLogProbs = new float[numChars][topK];
+			this.droppedLogProbs = new float[numChars];
+			Integer[] order = new Integer[numChars];
+			for (int nextC=0; nextC<numChars; ++nextC) {
+				final double[] logTransProbs = backwardTransitionModel.backwardTransitions(nextC);
+				for (int c=0; c<numChars; ++c) order[c] = c;
+				Arrays.sort(order, new Comparator<Integer>() {public int compare(Integer c1, Integer c2) {
+					return Double.compare(logTransProbs[c2], logTransProbs[c1]);
+				}});
+				for (int i=0; i<topK; ++i) {
+					topKChars[nextC][i] = order[i];
+					topKLogProbs[nextC][i] = (float) logTransProbs[order[i]];
+				}
+				droppedLogProbs[nextC] = (float) logTransProbs[order[topK]];
+			}
+		}
+	}
+
+	/**
+	 * Fills betas[t][c] for every column t (0 through the line's length) and
+	 * character c of line d.
+	 */
+	public void compute(EmissionModelVarLineHeight emissionModel, int d, float[][] betas) {
+		int sequenceLength = emissionModel.sequenceLength(d);
+		float[] betasWithoutTrans = new float[numChars];
+		System.arraycopy(endLogProbs, 0, betas[sequenceLength], 0, numChars);
+		for (int t=sequenceLength-1; t>=0; --t) {
+			for (int nextC=0; nextC<numChars; ++nextC) {
+				float betaWithoutTrans = Float.NEGATIVE_INFINITY;
+				for (int w : emissionModel.allowedWidths(nextC)) {
+					if (t + w <= sequenceLength) {
+						betaWithoutTrans = Math.max(betaWithoutTrans, emissionModel.logProbBound(d, t, nextC, w) + betas[t+w][nextC]);
+					}
+				}
+				betasWithoutTrans[nextC] = betaWithoutTrans;
+			}
+			float[] betasCol = betas[t];
+			Arrays.fill(betasCol, Float.NEGATIVE_INFINITY);
+			if (transitions != null) {
+				for (int nextC=0; nextC<numChars; ++nextC) {
+					float betaWithoutTrans = betasWithoutTrans[nextC];
+					if (betaWithoutTrans == Float.NEGATIVE_INFINITY) continue;
+					float[] logTransProbs = transitions[nextC];
+					for (int c=0; c<numChars; ++c) {
+						betasCol[c] = Math.max(betasCol[c], logTransProbs[c] + betaWithoutTrans);
+					}
+				}
+			} else {
+				float droppedBeta = Float.NEGATIVE_INFINITY;
+				for (int nextC=0; nextC<numChars; ++nextC) {
+					float betaWithoutTrans = betasWithoutTrans[nextC];
+					if (betaWithoutTrans == Float.NEGATIVE_INFINITY) continue;
+					droppedBeta = Math.max(droppedBeta, droppedLogProbs[nextC] + betaWithoutTrans);
+					int[] chars = topKChars[nextC];
+					float[] logTransProbs = topKLogProbs[nextC];
+					for (int i=0; i<chars.length; ++i) {
+						float beta = logTransProbs[i] + betaWithoutTrans;
+						if (beta > betasCol[chars[i]]) betasCol[chars[i]] = beta;
+					}
+				}
+				if (droppedBeta != Float.NEGATIVE_INFINITY) {
+					for (int c=0; c<numChars; ++c) {
+						if (droppedBeta > betasCol[c]) betasCol[c] = droppedBeta;
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The beams and coarse backward bounds of the beaming decoder, kept from one
+ * decode to the next so that a batch reuses the buffers of the batch before
+ * it rather than allocating its own. There is a slot per line of the batch,
+ * since the decoder follows backpointers across all of its lines at the end;
+ * a slot is grown to the longest line it has held, to the widest beam size
+ * and to a new character count, and never shrunk.
+ *
+ * Workspaces are pooled: a decode acquires one and releases it when done, so
+ * that batches, documents and concurrent decodes (each holding its own)
+ * share the buffers between them. The pool only holds released workspaces
+ * softly, so the collector can take them back under memory pressure.
+ *
+ * Growing the number of slots is not thread-safe; once there are enough, the
+ * slots of different lines may be used from different threads.
+ */
+public class DecoderWorkspace {
+
+	private static final Deque<SoftReference<DecoderWorkspace>> pool = new ArrayDeque<SoftReference<DecoderWorkspace>>();
+
+	/**
+	 * A released workspace if the collector has left one, else a new one.
+	 */
+	public static DecoderWorkspace acquire() {
+		synchronized (pool) {
+			while (!pool.isEmpty()) {
+				DecoderWorkspace workspace = pool.pop().get();
+				if (workspace != null) return workspace;
+			}
+		}
+		return new DecoderWorkspace();
+	}
+
+	public static void release(DecoderWorkspace workspace) {
+		synchronized (pool) {
+			pool.push(new SoftReference<DecoderWorkspace>(workspace));
+		}
+	}
+
+	private PrimitiveBeam[][] beams;
+	private float[][][] betas;
+
+	public DecoderWorkspace() {
+		this.beams = new PrimitiveBeam[0][];
+		this.betas = new float[0][][];
+	}
+
+	/**
+	 * Makes sure there are slots for lines 0 through numLines-1.
+	 */
+	public void ensureNumLines(int numLines) {
+		if (numLines > beams.length) {
+			PrimitiveBeam[][] grownBeams = new PrimitiveBeam[numLines][];
+			float[][][] grownBetas = new float[numLines][][];
+			System.arraycopy(beams, 0, grownBeams, 0, beams.length);
+			System.arraycopy(betas, 0, grownBetas, 0, betas.length);
+			beams = grownBeams;
+			betas = grownBetas;
+		}
+	}
+
+	/**
+	 * At least numColumns beams of the given size for line d, cleared. A beam
+	 * is only replaced when it cannot hold beamSize entries, so that after a
+	 * wider retry the line's beams keep the larger capacity and serve the
+	 * normal beam size again. There may be more beams than columns.
+	 */
+	public PrimitiveBeam[] beams(int d, int numColumns, int beamSize) {
+		PrimitiveBeam[] lineBeams = beams[d];
+		if (lineBeams == null || lineBeams.length < numColumns) {
+			PrimitiveBeam[] grown = new PrimitiveBeam[numColumns];
+			if (lineBeams != null) System.arraycopy(lineBeams, 0, grown, 0, lineBeams.length);
+			lineBeams = grown;
+			beams[d] = lineBeams;
+		}
+		for (int t=0; t<numColumns; ++t) {
+			if (lineBeams[t] == null || lineBeams[t].capacity() < beamSize) lineBeams[t] = new PrimitiveBeam(beamSize);
+			else lineBeams[t].clear(beamSize);
+		}
+		return lineBeams;
+	}
+
+	/**
+	 * At least numColumns rows of numChars backward bounds for line d, with
+	 * whatever they held before. There may be more rows than columns.
+	 */
+	public float[][] betas(int d, int numColumns, int numChars) {
+		float[][] lineBetas = betas[d];
+		if (lineBetas == null || lineBetas.length < numColumns || (lineBetas.length > 0 && lineBetas[0].length != numChars)) {
+			lineBetas = new float[numColumns][numChars];
+			betas[d] = lineBetas;
+		}
+		return lineBetas;
+	}
+
+}
@@ -1,5 +1,6 @@
 package edu.berkeley.cs.nlp.ocular.model.em;
 
+import edu.berkeley.cs.nlp.ocular.image.BitPackedLine;
 import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
 import gpu.CudaUtil;
 
@@ -35,11 +36,24 @@ public class DefaultInnerLoopVarLineHeight implements EmissionCacheInnerLoopVarL
 	}
 
 	public void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength) {
+		compute(scores, whiteObservations, blackObservations, sequenceLength, null);
+	}
+
+	public void compute(final float[] scores, final BitPackedLine observations, final boolean[] pruned) {
+		int numPixels = observations.sequenceLength()*observations.lineHeight();
+		float[] whiteObservations = new float[numPixels];
+		float[] blackObservations = new float[numPixels];
+		observations.unpack(whiteObservations, blackObservations);
+		compute(scores, whiteObservations, blackObservations, observations.sequenceLength(), pruned);
+	}
+
+	private void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength, final boolean[] pruned) {
 		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
 			float[] whiteTemplatesForWidth = whiteTemplates[tw-minTemplateWidth];
 			float[] blackTemplateForWidth = blackTemplates[tw-minTemplateWidth];
 			for (int t=0; t<(sequenceLength-tw)+1; ++t) {
 				for (int i=0; i<templateNumIndices[tw-minTemplateWidth]; ++i) {
+					if (pruned != null && pruned[templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength + CudaUtil.flatten(sequenceLength, templateNumIndices[tw-minTemplateWidth], t, i)]) continue;
 					float score = 0.0f;
 					for (int j=0; j<tw*lineHeight; ++j) {
 						score += whiteObservations[t*lineHeight+j] * whiteTemplatesForWidth[i*tw*lineHeight+j];
@@ -49,6 +63,7 @@ public class DefaultInnerLoopVarLineHeight implements EmissionCacheInnerLoopVarL
 			}
 			for (int t=0; t<(sequenceLength-tw)+1; ++t) {
 				for (int i=0; i<templateNumIndices[tw-minTemplateWidth]; ++i) {
+					if (pruned != null && pruned[templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength + CudaUtil.flatten(sequenceLength, templateNumIndices[tw-minTemplateWidth], t, i)]) continue;
 					float score = 0.0f;
 					for (int j=0; j<tw*lineHeight; ++j) {
 						score += blackObservations[t*lineHeight+j] * blackTemplateForWidth[i*tw*lineHeight+j];
@@ -0,0 +1,113 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import java.util.Random;
+
+import edu.berkeley.cs.nlp.ocular.image.BitPackedLine;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
+import threading.BetterThreader;
+
+/**
+ * Times emission cache engines on a synthetic batch, for picking the fastest
+ * engine and thread count on the machine at hand.
+ *
+ * The synthetic templates are laid out the way the caching emission models
+ * hand them over: per template width, every (char, exposure) with its
+ * 2*MAX_OFFSET+1 vertical offsets in a row, each offset being the offset-0
+ * template with its rows shifted and clamped. The synthetic lines have about
+ * as much ink as a printed line, so the engines that only walk the black
+ * pixels are timed fairly.
+ */
+public class EmissionCacheInnerLoopCalibration {
+
+	private static final int NUM_CHARS = 3;
+	private static final int SEQUENCE_LENGTH = 120;
+	private static final float INK_FRACTION = 0.15f;
+	private static final int NUM_WARM_UP_LINES = 3;
+
+	private final int lineHeight;
+	private final int minTemplateWidth;
+	private final int maxTemplateWidth;
+	private final float[][] whiteTemplates;
+	private final float[][] blackTemplates;
+	private final int[] templateNumIndices;
+	private final int[] templateIndicesOffsets;
+	private final int totalTemplateNumIndices;
+	private final BitPackedLine line;
+
+	public EmissionCacheInnerLoopCalibration(int lineHeight) {
+		this.lineHeight = lineHeight;
+		this.minTemplateWidth = Math.max(1, lineHeight/3);
+		this.maxTemplateWidth = Math.max(minTemplateWidth, lineHeight/2);
+		Random rand = new Random(0);
+
+		int numOffsets = 2*CharacterTemplateVarLineHeight.MAX_OFFSET+1;
+		int numExposures = CharacterTemplateVarLineHeight.EXP_GAINS.length;
+		int numTemplateWidths = (maxTemplateWidth-minTemplateWidth)+1;
+		this.whiteTemplates = new float[numTemplateWidths][];
+		this.blackTemplates = new float[numTemplateWidths][];
+		this.templateNumIndices = new int[numTemplateWidths];
+		this.templateIndicesOffsets = new int[numTemplateWidths];
+		int total = 0;
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int numIndices = NUM_CHARS*numExposures*numOffsets;
+			float[] white = new float[numIndices*tw*lineHeight];
+			float[] black = new float[numIndices*tw*lineHeight];
+			for (int g=0; g<NUM_CHARS*numExposures; ++g) {
+				float[][] blackProbs = new float[tw][lineHeight];
+				for (int k=0; k<tw; ++k) {
+					for (int j=0; j<lineHeight; ++j) blackProbs[k][j] = 0.01f + 0.98f*rand.nextFloat();
+				}
+				for (int o=0; o<numOffsets; ++o) {
+					int offset = o-CharacterTemplateVarLineHeight.MAX_OFFSET;
+					int base = (g*numOffsets + o)*tw*lineHeight;
+					for (int k=0; k<tw; ++k) {
+						for (int j=0; j<lineHeight; ++j) {
+							float p = blackProbs[k][Math.min(lineHeight-1, Math.max(0, j+offset))];
+							white[base + k*lineHeight + j] = (float) Math.log(1.0 - p);
+							black[base + k*lineHeight + j] = (float) Math.log(p);
+						}
+					}
+				}
+			}
+			whiteTemplates[tw-minTemplateWidth] = white;
+			blackTemplates[tw-minTemplateWidth] = black;
+			templateNumIndices[tw-minTemplateWidth] = numIndices;
+			templateIndicesOffsets[tw-minTemplateWidth] = total;
+			total += numIndices;
+		}
+		this.totalTemplateNumIndices = total;
+
+		float[] whiteObservations = new float[SEQUENCE_LENGTH*lineHeight];
+		float[] blackObservations = new float[SEQUENCE_LENGTH*lineHeight];
+		for (int k=0; k<whiteObservations.length; ++k) {
+			if (rand.nextFloat() < INK_FRACTION) blackObservations[k] = 1.0f;
+			else whiteObservations[k] = 1.0f;
+		}
+		this.line = new BitPackedLine(whiteObservations, blackObservations, SEQUENCE_LENGTH, lineHeight);
+	}
+
+	/**
+	 * Seconds per line for the engine to score a batch of two lines per
+	 * outer thread, after a few untimed lines to let the JIT settle.
+	 */
+	public double secondsPerLine(final EmissionCacheInnerLoopVarLineHeight innerLoop) {
+		innerLoop.startup(whiteTemplates, blackTemplates, templateNumIndices, templateIndicesOffsets, minTemplateWidth, maxTemplateWidth, SEQUENCE_LENGTH, totalTemplateNumIndices, lineHeight);
+		try {
+			float[] warmUpScores = new float[SEQUENCE_LENGTH*totalTemplateNumIndices];
+			for (int i=0; i<NUM_WARM_UP_LINES; ++i) innerLoop.compute(warmUpScores, line);
+			int numLines = 2*innerLoop.numOuterThreads();
+			BetterThreader.Function<Integer,float[]> func = new BetterThreader.Function<Integer,float[]>(){public void call(Integer d, float[] scores){
+				innerLoop.compute(scores, line);
+			}};
+			BetterThreader<Integer,float[]> threader = new BetterThreader<Integer,float[]>(func, innerLoop.numOuterThreads());
+			for (int d=0; d<numLines; ++d) threader.addFunctionArgument(d);
+			for (int t=0; t<innerLoop.numOuterThreads(); ++t) threader.setThreadArgument(t, new float[SEQUENCE_LENGTH*totalTemplateNumIndices]);
+			long nanoTime = System.nanoTime();
+			threader.run();
+			return (System.nanoTime() - nanoTime) / 1e9 / numLines;
+		} finally {
+			innerLoop.shutdown();
+		}
+	}
+
+}
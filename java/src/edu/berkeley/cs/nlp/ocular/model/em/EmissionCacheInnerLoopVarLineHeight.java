@@ -1,5 +1,7 @@
 package edu.berkeley.cs.nlp.ocular.model.em;
 
+import edu.berkeley.cs.nlp.ocular.image.BitPackedLine;
+
 /**
  * @author Taylor Berg-Kirkpatrick (tberg@eecs.berkeley.edu)
  */
@@ -9,4 +11,27 @@ public interface EmissionCacheInnerLoopVarLineHeight {
 	public void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength);
 	public int numOuterThreads();
 	public int numPopulateThreads();
+
+	/**
+	 * Score a bit-packed line. Engines that work on the dense float planes
+	 * get them unpacked here; engines that can use the packed words directly
+	 * override this.
+	 */
+	public default void compute(final float[] scores, final BitPackedLine observations) {
+		int numPixels = observations.sequenceLength()*observations.lineHeight();
+		float[] whiteObservations = new float[numPixels];
+		float[] blackObservations = new float[numPixels];
+		observations.unpack(whiteObservations, blackObservations);
+		compute(scores, whiteObservations, blackObservations, observations.sequenceLength());
+	}
+
+	/**
+	 * Score a bit-packed line, except that the (position, template) scores
+	 * flagged in pruned, which is laid out like scores, may be left out since
+	 * the caller will not read them. Engines that cannot skip single scores
+	 * score everything.
+	 */
+	public default void compute(final float[] scores, final BitPackedLine observations, final boolean[] pruned) {
+		compute(scores, observations);
+	}
 }
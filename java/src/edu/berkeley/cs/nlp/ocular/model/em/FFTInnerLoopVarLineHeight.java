@@ -0,0 +1,351 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
+import gpu.CudaUtil;
+
+/**
+ * CPU engine for the emission cache inner loop that scores wide templates by
+ * FFT cross-correlation.
+ *
+ * The score of a template at every position of a line is, row by row, a
+ * 1-D cross-correlation of a template row with a line row, summed over the
+ * rows. The line is cut into overlapping blocks of fftLength columns
+ * (overlap-save), and each row of a block is transformed once, with the white
+ * and black planes packed into a single complex FFT. A template is then scored
+ * against the whole block with 2*lineHeight complex multiply-adds per
+ * frequency, plus one inverse FFT for every two templates. The cost per
+ * position no longer grows with the template width, so this wins for wide
+ * templates on tall lines. Each width is scored either this way or with a
+ * direct loop, whichever the cost model below predicts to be cheaper for the
+ * line at hand.
+ *
+ * Template spectra are computed at startup. When the templates of a width
+ * come in groups of 2*MAX_OFFSET+1 vertical offsets that are row-shifted
+ * copies of each other (as the emission models hand them over), only the
+ * offset-0 spectra are kept, and the offsets are scored by reading its rows
+ * shifted.
+ */
+public class FFTInnerLoopVarLineHeight implements EmissionCacheInnerLoopVarLineHeight {
+
+	private static final int NUM_OFFSETS = 2*CharacterTemplateVarLineHeight.MAX_OFFSET+1;
+	private static final int MIN_FFT_LENGTH = 64;
+
+	// rough flop counts for the cost model: a real multiply-add, a complex multiply-add, and an FFT butterfly
+	private static final double DIRECT_FLOPS = 2.0;
+	private static final double COMPLEX_FLOPS = 8.0;
+	private static final double BUTTERFLY_FLOPS = 10.0;
+
+	int numThreads;
+	float[][] whiteTemplates;
+	float[][] blackTemplates;
+	int[] templateNumIndices;
+	int[] templateIndicesOffsets;
+	int maxTemplateWidth;
+	int minTemplateWidth;
+	int lineHeight;
+
+	int fftLength;
+	int numFrequencies;
+	int blockStep;
+	double[] cosTable;
+	double[] sinTable;
+	int[] bitReverse;
+	// per template width (null where the width is always scored directly): group size and the [group][row][frequency] spectra
+	int[] groupSizes;
+	float[][] whiteSpectraRe;
+	float[][] whiteSpectraIm;
+	float[][] blackSpectraRe;
+	float[][] blackSpectraIm;
+
+	public FFTInnerLoopVarLineHeight(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public void startup(float[][] whiteTemplates, float[][] blackTemplates, int[] templateNumIndices, int[] templateIndicesOffsets, int minTemplateWidth, int maxTemplateWidth, int maxSequenceLength, int totalTemplateNumIndices, int lineHeight) {
+		this.whiteTemplates = whiteTemplates;
+		this.blackTemplates = blackTemplates;
+		this.templateNumIndices = templateNumIndices;
+		this.templateIndicesOffsets = templateIndicesOffsets;
+		this.maxTemplateWidth = maxTemplateWidth;
+		this.minTemplateWidth = minTemplateWidth;
+		this.lineHeight = lineHeight;
+
+		this.fftLength = MIN_FFT_LENGTH;
+		while (fftLength < 4*maxTemplateWidth) fftLength *= 2;
+		this.numFrequencies = fftLength/2+1;
+		this.blockStep = fftLength-maxTemplateWidth+1;
+		this.cosTable = new double[fftLength/2];
+		this.sinTable = new double[fftLength/2];
+		for (int k=0; k<fftLength/2; ++k) {
+			cosTable[k] = Math.cos(2.0*Math.PI*k/fftLength);
+			sinTable[k] = Math.sin(2.0*Math.PI*k/fftLength);
+		}
+		int numBits = Integer.numberOfTrailingZeros(fftLength);
+		this.bitReverse = new int[fftLength];
+		for (int i=0; i<fftLength; ++i) bitReverse[i] = Integer.reverse(i) >>> (32-numBits);
+
+		int numTemplateWidths = (maxTemplateWidth-minTemplateWidth)+1;
+		this.groupSizes = new int[numTemplateWidths];
+		this.whiteSpectraRe = new float[numTemplateWidths][];
+		this.whiteSpectraIm = new float[numTemplateWidths][];
+		this.blackSpectraRe = new float[numTemplateWidths][];
+		this.blackSpectraIm = new float[numTemplateWidths][];
+		double[] re = new double[fftLength];
+		double[] im = new double[fftLength];
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			// a long line is the best case for the FFT, so a width that loses even there is never transformed
+			if (numIndices == 0 || !useFFT(tw, 1 << 20)) continue;
+			float[] white = whiteTemplates[tw-minTemplateWidth];
+			float[] black = blackTemplates[tw-minTemplateWidth];
+			int groupSize = (isOffsetGroups(white, black, tw, numIndices) ? NUM_OFFSETS : 1);
+			int numGroups = numIndices/groupSize;
+			float[] wRe = new float[numGroups*lineHeight*numFrequencies];
+			float[] wIm = new float[numGroups*lineHeight*numFrequencies];
+			float[] bRe = new float[numGroups*lineHeight*numFrequencies];
+			float[] bIm = new float[numGroups*lineHeight*numFrequencies];
+			for (int g=0; g<numGroups; ++g) {
+				int base = (g*groupSize + (groupSize == 1 ? 0 : CharacterTemplateVarLineHeight.MAX_OFFSET))*tw*lineHeight;
+				for (int j=0; j<lineHeight; ++j) {
+					for (int n=0; n<fftLength; ++n) {
+						re[n] = (n < tw ? white[base + n*lineHeight + j] : 0.0);
+						im[n] = (n < tw ? black[base + n*lineHeight + j] : 0.0);
+					}
+					fft(re, im, false);
+					separate(re, im, wRe, wIm, bRe, bIm, (g*lineHeight + j)*numFrequencies);
+				}
+			}
+			groupSizes[tw-minTemplateWidth] = groupSize;
+			whiteSpectraRe[tw-minTemplateWidth] = wRe;
+			whiteSpectraIm[tw-minTemplateWidth] = wIm;
+			blackSpectraRe[tw-minTemplateWidth] = bRe;
+			blackSpectraIm[tw-minTemplateWidth] = bIm;
+		}
+	}
+
+	public void shutdown() {
+		this.whiteTemplates = null;
+		this.blackTemplates = null;
+		this.whiteSpectraRe = null;
+		this.whiteSpectraIm = null;
+		this.blackSpectraRe = null;
+		this.blackSpectraIm = null;
+	}
+
+	/**
+	 * Whether FFT scoring of one template of width tw over a line of
+	 * sequenceLength columns takes fewer flops than the direct loop. The
+	 * forward transforms of the line are shared by all templates of all
+	 * widths, so they are left out.
+	 */
+	private boolean useFFT(int tw, int sequenceLength) {
+		int numPositions = (sequenceLength-tw)+1;
+		if (numPositions <= 0) return false;
+		int numBlocks = (numPositions + blockStep - 1) / blockStep;
+		double directCost = (double) numPositions * tw * lineHeight * 2 * DIRECT_FLOPS;
+		double log2FftLength = Integer.numberOfTrailingZeros(fftLength);
+		double fftCost = (double) numBlocks * (numFrequencies * lineHeight * 2 * COMPLEX_FLOPS + 0.5 * (fftLength/2) * log2FftLength * BUTTERFLY_FLOPS);
+		return fftCost < directCost;
+	}
+
+	private boolean isOffsetGroups(float[] white, float[] black, int tw, int numIndices) {
+		if (numIndices % NUM_OFFSETS != 0) return false;
+		int templateLength = tw*lineHeight;
+		for (int g=0; g<numIndices/NUM_OFFSETS; ++g) {
+			int base = (g*NUM_OFFSETS + CharacterTemplateVarLineHeight.MAX_OFFSET)*templateLength;
+			for (int o=0; o<NUM_OFFSETS; ++o) {
+				int offset = o-CharacterTemplateVarLineHeight.MAX_OFFSET;
+				int shifted = (g*NUM_OFFSETS + o)*templateLength;
+				for (int k=0; k<tw; ++k) {
+					for (int j=0; j<lineHeight; ++j) {
+						int r = Math.min(lineHeight-1, Math.max(0, j+offset));
+						if (white[shifted + k*lineHeight + j] != white[base + k*lineHeight + r]) return false;
+						if (black[shifted + k*lineHeight + j] != black[base + k*lineHeight + r]) return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	public void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength) {
+		boolean[] useFFT = new boolean[(maxTemplateWidth-minTemplateWidth)+1];
+		int maxFFTPositions = 0;
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			if (numIndices == 0) continue;
+			useFFT[tw-minTemplateWidth] = (whiteSpectraRe[tw-minTemplateWidth] != null && useFFT(tw, sequenceLength));
+			if (useFFT[tw-minTemplateWidth]) maxFFTPositions = Math.max(maxFFTPositions, (sequenceLength-tw)+1);
+			else computeDirect(scores, whiteObservations, blackObservations, sequenceLength, tw);
+		}
+		if (maxFFTPositions == 0) return;
+
+		double[] lineWhiteRe = new double[lineHeight*numFrequencies];
+		double[] lineWhiteIm = new double[lineHeight*numFrequencies];
+		double[] lineBlackRe = new double[lineHeight*numFrequencies];
+		double[] lineBlackIm = new double[lineHeight*numFrequencies];
+		double[] re = new double[fftLength];
+		double[] im = new double[fftLength];
+		double[] firstRe = new double[numFrequencies];
+		double[] firstIm = new double[numFrequencies];
+		double[] secondRe = new double[numFrequencies];
+		double[] secondIm = new double[numFrequencies];
+		for (int blockStart=0; blockStart<maxFFTPositions; blockStart+=blockStep) {
+			for (int j=0; j<lineHeight; ++j) {
+				for (int n=0; n<fftLength; ++n) {
+					int t = blockStart+n;
+					re[n] = (t < sequenceLength ? whiteObservations[t*lineHeight+j] : 0.0);
+					im[n] = (t < sequenceLength ? blackObservations[t*lineHeight+j] : 0.0);
+				}
+				fft(re, im, false);
+				separate(re, im, lineWhiteRe, lineWhiteIm, lineBlackRe, lineBlackIm, j*numFrequencies);
+			}
+			for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+				if (!useFFT[tw-minTemplateWidth]) continue;
+				int numIndices = templateNumIndices[tw-minTemplateWidth];
+				int numPositions = Math.min(blockStep, (sequenceLength-tw)+1-blockStart);
+				if (numPositions <= 0) continue;
+				int scoresOffset = templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength;
+				for (int i=0; i<numIndices; i+=2) {
+					// two real correlations for the price of one inverse FFT: the first in the real part, the second in the imaginary part
+					correlate(tw, i, lineWhiteRe, lineWhiteIm, lineBlackRe, lineBlackIm, firstRe, firstIm);
+					boolean hasSecond = (i+1 < numIndices);
+					if (hasSecond) correlate(tw, i+1, lineWhiteRe, lineWhiteIm, lineBlackRe, lineBlackIm, secondRe, secondIm);
+					for (int k=0; k<numFrequencies; ++k) {
+						double sr = (hasSecond ? secondRe[k] : 0.0);
+						double si = (hasSecond ? secondIm[k] : 0.0);
+						re[k] = firstRe[k] - si;
+						im[k] = firstIm[k] + sr;
+						if (k > 0 && k < fftLength-k) {
+							re[fftLength-k] = firstRe[k] + si;
+							im[fftLength-k] = sr - firstIm[k];
+						}
+					}
+					fft(re, im, true);
+					for (int t=0; t<numPositions; ++t) {
+						scores[scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, blockStart+t, i)] += (float) (re[t] / fftLength);
+						if (hasSecond) scores[scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, blockStart+t, i+1)] += (float) (im[t] / fftLength);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Half spectrum of template i's correlation with the current block:
+	 * the sum over rows of conj(template row) * line row, for both planes.
+	 */
+	private void correlate(int tw, int i, double[] lineWhiteRe, double[] lineWhiteIm, double[] lineBlackRe, double[] lineBlackIm, double[] outRe, double[] outIm) {
+		int groupSize = groupSizes[tw-minTemplateWidth];
+		int g = i/groupSize;
+		int offset = (groupSize == 1 ? 0 : i%groupSize - CharacterTemplateVarLineHeight.MAX_OFFSET);
+		float[] wRe = whiteSpectraRe[tw-minTemplateWidth];
+		float[] wIm = whiteSpectraIm[tw-minTemplateWidth];
+		float[] bRe = blackSpectraRe[tw-minTemplateWidth];
+		float[] bIm = blackSpectraIm[tw-minTemplateWidth];
+		for (int k=0; k<numFrequencies; ++k) {
+			outRe[k] = 0.0;
+			outIm[k] = 0.0;
+		}
+		for (int j=0; j<lineHeight; ++j) {
+			int r = Math.min(lineHeight-1, Math.max(0, j+offset));
+			int templateBase = (g*lineHeight + r)*numFrequencies;
+			int lineBase = j*numFrequencies;
+			for (int k=0; k<numFrequencies; ++k) {
+				double twr = wRe[templateBase+k];
+				double twi = wIm[templateBase+k];
+				double tbr = bRe[templateBase+k];
+				double tbi = bIm[templateBase+k];
+				double owr = lineWhiteRe[lineBase+k];
+				double owi = lineWhiteIm[lineBase+k];
+				double obr = lineBlackRe[lineBase+k];
+				double obi = lineBlackIm[lineBase+k];
+				outRe[k] += twr*owr + twi*owi + tbr*obr + tbi*obi;
+				outIm[k] += twr*owi - twi*owr + tbr*obi - tbi*obr;
+			}
+		}
+	}
+
+	private void computeDirect(float[] scores, float[] whiteObservations, float[] blackObservations, int sequenceLength, int tw) {
+		int numIndices = templateNumIndices[tw-minTemplateWidth];
+		float[] whiteTemplatesForWidth = whiteTemplates[tw-minTemplateWidth];
+		float[] blackTemplatesForWidth = blackTemplates[tw-minTemplateWidth];
+		int scoresOffset = templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength;
+		int templateLength = tw*lineHeight;
+		for (int t=0; t<(sequenceLength-tw)+1; ++t) {
+			int o = t*lineHeight;
+			for (int i=0; i<numIndices; ++i) {
+				int ti = i*templateLength;
+				float s = 0.0f;
+				for (int j=0; j<templateLength; ++j) {
+					s += whiteObservations[o+j]*whiteTemplatesForWidth[ti+j] + blackObservations[o+j]*blackTemplatesForWidth[ti+j];
+				}
+				scores[scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, t, i)] += s;
+			}
+		}
+	}
+
+	/**
+	 * Split the transform of (x + i*y), for real x and y, into the first
+	 * numFrequencies entries of the transforms of x and y.
+	 */
+	private void separate(double[] re, double[] im, float[] xRe, float[] xIm, float[] yRe, float[] yIm, int start) {
+		for (int k=0; k<numFrequencies; ++k) {
+			int mirror = (fftLength-k) % fftLength;
+			xRe[start+k] = (float) (0.5*(re[k] + re[mirror]));
+			xIm[start+k] = (float) (0.5*(im[k] - im[mirror]));
+			yRe[start+k] = (float) (0.5*(im[k] + im[mirror]));
+			yIm[start+k] = (float) (0.5*(re[mirror] - re[k]));
+		}
+	}
+
+	private void separate(double[] re, double[] im, double[] xRe, double[] xIm, double[] yRe, double[] yIm, int start) {
+		for (int k=0; k<numFrequencies; ++k) {
+			int mirror = (fftLength-k) % fftLength;
+			xRe[start+k] = 0.5*(re[k] + re[mirror]);
+			xIm[start+k] = 0.5*(im[k] - im[mirror]);
+			yRe[start+k] = 0.5*(im[k] + im[mirror]);
+			yIm[start+k] = 0.5*(re[mirror] - re[k]);
+		}
+	}
+
+	/**
+	 * In-place radix-2 FFT of length fftLength; the inverse is not scaled.
+	 */
+	private void fft(double[] re, double[] im, boolean inverse) {
+		for (int i=0; i<fftLength; ++i) {
+			int j = bitReverse[i];
+			if (j > i) {
+				double tmp = re[i]; re[i] = re[j]; re[j] = tmp;
+				tmp = im[i]; im[i] = im[j]; im[j] = tmp;
+			}
+		}
+		for (int size=2; size<=fftLength; size*=2) {
+			int half = size/2;
+			int step = fftLength/size;
+			for (int start=0; start<fftLength; start+=size) {
+				for (int k=0; k<half; ++k) {
+					double cr = cosTable[k*step];
+					double ci = (inverse ? sinTable[k*step] : -sinTable[k*step]);
+					int a = start+k;
+					int b = a+half;
+					double xr = re[b]*cr - im[b]*ci;
+					double xi = re[b]*ci + im[b]*cr;
+					re[b] = re[a] - xr;
+					im[b] = im[a] - xi;
+					re[a] += xr;
+					im[a] += xi;
+				}
+			}
+		}
+	}
+
+	public int numOuterThreads() {
+		return numThreads;
+	}
+
+	public int numPopulateThreads() {
+		return 1;
+	}
+
+}
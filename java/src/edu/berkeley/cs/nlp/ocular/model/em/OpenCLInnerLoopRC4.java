@@ -61,6 +61,7 @@ public class OpenCLInnerLoopRC4 implements EmissionCacheInnerLoopVarLineHeight {
 	CLContext context;
 	CLQueue queue;
 	CLProgram program;
+	int programLineHeight;
 	CLBuffer<Float> d_Ow;
 	CLBuffer<Float> d_Ob;
 	CLBuffer<Float> d_scores;
@@ -69,6 +70,10 @@ public class OpenCLInnerLoopRC4 implements EmissionCacheInnerLoopVarLineHeight {
 	PointerCapturer pc;
 
 	public OpenCLInnerLoopRC4(int numThreads) {
+		this(numThreads, CPU_ROLL_X);
+	}
+	
+	public OpenCLInnerLoopRC4(int numThreads, int cpuRollX) {
 		// choose device
 		List<CLDevice> devices = new ArrayList<CLDevice>();
 		System.out.println();
@@ -111,7 +116,7 @@ public class OpenCLInnerLoopRC4 implements EmissionCacheInnerLoopVarLineHeight {
 	    	this.blockSizeY = INTEL_GPU_BLOCK_SIZE_Y;
 	    } else if (context.getDevices()[0].getType().contains(CLDevice.Type.CPU)) {
 	    	this.blockSizeX = CPU_BLOCK_SIZE_X;
-	    	this.rollX = CPU_ROLL_X;
+	    	this.rollX = cpuRollX;
 	    	this.blockSizeY = CPU_BLOCK_SIZE_Y;
 	    }
 	    System.out.println("Using context:");
@@ -123,6 +128,13 @@ public class OpenCLInnerLoopRC4 implements EmissionCacheInnerLoopVarLineHeight {
 
         this.context.setCacheBinaries(false);
         this.queue = context.createDefaultQueue();
+        
+		this.pc = new PointerCapturer();
+		this.numThreads = numThreads;
+	}
+	
+	// the kernels are unrolled for each template width up to the line height, so they can only be built once that is known
+	private void buildProgram() {
         this.program = context.createProgram(kernelSrc());
         this.program.addBuildOption("-cl-fast-relaxed-math");
         this.program.addBuildOption("-cl-mad-enable");
@@ -130,9 +142,7 @@ public class OpenCLInnerLoopRC4 implements EmissionCacheInnerLoopVarLineHeight {
         this.program.addBuildOption("-cl-fast-relaxed-math");
         this.program.addBuildOption("-cl-single-precision-constant");
         this.program.build();
-        
-		this.pc = new PointerCapturer();
-		this.numThreads = numThreads;
+        this.programLineHeight = lineHeight;
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -142,6 +152,7 @@ public class OpenCLInnerLoopRC4 implements EmissionCacheInnerLoopVarLineHeight {
 		this.maxTemplateWidth = maxTemplateWidth;
 		this.minTemplateWidth = minTemplateWidth;
 		this.lineHeight = lineHeight;
+		if (program == null || programLineHeight != lineHeight) buildProgram();
 		
 		// Allocate the device input data
 		int extendedMaxSeqLength = (blockSizeX*rollX) * (int) Math.ceil(((double) maxSequenceLength) / (blockSizeX*rollX));
@@ -0,0 +1,276 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import java.util.Arrays;
+
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+
+/**
+ * The beam of transition states ending at one column of the semi-Markov
+ * decoder, kept in parallel primitive arrays of fixed capacity so that adding
+ * a candidate allocates nothing. The beam size in effect may be anything up
+ * to that capacity, and is set again each time the beam is cleared, so that
+ * one beam serves decodes at different beam sizes.
+ *
+ * Entries sit in a binary heap on priority, the negated sum of the forward
+ * score and the coarse backward bound, so the worst entry is at slot 0. A small
+ * open-addressing table, linearly probed on the states' interned ids (see
+ * TransitionStateInterner), finds the slot of a state. The heap moves entries
+ * between slots while the column is being filled; once the decoder moves past
+ * the column its slots are stable, and backpointers into it are (column, slot)
+ * pairs.
+ *
+ * The admission rule and the heap moves follow the GeneralPriorityQueue this
+ * replaces, so that the decoder keeps its Viterbi output.
+ */
+public class PrimitiveBeam {
+
+	private int beamSize;
+	private final TransitionState[] states;
+	private final int[] stateIds;
+	private final double[] scores;
+	private final double[] priorities;
+	private final int[] backPointerColumns;
+	private final int[] backPointerSlots;
+	private final int[] indexPositions;
+	private final int[] index;
+	private final int indexMask;
+	private final double[] sortedPriorities;
+	private int size;
+
+	public PrimitiveBeam(int beamSize) {
+		this(beamSize, beamSize);
+	}
+
+	/**
+	 * @param capacity	The largest beam size the beam can be cleared to.
+	 */
+	public PrimitiveBeam(int beamSize, int capacity) {
+		if (beamSize < 1) throw new RuntimeException("Beam size must be positive, got " + beamSize);
+		if (capacity < beamSize) throw new RuntimeException("Beam capacity " + capacity + " is less than the beam size " + beamSize);
+		this.beamSize = beamSize;
+		// one slot past the beam size, for the entry add() is about to drop
+		int numSlots = capacity+1;
+		this.states = new TransitionState[numSlots];
+		this.stateIds = new int[numSlots];
+		this.scores = new double[numSlots];
+		this.priorities = new double[numSlots];
+		this.backPointerColumns = new int[numSlots];
+		this.backPointerSlots = new int[numSlots];
+		this.indexPositions = new int[numSlots];
+		this.index = new int[Integer.highestOneBit(numSlots) << 2];
+		this.indexMask = index.length-1;
+		Arrays.fill(index, -1);
+		this.sortedPriorities = new double[numSlots];
+		this.size = 0;
+	}
+
+	public int beamSize() {
+		return beamSize;
+	}
+
+	public int capacity() {
+		return states.length-1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		for (int slot=0; slot<size; ++slot) {
+			index[indexPositions[slot]] = -1;
+			states[slot] = null;
+		}
+		size = 0;
+	}
+
+	/**
+	 * Empties the beam and sets the beam size in effect from now on, which
+	 * must not exceed the capacity.
+	 */
+	public void clear(int beamSize) {
+		if (beamSize < 1) throw new RuntimeException("Beam size must be positive, got " + beamSize);
+		if (beamSize > capacity()) throw new RuntimeException("Beam size " + beamSize + " exceeds the beam's capacity " + capacity());
+		clear();
+		this.beamSize = beamSize;
+	}
+
+	public TransitionState state(int slot) {
+		return states[slot];
+	}
+
+	public int stateId(int slot) {
+		return stateIds[slot];
+	}
+
+	public double score(int slot) {
+		return scores[slot];
+	}
+
+	public int backPointerColumn(int slot) {
+		return backPointerColumns[slot];
+	}
+
+	public int backPointerSlot(int slot) {
+		return backPointerSlots[slot];
+	}
+
+	/**
+	 * The score plus the backward bound that the beam ranks the slot by.
+	 */
+	public double rankScore(int slot) {
+		return -priorities[slot];
+	}
+
+	/**
+	 * The lowest rank score within threshold of the best one on the beam,
+	 * lowered if need be so that at least minSize slots (or all of them, if
+	 * there are fewer) reach it.
+	 */
+	public double rankCutoff(double threshold, int minSize) {
+		if (size == 0) return Double.NEGATIVE_INFINITY;
+		double bestPriority = Double.POSITIVE_INFINITY;
+		for (int slot=0; slot<size; ++slot) {
+			bestPriority = Math.min(bestPriority, priorities[slot]);
+		}
+		double cutoff = -bestPriority - threshold;
+		int numWithin = 0;
+		for (int slot=0; slot<size; ++slot) {
+			if (-priorities[slot] >= cutoff) numWithin++;
+		}
+		if (numWithin < Math.min(minSize, size)) {
+			System.arraycopy(priorities, 0, sortedPriorities, 0, size);
+			Arrays.sort(sortedPriorities, 0, size);
+			cutoff = -sortedPriorities[Math.min(minSize, size)-1];
+		}
+		return cutoff;
+	}
+
+	/**
+	 * The slot holding the state, or -1 if the state is not on the beam.
+	 */
+	public int slotOf(int stateId) {
+		for (int pos=home(stateId); index[pos] >= 0; pos=(pos+1)&indexMask) {
+			int slot = index[pos];
+			if (stateIds[slot] == stateId) return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * Offers a candidate. As with the priority queue, the candidate only gets
+	 * in when the beam is empty or when it beats the worst entry, even if the
+	 * beam is not full yet. A state already on the beam keeps its best
+	 * priority, and its best score together with that score's backpointer.
+	 */
+	public void add(int stateId, TransitionState ts, double score, double forwardScore, int backPointerColumn, int backPointerSlot) {
+		double priority = -(score+forwardScore);
+		if (size == 0 || priority < priorities[0]) {
+			int slot = slotOf(stateId);
+			if (slot >= 0) {
+				if (priority < priorities[slot]) {
+					priorities[slot] = priority;
+					slot = heapifyDown(slot);
+				}
+			} else {
+				slot = size++;
+				states[slot] = ts;
+				stateIds[slot] = stateId;
+				scores[slot] = Double.NEGATIVE_INFINITY;
+				priorities[slot] = priority;
+				backPointerColumns[slot] = -1;
+				backPointerSlots[slot] = -1;
+				addToIndex(slot);
+				slot = heapifyUp(slot);
+			}
+			if (scores[slot] < score) {
+				scores[slot] = score;
+				backPointerColumns[slot] = backPointerColumn;
+				backPointerSlots[slot] = backPointerSlot;
+			}
+			while (size > beamSize) {
+				removeFirst();
+			}
+		}
+	}
+
+	private void removeFirst() {
+		int last = size-1;
+		if (last != 0) swap(0, last);
+		removeFromIndex(last);
+		states[last] = null;
+		size--;
+		if (last != 0) heapifyDown(heapifyUp(0));
+	}
+
+	private int heapifyUp(int slot) {
+		while (slot > 0) {
+			int parent = (slot-1)/2;
+			if (priorities[slot] > priorities[parent]) {
+				swap(slot, parent);
+				slot = parent;
+			} else {
+				break;
+			}
+		}
+		return slot;
+	}
+
+	private int heapifyDown(int slot) {
+		while (true) {
+			int max = slot;
+			int left = 2*slot+1;
+			int right = left+1;
+			if (left < size) {
+				if (priorities[max] < priorities[left]) max = left;
+				if (right < size && priorities[max] < priorities[right]) max = right;
+			}
+			if (max == slot) break;
+			swap(slot, max);
+			slot = max;
+		}
+		return slot;
+	}
+
+	private void swap(int a, int b) {
+		TransitionState state = states[a]; states[a] = states[b]; states[b] = state;
+		int stateId = stateIds[a]; stateIds[a] = stateIds[b]; stateIds[b] = stateId;
+		double score = scores[a]; scores[a] = scores[b]; scores[b] = score;
+		double priority = priorities[a]; priorities[a] = priorities[b]; priorities[b] = priority;
+		int column = backPointerColumns[a]; backPointerColumns[a] = backPointerColumns[b]; backPointerColumns[b] = column;
+		int backSlot = backPointerSlots[a]; backPointerSlots[a] = backPointerSlots[b]; backPointerSlots[b] = backSlot;
+		int pos = indexPositions[a]; indexPositions[a] = indexPositions[b]; indexPositions[b] = pos;
+		index[indexPositions[a]] = a;
+		index[indexPositions[b]] = b;
+	}
+
+	private void addToIndex(int slot) {
+		int pos = home(stateIds[slot]);
+		while (index[pos] >= 0) pos = (pos+1)&indexMask;
+		index[pos] = slot;
+		indexPositions[slot] = pos;
+	}
+
+	private void removeFromIndex(int slot) {
+		// backward-shift deletion, so that lookups never need tombstones
+		int hole = indexPositions[slot];
+		index[hole] = -1;
+		for (int pos=(hole+1)&indexMask; index[pos] >= 0; pos=(pos+1)&indexMask) {
+			int other = index[pos];
+			int home = home(stateIds[other]);
+			if (((pos-home)&indexMask) >= ((pos-hole)&indexMask)) {
+				index[hole] = other;
+				indexPositions[other] = hole;
+				index[pos] = -1;
+				hole = pos;
+			}
+		}
+	}
+
+	private int home(int stateId) {
+		// ids are dense, so spread them before masking
+		int h = stateId * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & indexMask;
+	}
+
+}
@@ -0,0 +1,185 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import edu.berkeley.cs.nlp.ocular.image.BitPackedLine;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
+import gpu.CudaUtil;
+
+/**
+ * CPU engine for the emission cache inner loop that scores all vertical
+ * offsets of a template together.
+ *
+ * The emission models hand over the 2*MAX_OFFSET+1 offsets of every (char,
+ * width, exposure) as consecutive templates, and each of them is the offset-0
+ * template with its rows shifted and clamped at the edges. This engine keeps
+ * only one copy of each group: the offset-0 template extended by MAX_OFFSET
+ * clamped rows above and below, so that row j under offset o is row j+o of
+ * the extended template. Like SPARSE, it then walks the black and obscured
+ * pixels under each window, but it does so once per group instead of once per
+ * offset: each pixel adds a contiguous strip of 2*MAX_OFFSET+1 values, one
+ * per offset, to a small accumulator. The white totals are still taken per
+ * offset, since the clamping makes them differ.
+ */
+public class SharedOffsetInnerLoopVarLineHeight implements EmissionCacheInnerLoopVarLineHeight {
+
+	private static final int NUM_OFFSETS = 2*CharacterTemplateVarLineHeight.MAX_OFFSET+1;
+
+	int numThreads;
+	float[][] extendedBlackMinusWhiteTemplates;
+	float[][] extendedNegWhiteTemplates;
+	float[][] whiteTemplateTotals;
+	int[] templateNumIndices;
+	int[] templateIndicesOffsets;
+	int maxTemplateWidth;
+	int minTemplateWidth;
+	int lineHeight;
+	int extendedLineHeight;
+
+	public SharedOffsetInnerLoopVarLineHeight(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public void startup(float[][] whiteTemplates, float[][] blackTemplates, int[] templateNumIndices, int[] templateIndicesOffsets, int minTemplateWidth, int maxTemplateWidth, int maxSequenceLength, int totalTemplateNumIndices, int lineHeight) {
+		this.templateNumIndices = templateNumIndices;
+		this.templateIndicesOffsets = templateIndicesOffsets;
+		this.maxTemplateWidth = maxTemplateWidth;
+		this.minTemplateWidth = minTemplateWidth;
+		this.lineHeight = lineHeight;
+		this.extendedLineHeight = lineHeight + 2*CharacterTemplateVarLineHeight.MAX_OFFSET;
+
+		int numTemplateWidths = (maxTemplateWidth-minTemplateWidth)+1;
+		this.extendedBlackMinusWhiteTemplates = new float[numTemplateWidths][];
+		this.extendedNegWhiteTemplates = new float[numTemplateWidths][];
+		this.whiteTemplateTotals = new float[numTemplateWidths][];
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			float[] white = whiteTemplates[tw-minTemplateWidth];
+			float[] black = blackTemplates[tw-minTemplateWidth];
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			if (numIndices % NUM_OFFSETS != 0) throw new RuntimeException("Expected templates in groups of " + NUM_OFFSETS + " offsets, got " + numIndices + " templates of width " + tw);
+			int numGroups = numIndices / NUM_OFFSETS;
+			int templateLength = tw*lineHeight;
+			float[] extendedBlackMinusWhite = new float[numGroups*tw*extendedLineHeight];
+			float[] extendedNegWhite = new float[numGroups*tw*extendedLineHeight];
+			float[] whiteTotals = new float[numIndices];
+			for (int i=0; i<numIndices; ++i) {
+				float total = 0.0f;
+				for (int j=0; j<templateLength; ++j) total += white[i*templateLength+j];
+				whiteTotals[i] = total;
+			}
+			for (int g=0; g<numGroups; ++g) {
+				int zeroOffsetBase = (g*NUM_OFFSETS + CharacterTemplateVarLineHeight.MAX_OFFSET)*templateLength;
+				for (int k=0; k<tw; ++k) {
+					for (int r=0; r<extendedLineHeight; ++r) {
+						int j = Math.min(lineHeight-1, Math.max(0, r-CharacterTemplateVarLineHeight.MAX_OFFSET));
+						int src = zeroOffsetBase + k*lineHeight + j;
+						int dst = (g*tw + k)*extendedLineHeight + r;
+						extendedBlackMinusWhite[dst] = black[src] - white[src];
+						extendedNegWhite[dst] = -white[src];
+					}
+				}
+			}
+			this.extendedBlackMinusWhiteTemplates[tw-minTemplateWidth] = extendedBlackMinusWhite;
+			this.extendedNegWhiteTemplates[tw-minTemplateWidth] = extendedNegWhite;
+			this.whiteTemplateTotals[tw-minTemplateWidth] = whiteTotals;
+		}
+	}
+
+	public void shutdown() {
+		this.extendedBlackMinusWhiteTemplates = null;
+		this.extendedNegWhiteTemplates = null;
+		this.whiteTemplateTotals = null;
+	}
+
+	public void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength) {
+		compute(scores, whiteObservations, blackObservations, sequenceLength, null);
+	}
+
+	public void compute(final float[] scores, final BitPackedLine observations, final boolean[] pruned) {
+		int numPixels = observations.sequenceLength()*observations.lineHeight();
+		float[] whiteObservations = new float[numPixels];
+		float[] blackObservations = new float[numPixels];
+		observations.unpack(whiteObservations, blackObservations);
+		compute(scores, whiteObservations, blackObservations, observations.sequenceLength(), pruned);
+	}
+
+	/**
+	 * A group is skipped when all of its offsets are pruned.
+	 */
+	private void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength, final boolean[] pruned) {
+		// Column-compressed lists of the line's black and obscured pixels, as t*extendedLineHeight+j so they index straight into the extended templates.
+		int numPixels = sequenceLength*lineHeight;
+		int[] blackColumnStarts = new int[sequenceLength+1];
+		int[] obscuredColumnStarts = new int[sequenceLength+1];
+		int numBlack = 0;
+		int numObscured = 0;
+		for (int k=0; k<numPixels; ++k) {
+			if (blackObservations[k] != 0.0f) numBlack++;
+			else if (whiteObservations[k] == 0.0f) numObscured++;
+		}
+		int[] blackPixels = new int[numBlack];
+		int[] obscuredPixels = new int[numObscured];
+		numBlack = 0;
+		numObscured = 0;
+		for (int t=0; t<sequenceLength; ++t) {
+			blackColumnStarts[t] = numBlack;
+			obscuredColumnStarts[t] = numObscured;
+			for (int j=0; j<lineHeight; ++j) {
+				int k = t*lineHeight+j;
+				if (blackObservations[k] != 0.0f) blackPixels[numBlack++] = t*extendedLineHeight+j;
+				else if (whiteObservations[k] == 0.0f) obscuredPixels[numObscured++] = t*extendedLineHeight+j;
+			}
+		}
+		blackColumnStarts[sequenceLength] = numBlack;
+		obscuredColumnStarts[sequenceLength] = numObscured;
+
+		float[] acc = new float[NUM_OFFSETS];
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			if (numIndices == 0) continue;
+			int numGroups = numIndices / NUM_OFFSETS;
+			float[] blackMinusWhiteForWidth = extendedBlackMinusWhiteTemplates[tw-minTemplateWidth];
+			float[] negWhiteForWidth = extendedNegWhiteTemplates[tw-minTemplateWidth];
+			float[] whiteTotalsForWidth = whiteTemplateTotals[tw-minTemplateWidth];
+			int scoresOffset = templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength;
+			int groupLength = tw*extendedLineHeight;
+			for (int t=0; t<(sequenceLength-tw)+1; ++t) {
+				int base = t*extendedLineHeight;
+				int blackStart = blackColumnStarts[t];
+				int blackEnd = blackColumnStarts[t+tw];
+				int obscuredStart = obscuredColumnStarts[t];
+				int obscuredEnd = obscuredColumnStarts[t+tw];
+				for (int g=0; g<numGroups; ++g) {
+					if (pruned != null && isPruned(pruned, scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, t, g*NUM_OFFSETS))) continue;
+					System.arraycopy(whiteTotalsForWidth, g*NUM_OFFSETS, acc, 0, NUM_OFFSETS);
+					int tg = g*groupLength - base;
+					for (int k=blackStart; k<blackEnd; ++k) {
+						int strip = tg + blackPixels[k];
+						for (int o=0; o<NUM_OFFSETS; ++o) acc[o] += blackMinusWhiteForWidth[strip+o];
+					}
+					for (int k=obscuredStart; k<obscuredEnd; ++k) {
+						int strip = tg + obscuredPixels[k];
+						for (int o=0; o<NUM_OFFSETS; ++o) acc[o] += negWhiteForWidth[strip+o];
+					}
+					for (int o=0; o<NUM_OFFSETS; ++o) {
+						scores[scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, t, g*NUM_OFFSETS+o)] += acc[o];
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean isPruned(boolean[] pruned, int groupStart) {
+		for (int o=0; o<NUM_OFFSETS; ++o) {
+			if (!pruned[groupStart+o]) return false;
+		}
+		return true;
+	}
+
+	public int numOuterThreads() {
+		return numThreads;
+	}
+
+	public int numPopulateThreads() {
+		return 1;
+	}
+
+}
@@ -0,0 +1,148 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import edu.berkeley.cs.nlp.ocular.image.BitPackedLine;
+import gpu.CudaUtil;
+
+/**
+ * CPU engine for the emission cache inner loop that only touches the ink.
+ *
+ * Observations are binarized, so the score of a template at a position is
+ * the template's total log-white probability, plus (logBlack - logWhite) for
+ * every black pixel under it, minus logWhite for every obscured pixel. The
+ * white totals are computed once in startup, and each line is turned into
+ * per-column lists of its non-white pixels, so the work per (position,
+ * template) is proportional to the amount of ink in the window rather than
+ * to its area. On typical prints that is around a tenth of the pixels.
+ */
+public class SparseInnerLoopVarLineHeight implements EmissionCacheInnerLoopVarLineHeight {
+
+	int numThreads;
+	float[][] whiteTemplates;
+	float[][] blackMinusWhiteTemplates;
+	float[][] whiteTemplateTotals;
+	int[] templateNumIndices;
+	int[] templateIndicesOffsets;
+	int maxTemplateWidth;
+	int minTemplateWidth;
+	int lineHeight;
+
+	public SparseInnerLoopVarLineHeight(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public void startup(float[][] whiteTemplates, float[][] blackTemplates, int[] templateNumIndices, int[] templateIndicesOffsets, int minTemplateWidth, int maxTemplateWidth, int maxSequenceLength, int totalTemplateNumIndices, int lineHeight) {
+		this.whiteTemplates = whiteTemplates;
+		this.templateNumIndices = templateNumIndices;
+		this.templateIndicesOffsets = templateIndicesOffsets;
+		this.maxTemplateWidth = maxTemplateWidth;
+		this.minTemplateWidth = minTemplateWidth;
+		this.lineHeight = lineHeight;
+
+		int numTemplateWidths = (maxTemplateWidth-minTemplateWidth)+1;
+		this.blackMinusWhiteTemplates = new float[numTemplateWidths][];
+		this.whiteTemplateTotals = new float[numTemplateWidths][];
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			float[] white = whiteTemplates[tw-minTemplateWidth];
+			float[] black = blackTemplates[tw-minTemplateWidth];
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			int templateLength = tw*lineHeight;
+			float[] blackMinusWhite = new float[numIndices*templateLength];
+			float[] whiteTotals = new float[numIndices];
+			for (int i=0; i<numIndices; ++i) {
+				float total = 0.0f;
+				for (int j=0; j<templateLength; ++j) {
+					int k = i*templateLength+j;
+					blackMinusWhite[k] = black[k] - white[k];
+					total += white[k];
+				}
+				whiteTotals[i] = total;
+			}
+			this.blackMinusWhiteTemplates[tw-minTemplateWidth] = blackMinusWhite;
+			this.whiteTemplateTotals[tw-minTemplateWidth] = whiteTotals;
+		}
+	}
+
+	public void shutdown() {
+		this.whiteTemplates = null;
+		this.blackMinusWhiteTemplates = null;
+		this.whiteTemplateTotals = null;
+	}
+
+	public void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength) {
+		compute(scores, whiteObservations, blackObservations, sequenceLength, null);
+	}
+
+	public void compute(final float[] scores, final BitPackedLine observations, final boolean[] pruned) {
+		int numPixels = observations.sequenceLength()*observations.lineHeight();
+		float[] whiteObservations = new float[numPixels];
+		float[] blackObservations = new float[numPixels];
+		observations.unpack(whiteObservations, blackObservations);
+		compute(scores, whiteObservations, blackObservations, observations.sequenceLength(), pruned);
+	}
+
+	private void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength, final boolean[] pruned) {
+		// Column-compressed lists of the line's black and obscured pixels, as flat indices t*lineHeight+j.
+		int numPixels = sequenceLength*lineHeight;
+		int[] blackColumnStarts = new int[sequenceLength+1];
+		int[] obscuredColumnStarts = new int[sequenceLength+1];
+		int numBlack = 0;
+		int numObscured = 0;
+		for (int k=0; k<numPixels; ++k) {
+			if (blackObservations[k] != 0.0f) numBlack++;
+			else if (whiteObservations[k] == 0.0f) numObscured++;
+		}
+		int[] blackPixels = new int[numBlack];
+		int[] obscuredPixels = new int[numObscured];
+		numBlack = 0;
+		numObscured = 0;
+		for (int t=0; t<sequenceLength; ++t) {
+			blackColumnStarts[t] = numBlack;
+			obscuredColumnStarts[t] = numObscured;
+			for (int j=0; j<lineHeight; ++j) {
+				int k = t*lineHeight+j;
+				if (blackObservations[k] != 0.0f) blackPixels[numBlack++] = k;
+				else if (whiteObservations[k] == 0.0f) obscuredPixels[numObscured++] = k;
+			}
+		}
+		blackColumnStarts[sequenceLength] = numBlack;
+		obscuredColumnStarts[sequenceLength] = numObscured;
+
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			if (numIndices == 0) continue;
+			float[] whiteTemplatesForWidth = whiteTemplates[tw-minTemplateWidth];
+			float[] blackMinusWhiteForWidth = blackMinusWhiteTemplates[tw-minTemplateWidth];
+			float[] whiteTotalsForWidth = whiteTemplateTotals[tw-minTemplateWidth];
+			int scoresOffset = templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength;
+			int templateLength = tw*lineHeight;
+			for (int t=0; t<(sequenceLength-tw)+1; ++t) {
+				int base = t*lineHeight;
+				int blackStart = blackColumnStarts[t];
+				int blackEnd = blackColumnStarts[t+tw];
+				int obscuredStart = obscuredColumnStarts[t];
+				int obscuredEnd = obscuredColumnStarts[t+tw];
+				for (int i=0; i<numIndices; ++i) {
+					if (pruned != null && pruned[scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, t, i)]) continue;
+					int ti = i*templateLength - base;
+					float score = whiteTotalsForWidth[i];
+					for (int k=blackStart; k<blackEnd; ++k) {
+						score += blackMinusWhiteForWidth[ti+blackPixels[k]];
+					}
+					for (int k=obscuredStart; k<obscuredEnd; ++k) {
+						score -= whiteTemplatesForWidth[ti+obscuredPixels[k]];
+					}
+					scores[scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, t, i)] += score;
+				}
+			}
+		}
+	}
+
+	public int numOuterThreads() {
+		return numThreads;
+	}
+
+	public int numPopulateThreads() {
+		return 1;
+	}
+
+}
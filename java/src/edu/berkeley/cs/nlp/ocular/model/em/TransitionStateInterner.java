@@ -0,0 +1,234 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel;
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+import edu.berkeley.cs.nlp.ocular.util.Tuple2;
+
+/**
+ * Gives the transition states reachable under a transition model dense int
+ * ids, and keeps each state's successors as primitive rows, so that the
+ * decoder asks the transition model for a state's transitions once rather
+ * than every time the state is on a beam, and compares states by id rather
+ * than by value.
+ *
+ * Rows are filled the first time they are asked for and kept for as long as
+ * the interner lives, which is across lines, batches and documents for as
+ * long as the language model and glyph substitution model stay the same.
+ * With a capacity, at most that many rows are kept; past it, rows are evicted
+ * in least recently used order, approximated the CLOCK way: a hit marks its
+ * row, and the eviction hand skips (and unmarks) marked rows. Reading a kept
+ * row takes no lock; filling one does, so that decoder threads can share the
+ * interner. The ids themselves are never evicted.
+ */
+public class TransitionStateInterner {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The successors of a state: their ids, the states themselves, and the
+	 * log probabilities of moving to them.
+	 */
+	public static class Successors {
+		public final int[] ids;
+		public final TransitionState[] states;
+		public final double[] logProbs;
+		public Successors(int[] ids, TransitionState[] states, double[] logProbs) {
+			this.ids = ids;
+			this.states = states;
+			this.logProbs = logProbs;
+		}
+		public int size() {
+			return ids.length;
+		}
+	}
+
+	/**
+	 * Rows by state id and kind (2*id for the forward transitions, 2*id+1 for
+	 * the next line's start states), with their CLOCK marks. Replaced, never
+	 * resized in place, so that readers always see matching arrays.
+	 */
+	private static class RowTable {
+		public final Successors[] rows;
+		public final boolean[] referenced;
+		public RowTable(int capacity) {
+			this.rows = new Successors[capacity];
+			this.referenced = new boolean[capacity];
+		}
+	}
+
+	private final SparseTransitionModel transitionModel;
+	private final int maxRows;
+	private final Map<TransitionState,Integer> ids;
+	private final List<TransitionState> states;
+	private volatile RowTable rowTable;
+	private volatile Successors startStates;
+	private final int[] clockRows;
+	private int numRows;
+	private int clockHand;
+	private final LongAdder hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param maxRows	The most successor rows to keep, 0 for no limit.
+	 */
+	public TransitionStateInterner(SparseTransitionModel transitionModel, int maxRows) {
+		if (maxRows < 0) throw new RuntimeException("Successor cache size must not be negative, got " + maxRows);
+		this.transitionModel = transitionModel;
+		this.maxRows = maxRows;
+		this.ids = new HashMap<TransitionState,Integer>();
+		this.states = new ArrayList<TransitionState>();
+		this.rowTable = new RowTable(2*INITIAL_CAPACITY);
+		this.clockRows = (maxRows > 0 ? new int[maxRows] : null);
+		this.startStates = null;
+		this.numRows = 0;
+		this.clockHand = 0;
+		this.hits = new LongAdder();
+		this.misses = 0L;
+		this.evictions = 0L;
+	}
+
+	public SparseTransitionModel getTransitionModel() {
+		return transitionModel;
+	}
+
+	public synchronized int id(TransitionState ts) {
+		Integer id = ids.get(ts);
+		if (id == null) {
+			id = states.size();
+			ids.put(ts, id);
+			states.add(ts);
+		}
+		return id;
+	}
+
+	public synchronized TransitionState state(int id) {
+		return states.get(id);
+	}
+
+	public synchronized int numStates() {
+		return states.size();
+	}
+
+	/**
+	 * The states a line can start in, with their log probabilities.
+	 */
+	public Successors startStates() {
+		Successors result = startStates;
+		if (result == null) {
+			synchronized (this) {
+				if (startStates == null) startStates = intern(transitionModel.startStates());
+				result = startStates;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The states that can follow the state with the given id on the same line.
+	 */
+	public Successors forwardTransitions(int id, TransitionState ts) {
+		return row(2*id, ts);
+	}
+
+	/**
+	 * The states the next line can start in when this line ends in the state
+	 * with the given id.
+	 */
+	public Successors nextLineStartStates(int id, TransitionState ts) {
+		return row(2*id+1, ts);
+	}
+
+	/**
+	 * Hits, misses and evictions of the successor rows so far.
+	 */
+	public synchronized String statistics() {
+		long numHits = hits.sum();
+		long numLookups = numHits + misses;
+		return String.format("%d transition states, %d successor rows kept%s; %d hits, %d misses (%.1f%% hit rate), %d evictions", states.size(), numRows, (maxRows > 0 ? " of at most " + maxRows : ""), numHits, misses, (numLookups > 0 ? 100.0 * numHits / numLookups : 0.0), evictions);
+	}
+
+	private Successors row(int row, TransitionState ts) {
+		RowTable table = rowTable;
+		if (row < table.rows.length) {
+			Successors result = table.rows[row];
+			if (result != null) {
+				// a racy mark is fine, it only steers eviction
+				table.referenced[row] = true;
+				hits.increment();
+				return result;
+			}
+		}
+		synchronized (this) {
+			if (row >= rowTable.rows.length) grow(row);
+			table = rowTable;
+			Successors result = table.rows[row];
+			if (result == null) {
+				misses++;
+				result = intern(row % 2 == 0 ? ts.forwardTransitions() : ts.nextLineStartStates());
+				if (maxRows > 0) {
+					if (numRows == maxRows) {
+						evict(table, row);
+					} else {
+						clockRows[numRows] = row;
+						numRows++;
+					}
+				} else {
+					numRows++;
+				}
+				table.rows[row] = result;
+				table.referenced[row] = false;
+				// republish, so that readers see the new row's contents
+				rowTable = table;
+			} else {
+				table.referenced[row] = true;
+				hits.increment();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Frees the ring position under the hand for the row about to be filled.
+	 */
+	private void evict(RowTable table, int row) {
+		while (table.referenced[clockRows[clockHand]]) {
+			table.referenced[clockRows[clockHand]] = false;
+			clockHand = (clockHand+1) % maxRows;
+		}
+		table.rows[clockRows[clockHand]] = null;
+		evictions++;
+		clockRows[clockHand] = row;
+		clockHand = (clockHand+1) % maxRows;
+	}
+
+	private void grow(int row) {
+		RowTable table = rowTable;
+		RowTable grown = new RowTable(Math.max(2*table.rows.length, row+2));
+		System.arraycopy(table.rows, 0, grown.rows, 0, table.rows.length);
+		System.arraycopy(table.referenced, 0, grown.referenced, 0, table.referenced.length);
+		rowTable = grown;
+	}
+
+	private Successors intern(Collection<Tuple2<TransitionState,Double>> transitions) {
+		int[] successorIds = new int[transitions.size()];
+		TransitionState[] successorStates = new TransitionState[transitions.size()];
+		double[] logProbs = new double[transitions.size()];
+		int i = 0;
+		for (Tuple2<TransitionState,Double> trans : transitions) {
+			successorIds[i] = id(trans._1);
+			successorStates[i] = trans._1;
+			logProbs[i] = trans._2;
+			i++;
+		}
+		return new Successors(successorIds, successorStates, logProbs);
+	}
+
+}
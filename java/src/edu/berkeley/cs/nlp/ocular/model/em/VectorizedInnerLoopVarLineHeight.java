@@ -0,0 +1,100 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import gpu.CudaUtil;
+
+/**
+ * CPU engine for the emission cache inner loop that is laid out for the
+ * JIT's auto-vectorizer rather than for readability: the white and black
+ * dot products are fused into a single pass, and every template column is
+ * scored against BLOCK consecutive positions at once so that each template
+ * value is loaded once and feeds BLOCK independent accumulators.
+ *
+ * This tree is still compiled for Java 8, so the incubating Vector API is
+ * not an option; the register blocking below is what HotSpot's superword
+ * pass can turn into packed SIMD arithmetic on any JVM.
+ */
+public class VectorizedInnerLoopVarLineHeight implements EmissionCacheInnerLoopVarLineHeight {
+
+	private static final int BLOCK = 4;
+
+	int numThreads;
+	float[][] whiteTemplates;
+	float[][] blackTemplates;
+	int[] templateNumIndices;
+	int[] templateIndicesOffsets;
+	int maxTemplateWidth;
+	int minTemplateWidth;
+	int lineHeight;
+
+	public VectorizedInnerLoopVarLineHeight(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public void startup(float[][] whiteTemplates, float[][] blackTemplates, int[] templateNumIndices, int[] templateIndicesOffsets, int minTemplateWidth, int maxTemplateWidth, int maxSequenceLength, int totalTemplateNumIndices, int lineHeight) {
+		this.whiteTemplates = whiteTemplates;
+		this.blackTemplates = blackTemplates;
+		this.templateNumIndices = templateNumIndices;
+		this.templateIndicesOffsets = templateIndicesOffsets;
+		this.maxTemplateWidth = maxTemplateWidth;
+		this.minTemplateWidth = minTemplateWidth;
+		this.lineHeight = lineHeight;
+	}
+
+	public void shutdown() {
+	}
+
+	public void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength) {
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			if (numIndices == 0) continue;
+			float[] whiteTemplatesForWidth = whiteTemplates[tw-minTemplateWidth];
+			float[] blackTemplatesForWidth = blackTemplates[tw-minTemplateWidth];
+			int scoresOffset = templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength;
+			int templateLength = tw*lineHeight;
+			int numPositions = (sequenceLength-tw)+1;
+			int t = 0;
+			for (; t+BLOCK<=numPositions; t+=BLOCK) {
+				int o0 = t*lineHeight;
+				int o1 = o0+lineHeight;
+				int o2 = o1+lineHeight;
+				int o3 = o2+lineHeight;
+				for (int i=0; i<numIndices; ++i) {
+					int ti = i*templateLength;
+					float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+					for (int j=0; j<templateLength; ++j) {
+						float w = whiteTemplatesForWidth[ti+j];
+						float b = blackTemplatesForWidth[ti+j];
+						s0 += whiteObservations[o0+j]*w + blackObservations[o0+j]*b;
+						s1 += whiteObservations[o1+j]*w + blackObservations[o1+j]*b;
+						s2 += whiteObservations[o2+j]*w + blackObservations[o2+j]*b;
+						s3 += whiteObservations[o3+j]*w + blackObservations[o3+j]*b;
+					}
+					scores[scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, t, i)] += s0;
+					scores[scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, t+1, i)] += s1;
+					scores[scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, t+2, i)] += s2;
+					scores[scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, t+3, i)] += s3;
+				}
+			}
+			for (; t<numPositions; ++t) {
+				int o = t*lineHeight;
+				for (int i=0; i<numIndices; ++i) {
+					int ti = i*templateLength;
+					float s = 0.0f;
+					for (int j=0; j<templateLength; ++j) {
+						s += whiteObservations[o+j]*whiteTemplatesForWidth[ti+j] + blackObservations[o+j]*blackTemplatesForWidth[ti+j];
+					}
+					scores[scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, t, i)] += s;
+				}
+			}
+		}
+	}
+
+	public int numOuterThreads() {
+		return numThreads;
+	}
+
+	public int numPopulateThreads() {
+		return 1;
+	}
+
+}
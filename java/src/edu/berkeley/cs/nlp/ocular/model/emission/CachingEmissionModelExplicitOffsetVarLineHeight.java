@@ -2,12 +2,16 @@ package edu.berkeley.cs.nlp.ocular.model.emission;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import edu.berkeley.cs.nlp.ocular.data.textreader.Charset;
+import edu.berkeley.cs.nlp.ocular.image.BitPackedLine;
 import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
 import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
 import edu.berkeley.cs.nlp.ocular.model.em.EmissionCacheInnerLoopVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.model.emission.EmissionCacheStorage.EmissionCacheStorageFactory;
 import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
 import gpu.CudaUtil;
 import indexer.Indexer;
@@ -22,22 +26,36 @@ public class CachingEmissionModelExplicitOffsetVarLineHeight implements Emission
 	private int numChars;
 	private CharacterTemplateVarLineHeight[] templates;
 	private PixelType[][][] observations;
-	private float[][] whiteObservations;
-	private float[][] blackObservations;
+	private BitPackedLine[] packedObservations;
 	private int[][] templateAllowedWidths;
 	private int[] templateMinWidths;
 	private int[] templateMaxWidths;
 	private int[] padAndTemplateMinWidths;
 	private int[] padAndTemplateMaxWidths;
 	private int[][] padAndTemplateAllowedWidths;
-	private float[][][][][] cachedLogProbs;
+	private EmissionCacheStorageFactory storageFactory;
+	private IncrementalEmissionCache incrementalCache;
+	private EmissionCacheStorage cachedLogProbs;
+	private int[] charRowOffsets;
+	private int[] charWidthOffsets;
 	private int spaceIndex;
 	private int padMinWidth;
 	private int padMaxWidth;
     private int lineHeight;
+	private int columnWindow;
+	private double pruningMargin;
+	private int exposureCandidates;
+	private boolean[][] lineExposures;
+	private int offsetRadius;
+	private int[][] lineOffsetRanges;
+	private int numOffsetSlots;
+	private boolean recordAlignments;
+	private EmissionAlignmentTable alignments;
 	
-	public CachingEmissionModelExplicitOffsetVarLineHeight(CharacterTemplateVarLineHeight[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, int lineHeight, EmissionCacheInnerLoopVarLineHeight innerLoop) {
+	public CachingEmissionModelExplicitOffsetVarLineHeight(CharacterTemplateVarLineHeight[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, int lineHeight, EmissionCacheInnerLoopVarLineHeight innerLoop, EmissionCacheStorageFactory storageFactory, IncrementalEmissionCache incrementalCache, int columnWindow, double pruningMargin, int exposureCandidates, int offsetRadius, boolean recordAlignments) {
 		this.innerLoop = innerLoop;
+		this.storageFactory = storageFactory;
+		this.incrementalCache = incrementalCache;
 		
 		this.numChars = charIndexer.size();
 		this.spaceIndex = charIndexer.getIndex(Charset.SPACE);
@@ -46,27 +64,15 @@ public class CachingEmissionModelExplicitOffsetVarLineHeight implements Emission
 		this.padMinWidth = padMinWidth;
 		this.padMaxWidth = padMaxWidth;
 		this.lineHeight = lineHeight;
+		this.columnWindow = columnWindow;
+		this.pruningMargin = pruningMargin;
+		this.exposureCandidates = exposureCandidates;
+		this.offsetRadius = offsetRadius;
+		this.recordAlignments = recordAlignments;
 		
-		this.whiteObservations = new float[observations.length][];
-		this.blackObservations = new float[observations.length][];
+		this.packedObservations = new BitPackedLine[observations.length];
 		for (int d=0; d<observations.length; ++d) {
-			this.whiteObservations[d] = new float[sequenceLength(d)*lineHeight];
-			this.blackObservations[d] = new float[sequenceLength(d)*lineHeight];
-			for (int t=0; t<sequenceLength(d); ++t) {
-				for (int j=0; j<lineHeight; ++j) {
-					PixelType observation = observations[d][t][j];
-					if (observation == PixelType.BLACK) {
-						this.whiteObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)] = 0.0f;
-						this.blackObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)] = 1.0f;
-					} else if (observation == PixelType.WHITE) {
-						this.whiteObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)] = 1.0f;
-						this.blackObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)] = 0.0f;
-					} else {
-						this.whiteObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)] = 0.0f;
-						this.blackObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)] = 0.0f;
-					} 
-				}
-			}
+			this.packedObservations[d] = new BitPackedLine(observations[d], lineHeight);
 		}
 	}
 	
@@ -93,8 +99,8 @@ public class CachingEmissionModelExplicitOffsetVarLineHeight implements Emission
 	
 	public float logProb(int d, int t, int c, int w) {
 		float result = Float.NEGATIVE_INFINITY;
-		for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
-			result = Math.max(result, cachedLogProbs[d][t][c][offset+CharacterTemplateVarLineHeight.MAX_OFFSET][w-padAndTemplateMinWidths[c]]);
+		for (int offset=lineOffsetRanges[d][0]; offset<=lineOffsetRanges[d][1]; ++offset) {
+			result = Math.max(result, cachedLogProbs.get(d, t, cacheIndex(d, c, offset, w)));
 		}
 		return result;
 	}
@@ -102,27 +108,20 @@ public class CachingEmissionModelExplicitOffsetVarLineHeight implements Emission
 	public float logProb(int d, int t, TransitionState ts, int w) {
 		int c = ts.getGlyphChar().templateCharIndex;
 		int offset = ts.getOffset();
-		return cachedLogProbs[d][t][c][offset+CharacterTemplateVarLineHeight.MAX_OFFSET][w-padAndTemplateMinWidths[c]];
+		if (offset < lineOffsetRanges[d][0] || offset > lineOffsetRanges[d][1]) return Float.NEGATIVE_INFINITY;
+		return cachedLogProbs.get(d, t, cacheIndex(d, c, offset, w));
+	}
+	
+	/**
+	 * Each character has a slot per offset in the widest offset range of any
+	 * line, and a line's offsets take the first slots.
+	 */
+	private int cacheIndex(int d, int c, int offset, int w) {
+		return charRowOffsets[c] + (offset-lineOffsetRanges[d][0])*(padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1) + w-padAndTemplateMinWidths[c];
 	}
 	
 	public int getExposure(int d, int t, TransitionState ts, int w) {
-		int c = ts.getGlyphChar().templateCharIndex;
-		int offset = ts.getOffset();
-		double bestScore = Double.NEGATIVE_INFINITY;
-		int bestExposure = -1;
-		for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
-			for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
-				int tw = w-pw;
-				if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
-					double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, offset);
-					if (score > bestScore) {
-						bestScore = score;
-						bestExposure = e;
-					}
-				}
-			}
-		}
-		return bestExposure;
+		return bestAlignment(d, t, ts, w)[0];
 	}
 	
 	public int getOffset(int d, int t, TransitionState ts, int w) {
@@ -130,29 +129,77 @@ public class CachingEmissionModelExplicitOffsetVarLineHeight implements Emission
 	}
 	
 	public int getPadWidth(int d, int t, TransitionState ts, int w) {
+		return bestAlignment(d, t, ts, w)[2];
+	}
+	
+	/**
+	 * The exposure, offset and pad width that best explain ts over columns t
+	 * to t+w, as {exposure, offset, padWidth}, found in a single search over
+	 * exposures and pad widths. The offset is always the one of ts. Only the
+	 * exposures the cache scored the line under are searched. When the cache
+	 * recorded the alignment behind the score, that is used instead.
+	 */
+	private int[] bestAlignment(int d, int t, TransitionState ts, int w) {
 		int c = ts.getGlyphChar().templateCharIndex;
-		int offset = ts.getOffset();
+		if (alignments != null && ts.getOffset() >= lineOffsetRanges[d][0] && ts.getOffset() <= lineOffsetRanges[d][1]) {
+			int[] recorded = alignments.get(d, t, cacheIndex(d, c, ts.getOffset(), w));
+			if (recorded != null) return new int[] {recorded[0], ts.getOffset(), recorded[2]};
+		}
+		float[][] padLogProbs = new float[CharacterTemplateVarLineHeight.EXP_GAINS.length][padMaxWidth-padMinWidth+1];
+		for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
+			if (!lineExposures[d][e]) continue;
+			for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+				int tw = w-pw;
+				if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
+					padLogProbs[e][pw-padMinWidth] = templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, 0);
+				}
+			}
+		}
 		double bestScore = Double.NEGATIVE_INFINITY;
-		int bestPadWith = -1;
+		int[] best = new int[] {-1, Integer.MIN_VALUE, -1};
+		int offset = ts.getOffset();
 		for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
+			if (!lineExposures[d][e]) continue;
 			for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
 				int tw = w-pw;
 				if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
-					double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, offset);
+					double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + padLogProbs[e][pw-padMinWidth];
 					if (score > bestScore) {
 						bestScore = score;
-						bestPadWith = pw;
+						best[0] = e;
+						best[1] = offset;
+						best[2] = pw;
 					}
 				}
 			}
 		}
-		return bestPadWith;
+		return best;
+	}
+	
+	/**
+	 * What the cached scores of line d depend on besides the templates: the
+	 * exposures and offsets it is scored under.
+	 */
+	private long scoringKey(int d) {
+		long key = 0L;
+		for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
+			if (lineExposures[d][e]) key |= 1L << e;
+		}
+		key |= (long) (lineOffsetRanges[d][0]+CharacterTemplateVarLineHeight.MAX_OFFSET) << 16;
+		key |= (long) (lineOffsetRanges[d][1]+CharacterTemplateVarLineHeight.MAX_OFFSET) << 32;
+		return key;
 	}
 	
 	public float padWidthLogProb(int pw) {
 		return (float) Math.log(1.0 / ((padMaxWidth - padMinWidth) + 1.0)); 
 	}
 	
+	public void releaseCache() {
+		if (cachedLogProbs != null) cachedLogProbs.release();
+		cachedLogProbs = null;
+		alignments = null;
+	}
+
 	public void rebuildCache() {
 		long nanoTime = System.nanoTime();
 		
@@ -185,39 +232,103 @@ public class CachingEmissionModelExplicitOffsetVarLineHeight implements Emission
 			}
 		}
 
-		final float[][][] logColumnProbsWhitespace = new float[observations.length][][];
+		// padLogProbs[d][(s*numExposures + e)*numPadWidths + pw-padMinWidth]: padding of pw space columns starting at column s,
+		// from running sums of the whitespace column scores so that it does not depend on pw or the character
+		final int numExposures = CharacterTemplateVarLineHeight.EXP_GAINS.length;
+		final int numPadWidths = padMaxWidth-padMinWidth+1;
+		final float[][] padLogProbs = new float[observations.length][];
+		final double[][][] cumulativeLogProbsWhitespace = new double[observations.length][][];
 		for (int d=0; d<observations.length; ++d) {
-			logColumnProbsWhitespace[d] = new float[sequenceLength(d)][CharacterTemplateVarLineHeight.EXP_GAINS.length];
-			for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
+			cumulativeLogProbsWhitespace[d] = new double[numExposures][sequenceLength(d)+1];
+			for (int e=0; e<numExposures; ++e) {
 				float[] logWhiteProbsWhitespace = templates[spaceIndex].logWhiteProbs(e, 0, 1)[0];
 				float[] logBlackProbsWhitespace = templates[spaceIndex].logBlackProbs(e, 0, 1)[0];
 				for (int t=0; t<sequenceLength(d); ++t) {
 					float logProb = 0.0f;
 					for (int j=0; j<lineHeight; ++j) {
-						logProb += logWhiteProbsWhitespace[j] * whiteObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)];
+						if (packedObservations[d].isWhite(t, j)) logProb += logWhiteProbsWhitespace[j];
+						else if (packedObservations[d].isBlack(t, j)) logProb += logBlackProbsWhitespace[j];
 					}
-					for (int j=0; j<lineHeight; ++j) {
-						logProb += logBlackProbsWhitespace[j] * blackObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)];
+					cumulativeLogProbsWhitespace[d][e][t+1] = cumulativeLogProbsWhitespace[d][e][t] + logProb;
+				}
+			}
+			padLogProbs[d] = new float[(sequenceLength(d)+1)*numExposures*numPadWidths];
+			for (int s=0; s<=sequenceLength(d); ++s) {
+				for (int e=0; e<numExposures; ++e) {
+					for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+						padLogProbs[d][(s*numExposures + e)*numPadWidths + pw-padMinWidth] = (s+pw <= sequenceLength(d)) ? (float) (padWidthLogProb(pw) + cumulativeLogProbsWhitespace[d][e][s+pw] - cumulativeLogProbsWhitespace[d][e][s]) : Float.NEGATIVE_INFINITY;
 					}
-					logColumnProbsWhitespace[d][t][e] = logProb;
 				}
 			}
 		}
 		
-		cachedLogProbs = new float[numSequences()][][][][];
-		for (int d=0; d<numSequences(); ++d) {
-			cachedLogProbs[d] = new float[sequenceLength(d)][][][];
-			for (int t=0; t<sequenceLength(d); ++t) {
-				cachedLogProbs[d][t] = new float[numChars][][];
-				for (int c=0; c<numChars; ++c) {
-					cachedLogProbs[d][t][c] = new float[2*CharacterTemplateVarLineHeight.MAX_OFFSET+1][];
-					for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
-						cachedLogProbs[d][t][c][offset+CharacterTemplateVarLineHeight.MAX_OFFSET] = new float[padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1];
-						Arrays.fill(cachedLogProbs[d][t][c][offset+CharacterTemplateVarLineHeight.MAX_OFFSET], Float.NEGATIVE_INFINITY);
-					}
+		// with exposure estimation, each line is only scored under the exposures that best explain its ink
+		lineExposures = new boolean[numSequences()][];
+		if (exposureCandidates > 0) {
+			LineExposureEstimator exposureEstimator = new LineExposureEstimator(templates, spaceIndex, lineHeight, exposureCandidates);
+			int[] numLinesPerExposure = new int[numExposures];
+			for (int d=0; d<numSequences(); ++d) {
+				lineExposures[d] = exposureEstimator.candidateExposures(packedObservations[d]);
+				for (int e=0; e<numExposures; ++e) if (lineExposures[d][e]) numLinesPerExposure[e]++;
+			}
+			System.out.println("Estimated line exposures (lines per exposure): " + Arrays.toString(numLinesPerExposure));
+		} else {
+			boolean[] allExposures = new boolean[numExposures];
+			Arrays.fill(allExposures, true);
+			Arrays.fill(lineExposures, allExposures);
+		}
+		
+		// with an offset radius, each line is only scored under the vertical offsets around where its text sits
+		lineOffsetRanges = new int[numSequences()][];
+		if (offsetRadius >= 0) {
+			LineOffsetEstimator offsetEstimator = new LineOffsetEstimator(templates, spaceIndex, lineHeight, offsetRadius);
+			int numNarrowed = 0;
+			for (int d=0; d<numSequences(); ++d) {
+				lineOffsetRanges[d] = offsetEstimator.offsetRange(packedObservations[d]);
+				if (lineOffsetRanges[d][1]-lineOffsetRanges[d][0] < 2*CharacterTemplateVarLineHeight.MAX_OFFSET) numNarrowed++;
+			}
+			System.out.println("Estimated line offset windows: " + numNarrowed + " of " + numSequences() + " lines narrowed to " + (2*Math.min(offsetRadius, CharacterTemplateVarLineHeight.MAX_OFFSET)+1) + " offsets");
+		} else {
+			Arrays.fill(lineOffsetRanges, new int[] {-CharacterTemplateVarLineHeight.MAX_OFFSET, CharacterTemplateVarLineHeight.MAX_OFFSET});
+		}
+		numOffsetSlots = 0;
+		for (int d=0; d<numSequences(); ++d) numOffsetSlots = Math.max(numOffsetSlots, lineOffsetRanges[d][1]-lineOffsetRanges[d][0]+1);
+		
+		charRowOffsets = new int[numChars];
+		charWidthOffsets = new int[numChars+1];
+		int rowLength = 0;
+		for (int c=0; c<numChars; ++c) {
+			charRowOffsets[c] = rowLength;
+			rowLength += numOffsetSlots*(padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1);
+			charWidthOffsets[c+1] = charWidthOffsets[c] + (padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1);
+		}
+		int[] sequenceLengths = new int[numSequences()];
+		for (int d=0; d<numSequences(); ++d) sequenceLengths[d] = sequenceLength(d);
+		releaseCache(); // let the previous cache go before allocating the next one
+		cachedLogProbs = storageFactory.make(sequenceLengths, rowLength);
+		// each score belongs to a single offset, so only the exposure and pad width are recorded
+		if (recordAlignments) alignments = new EmissionAlignmentTable(sequenceLengths, rowLength, 0, 0, padMinWidth, padMaxWidth);
+		
+		// with an incremental cache, only the characters whose templates changed since a line was last scored are recomputed
+		final IncrementalEmissionCache.LineScores[] lineScores = new IncrementalEmissionCache.LineScores[numSequences()];
+		final boolean[][] staleChars = new boolean[numSequences()][];
+		boolean[] computeChars = new boolean[numChars];
+		if (incrementalCache != null) {
+			// the incremental cache keeps each line's rows with only its own offset slots, so that the batch's widest offset range does not matter to it
+			incrementalCache.updateTemplateVersions(templates, charWidthOffsets[numChars]);
+			for (int d=0; d<numSequences(); ++d) {
+				lineScores[d] = incrementalCache.get(observations[d], numChars, numLineOffsetSlots(d)*charWidthOffsets[numChars], recordAlignments);
+				staleChars[d] = incrementalCache.staleChars(lineScores[d], spaceIndex, scoringKey(d));
+				if (staleChars[d] != null) {
+					for (int c=0; c<numChars; ++c) computeChars[c] |= staleChars[d][c];
 				}
 			}
+		} else {
+			Arrays.fill(computeChars, true);
+			Arrays.fill(staleChars, computeChars);
 		}
+		boolean anyComputeChars = false;
+		for (int c=0; c<numChars; ++c) anyComputeChars |= computeChars[c];
 		
 		int maxTemplateWidthTmp = Integer.MIN_VALUE;
 		int minTemplateWidthTmp = Integer.MAX_VALUE;
@@ -237,6 +348,7 @@ public class CachingEmissionModelExplicitOffsetVarLineHeight implements Emission
 		}
 		final int[] templateNumIndices = new int[numTemplateWidths];
 		for (int c=0; c<numChars; ++c) {
+			if (!computeChars[c]) continue;
 			for (int tw : templateAllowedWidths[c]) {
 				for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
 					for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
@@ -257,6 +369,10 @@ public class CachingEmissionModelExplicitOffsetVarLineHeight implements Emission
 			totalTemplateNumIndices += templateNumIndices[tw-minTemplateWidth];
 		}
 		
+		// the scores populate will not need, with pruning those a bound on their ink says are hopeless
+		final EmissionCachePruner pruner = new EmissionCachePruner(templates, templateAllowedWidths, templateMinWidths, templateMaxWidths, computeChars, spaceIndex, padMinWidth, lineHeight, pruningMargin, minTemplateWidth, templateIndices, templateNumIndices, templateIndicesOffsets);
+		final long[][] pruningCounts = new long[numSequences()][2];
+		
 		float[][] whiteTemplates = new float[numTemplateWidths][];
 		float[][] blackTemplates = new float[numTemplateWidths][];
 		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
@@ -264,51 +380,115 @@ public class CachingEmissionModelExplicitOffsetVarLineHeight implements Emission
 			blackTemplates[tw-minTemplateWidth] = CudaUtil.flatten(blackTemplatesList[tw-minTemplateWidth]);
 		}
 		
+		// with a column window, long lines are scored a window at a time (plus the columns the widest template reaches past it), which bounds the scratch scores
 		int maxSequenceLength = Integer.MIN_VALUE;
 		for (int d=0; d<numSequences(); ++d) maxSequenceLength = Math.max(maxSequenceLength, sequenceLength(d));
+		if (columnWindow > 0) maxSequenceLength = Math.min(maxSequenceLength, columnWindow+maxTemplateWidth-1);
 		
-		innerLoop.startup(whiteTemplates, blackTemplates, templateNumIndices, templateIndicesOffsets, minTemplateWidth, maxTemplateWidth, maxSequenceLength, totalTemplateNumIndices, lineHeight);
-		float[][] scores = new float[innerLoop.numOuterThreads()][maxSequenceLength*totalTemplateNumIndices];
+		if (anyComputeChars) innerLoop.startup(whiteTemplates, blackTemplates, templateNumIndices, templateIndicesOffsets, minTemplateWidth, maxTemplateWidth, maxSequenceLength, totalTemplateNumIndices, lineHeight);
+		float[][] scores = new float[innerLoop.numOuterThreads()][anyComputeChars ? maxSequenceLength*totalTemplateNumIndices : 0];
+		// each thread's pruning flags, laid out like its scores
+		final Map<float[],boolean[]> pruned = new IdentityHashMap<float[],boolean[]>();
+		if (pruningMargin > 0.0 || exposureCandidates > 0 || offsetRadius >= 0) {
+			for (int i=0; i<innerLoop.numOuterThreads(); ++i) pruned.put(scores[i], new boolean[scores[i].length]);
+		}
 		BetterThreader.Function<Integer,float[]> func = new BetterThreader.Function<Integer,float[]>(){public void call(Integer d, float[] scores){
-			Arrays.fill(scores, 0.0f);
-			innerLoop.compute(scores, whiteObservations[d], blackObservations[d], sequenceLength(d));
-			populate(d, scores, minTemplateWidth, logColumnProbsWhitespace, templateIndices, templateNumIndices, templateIndicesOffsets, innerLoop.numPopulateThreads());
+			if (staleChars[d] == null) {
+				float[] row = new float[cachedLogProbs.rowLength()];
+				for (int t=0; t<sequenceLength(d); ++t) {
+					expandRow(d, lineScores[d], t, row);
+					cachedLogProbs.setRow(d, t, row);
+				}
+				return;
+			}
+			int windowLength = (columnWindow > 0 ? columnWindow : sequenceLength(d));
+			for (int windowStart=0; windowStart<sequenceLength(d); windowStart+=windowLength) {
+				int windowEnd = Math.min(sequenceLength(d), windowStart+windowLength);
+				int scoredEnd = Math.min(sequenceLength(d), windowEnd+maxTemplateWidth-1);
+				Arrays.fill(scores, 0.0f);
+				BitPackedLine subLine = (windowStart == 0 && scoredEnd == sequenceLength(d)) ? packedObservations[d] : packedObservations[d].columns(windowStart, scoredEnd);
+				boolean[] prunedScores = null;
+				if (pruningMargin > 0.0 || exposureCandidates > 0 || offsetRadius >= 0) {
+					prunedScores = pruned.get(scores);
+					pruner.prune(packedObservations[d], windowStart, windowEnd, scoredEnd-windowStart, prunedScores, cumulativeLogProbsWhitespace[d], staleChars[d], lineExposures[d], lineOffsetRanges[d], pruningCounts[d]);
+					innerLoop.compute(scores, subLine, prunedScores);
+				} else {
+					innerLoop.compute(scores, subLine);
+				}
+				populate(d, windowStart, windowEnd, scoredEnd-windowStart, scores, prunedScores, minTemplateWidth, padLogProbs[d], templateIndices, templateNumIndices, templateIndicesOffsets, staleChars[d], lineScores[d], innerLoop.numPopulateThreads());
+			}
 		}};
 		BetterThreader<Integer,float[]> threader = new BetterThreader<Integer,float[]>(func, innerLoop.numOuterThreads());
 		for (int d=0; d<numSequences(); ++d) threader.addFunctionArgument(d);
 		for (int t=0; t<innerLoop.numOuterThreads(); ++t) threader.setThreadArgument(t, scores[t]);
 		threader.run();
-		innerLoop.shutdown();
+		if (anyComputeChars) innerLoop.shutdown();
+		
+		if (pruningMargin > 0.0) {
+			long numPruned = 0L;
+			long numBounded = 0L;
+			for (int d=0; d<numSequences(); ++d) {
+				numPruned += pruningCounts[d][0];
+				numBounded += pruningCounts[d][1];
+			}
+			System.out.printf("Emission cache pruning: %d of %d (position, char, width) blocks pruned (%.1f%%)\n", numPruned, numBounded, 100.0 * numPruned / Math.max(1L, numBounded));
+		}
+		
+		if (incrementalCache != null) {
+			for (int d=0; d<numSequences(); ++d) incrementalCache.put(observations[d], lineScores[d], staleChars[d], scoringKey(d));
+			System.out.println("Incremental emission cache: " + incrementalCache.stats());
+		}
 		
 		System.out.println("Rebuild emission cache: " + (System.nanoTime() - nanoTime)/1000000 + "ms");
 		System.out.printf("Estimated emission cache size: %.3fgb\n", estimateMemoryUsage());
 	}
 	
-	private void populate(final int d, final float[] scores, final int minTemplateWidth, final float[][][] logColumnProbsWhitespace, final int[][][][] templateIndices, final int[] templateNumIndices, final int[] templateIndicesOffsets, int numThreads) {
-		BetterThreader.Function<Integer,Object> func = new BetterThreader.Function<Integer,Object>(){public void call(Integer t, Object ignore){
+	/**
+	 * Fill in the cache rows of columns windowStart to windowEnd of line d
+	 * from scores computed over the scoresLength columns starting at
+	 * windowStart. Only the line's offsets are read, and the flagged scores
+	 * are left out: characters pruned at a position and template width stay
+	 * at -infinity there, and so do the exposures the line is not scored
+	 * under.
+	 */
+	private void populate(final int d, final int windowStart, final int windowEnd, final int scoresLength, final float[] scores, final boolean[] pruned, final int minTemplateWidth, final float[] padLogProbs, final int[][][][] templateIndices, final int[] templateNumIndices, final int[] templateIndicesOffsets, final boolean[] computeChars, final IncrementalEmissionCache.LineScores previousScores, int numThreads) {
+		final int rowLength = cachedLogProbs.rowLength();
+		final int numExposures = CharacterTemplateVarLineHeight.EXP_GAINS.length;
+		final int numPadWidths = padMaxWidth-padMinWidth+1;
+		final int[] offsetRange = lineOffsetRanges[d];
+		BetterThreader.Function<Integer,float[]> func = new BetterThreader.Function<Integer,float[]>(){public void call(Integer t, float[] row){
+			if (previousScores != null) expandRow(d, previousScores, t, row);
 			for (int c=0; c<numChars; ++c) {
+				if (!computeChars[c]) continue;
+				Arrays.fill(row, charRowOffsets[c], (c+1 < numChars ? charRowOffsets[c+1] : rowLength), Float.NEGATIVE_INFINITY);
+				if (alignments != null) alignments.clear(d, t, charRowOffsets[c], (c+1 < numChars ? charRowOffsets[c+1] : rowLength));
 				int[] templateWidths = templateAllowedWidths[c];
 				for (int tw : templateWidths) {
 					double templateWidthLogProb = templates[c].widthLogProb(tw);
 					if (t+tw+padMinWidth <= sequenceLength(d)) {
 						for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
+							if (pruned != null && pruned[templateIndicesOffsets[tw-minTemplateWidth]*scoresLength + CudaUtil.flatten(scoresLength, templateNumIndices[tw-minTemplateWidth], t-windowStart, templateIndices[tw-minTemplateWidth][c][e][offsetRange[0]+CharacterTemplateVarLineHeight.MAX_OFFSET])]) {
+								// an exposure the line is scored under was pruned here, so the widths it reaches are left to the search
+								if (alignments != null && lineExposures[d][e]) {
+									for (int pw=padMinWidth; pw<=padMaxWidth && t+tw+pw<=sequenceLength(d); ++pw) {
+										for (int offset=offsetRange[0]; offset<=offsetRange[1]; ++offset) alignments.markPruned(d, t, cacheIndex(d, c, offset, tw+pw));
+									}
+								}
+								continue;
+							}
 							float[] templateLogProbs = new float[CharacterTemplateVarLineHeight.MAX_OFFSET*2+1];
-							for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
-								templateLogProbs[offset+CharacterTemplateVarLineHeight.MAX_OFFSET] = (float) templateWidthLogProb + scores[templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength(d) + CudaUtil.flatten(sequenceLength(d), templateNumIndices[tw-minTemplateWidth], t, templateIndices[tw-minTemplateWidth][c][e][offset+CharacterTemplateVarLineHeight.MAX_OFFSET])];
+							for (int offset=offsetRange[0]; offset<=offsetRange[1]; ++offset) {
+								templateLogProbs[offset+CharacterTemplateVarLineHeight.MAX_OFFSET] = (float) templateWidthLogProb + scores[templateIndicesOffsets[tw-minTemplateWidth]*scoresLength + CudaUtil.flatten(scoresLength, templateNumIndices[tw-minTemplateWidth], t-windowStart, templateIndices[tw-minTemplateWidth][c][e][offset+CharacterTemplateVarLineHeight.MAX_OFFSET])];
 							}
 							for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
 								int w = tw + pw;
 								if (t+w <= sequenceLength(d)) {
-									float padLogProb = (float) padWidthLogProb(pw);
-									if (pw > 0) {
-										for (int tt=0; tt<pw; ++tt) {
-											padLogProb += logColumnProbsWhitespace[d][t+tw+tt][e];
-										}
-									}
-									for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
+									float padLogProb = padLogProbs[((t+tw)*numExposures + e)*numPadWidths + pw-padMinWidth];
+									for (int offset=offsetRange[0]; offset<=offsetRange[1]; ++offset) {
 										float logProb = templateLogProbs[offset+CharacterTemplateVarLineHeight.MAX_OFFSET] + padLogProb;
-										if (logProb > cachedLogProbs[d][t][c][offset+CharacterTemplateVarLineHeight.MAX_OFFSET][w-padAndTemplateMinWidths[c]]) {
-											cachedLogProbs[d][t][c][offset+CharacterTemplateVarLineHeight.MAX_OFFSET][w-padAndTemplateMinWidths[c]] = logProb;
+										if (logProb > row[cacheIndex(d, c, offset, w)]) {
+											row[cacheIndex(d, c, offset, w)] = logProb;
+											if (alignments != null) alignments.set(d, t, cacheIndex(d, c, offset, w), e, 0, pw);
 										}
 									}
 								}
@@ -317,18 +497,53 @@ public class CachingEmissionModelExplicitOffsetVarLineHeight implements Emission
 					}
 				}
 			}
+			cachedLogProbs.setRow(d, t, row);
+			if (previousScores != null) compactRow(d, row, previousScores, t);
 		}};
-		BetterThreader<Integer,Object> threader = new BetterThreader<Integer,Object>(func, numThreads);
-		for (int t=0; t<sequenceLength(d); ++t) threader.addFunctionArgument(t);
+		BetterThreader<Integer,float[]> threader = new BetterThreader<Integer,float[]>(func, numThreads);
+		for (int t=windowStart; t<windowEnd; ++t) threader.addFunctionArgument(t);
+		for (int i=0; i<numThreads; ++i) threader.setThreadArgument(i, new float[cachedLogProbs.rowLength()]);
 		threader.run();
 	}
 
+	private int numLineOffsetSlots(int d) {
+		return lineOffsetRanges[d][1]-lineOffsetRanges[d][0]+1;
+	}
+	
+	/**
+	 * Copy row t of a line's incrementally cached scores, which only have
+	 * slots for the line's own offsets, into a cache row, whose characters
+	 * have slots for the widest offset range of the batch. The slots past the
+	 * line's own are -infinity. The recorded alignments are copied along.
+	 */
+	private void expandRow(int d, IncrementalEmissionCache.LineScores lineScores, int t, float[] row) {
+		int numSlots = numLineOffsetSlots(d);
+		Arrays.fill(row, Float.NEGATIVE_INFINITY);
+		if (alignments != null) alignments.clear(d, t, 0, row.length);
+		for (int c=0; c<numChars; ++c) {
+			System.arraycopy(lineScores.logProbs, t*lineScores.rowLength + numSlots*charWidthOffsets[c], row, charRowOffsets[c], numSlots*(charWidthOffsets[c+1]-charWidthOffsets[c]));
+			if (alignments != null) System.arraycopy(lineScores.alignments, t*lineScores.rowLength + numSlots*charWidthOffsets[c], alignments.line(d), t*row.length + charRowOffsets[c], numSlots*(charWidthOffsets[c+1]-charWidthOffsets[c]));
+		}
+	}
+	
+	/**
+	 * The reverse of expandRow: copy the line's own slots of a cache row into
+	 * row t of its incrementally cached scores.
+	 */
+	private void compactRow(int d, float[] row, IncrementalEmissionCache.LineScores lineScores, int t) {
+		int numSlots = numLineOffsetSlots(d);
+		for (int c=0; c<numChars; ++c) {
+			System.arraycopy(row, charRowOffsets[c], lineScores.logProbs, t*lineScores.rowLength + numSlots*charWidthOffsets[c], numSlots*(charWidthOffsets[c+1]-charWidthOffsets[c]));
+			if (alignments != null) System.arraycopy(alignments.line(d), t*row.length + charRowOffsets[c], lineScores.alignments, t*lineScores.rowLength + numSlots*charWidthOffsets[c], numSlots*(charWidthOffsets[c+1]-charWidthOffsets[c]));
+		}
+	}
+	
 	public void incrementCount(int d, TransitionState ts, int startCol, int endCol, float count) {
 		if (count > 0.0) {
 			int c = ts.getGlyphChar().templateCharIndex;
 			int w = endCol - startCol;
-			int tw = w - getPadWidth(d, startCol, ts, w);
-			templates[c].incrementCounts(count, observations[d], startCol, tw, getExposure(d, startCol, ts, w), getOffset(d, startCol, ts, w));
+			int[] alignment = bestAlignment(d, startCol, ts, w);
+			templates[c].incrementCounts(count, observations[d], startCol, w - alignment[2], alignment[0], alignment[1]);
 		}
 	}
 	
@@ -342,23 +557,7 @@ public class CachingEmissionModelExplicitOffsetVarLineHeight implements Emission
 	}
 	
 	private double estimateMemoryUsage() {
-		double elementsOfCache = 0.0;
-		for (int i=0; i<cachedLogProbs.length; ++i) {
-			if (cachedLogProbs[i] != null) {
-				for (int j=0; j<cachedLogProbs[i].length; ++j) {
-					if (cachedLogProbs[i][j] != null) {
-						for (int k=0; k<cachedLogProbs[i][j].length; ++k) {
-							if (cachedLogProbs[i][j][k] != null) {
-								for (int l=0; l<cachedLogProbs[i][j][k].length; ++l) {
-									if (cachedLogProbs[i][j][k][l] != null) elementsOfCache += cachedLogProbs[i][j][k][l].length;
-								}
-							}
-						}
-					}
-				}
-			}			
-		}
-		return 4 * elementsOfCache / 1e9;
+		return (cachedLogProbs.numBytes() + (alignments != null ? alignments.numBytes() : 0L)) / 1e9;
 	}
 	
 	public static class CachingEmissionModelExplicitOffsetFactory implements EmissionModelVarLineHeight.EmissionModelFactory {
@@ -367,15 +566,36 @@ public class CachingEmissionModelExplicitOffsetVarLineHeight implements Emission
 		int padMaxWidth;
 	    int lineHeight;
 		EmissionCacheInnerLoopVarLineHeight innerLoop;
-		public CachingEmissionModelExplicitOffsetFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, int lineHeight, EmissionCacheInnerLoopVarLineHeight innerLoop) {
+		EmissionCacheStorageFactory storageFactory;
+		IncrementalEmissionCache incrementalCache;
+		int columnWindow;
+		double pruningMargin;
+		int exposureCandidates;
+		int offsetRadius;
+		boolean recordAlignments;
+		public CachingEmissionModelExplicitOffsetFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, int lineHeight, EmissionCacheInnerLoopVarLineHeight innerLoop, EmissionCacheStorageFactory storageFactory, IncrementalEmissionCache incrementalCache, int columnWindow, double pruningMargin, int exposureCandidates, int offsetRadius, boolean recordAlignments) {
 			this.charIndexer = charIndexer;
 			this.padMinWidth = padMinWidth;
 			this.padMaxWidth = padMaxWidth;
 			this.lineHeight = lineHeight;
 			this.innerLoop = innerLoop;
+			this.storageFactory = storageFactory;
+			this.incrementalCache = incrementalCache;
+			this.columnWindow = columnWindow;
+			this.pruningMargin = pruningMargin;
+			this.exposureCandidates = exposureCandidates;
+			this.offsetRadius = offsetRadius;
+			this.recordAlignments = recordAlignments;
 		}
 		public EmissionModelVarLineHeight make(CharacterTemplateVarLineHeight[] templates, PixelType[][][] observations) {
-			return new CachingEmissionModelExplicitOffsetVarLineHeight(templates, charIndexer, observations, padMinWidth, padMaxWidth, lineHeight, innerLoop);
+			return new CachingEmissionModelExplicitOffsetVarLineHeight(templates, charIndexer, observations, padMinWidth, padMaxWidth, lineHeight, innerLoop, storageFactory, incrementalCache, columnWindow, pruningMargin, exposureCandidates, offsetRadius, recordAlignments);
+		}
+		public long estimateNumBytes(CharacterTemplateVarLineHeight[] templates, PixelType[][] line) {
+			int rowLength = 0;
+			for (CharacterTemplateVarLineHeight template : templates) {
+				rowLength += (2*CharacterTemplateVarLineHeight.MAX_OFFSET+1)*((template.templateMaxWidth()+padMaxWidth)-(template.templateMinWidth()+padMinWidth)+1);
+			}
+			return storageFactory.numBytes(line.length, rowLength) + (recordAlignments ? EmissionAlignmentTable.numBytes(line.length, rowLength) : 0L);
 		}
 	}
 }
@@ -2,12 +2,16 @@ package edu.berkeley.cs.nlp.ocular.model.emission;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import edu.berkeley.cs.nlp.ocular.data.textreader.Charset;
+import edu.berkeley.cs.nlp.ocular.image.BitPackedLine;
 import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
 import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
 import edu.berkeley.cs.nlp.ocular.model.em.EmissionCacheInnerLoopVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.model.emission.EmissionCacheStorage.EmissionCacheStorageFactory;
 import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
 import gpu.CudaUtil;
 import indexer.Indexer;
@@ -22,22 +26,34 @@ public class CachingEmissionModelVarLineHeight implements EmissionModelVarLineHe
 	private int numChars;
 	private CharacterTemplateVarLineHeight[] templates;
 	private PixelType[][][] observations;
-	private float[][] whiteObservations;
-	private float[][] blackObservations;
+	private BitPackedLine[] packedObservations;
 	private int[][] templateAllowedWidths;
 	private int[] templateMinWidths;
 	private int[] templateMaxWidths;
 	private int[] padAndTemplateMinWidths;
 	private int[] padAndTemplateMaxWidths;
 	private int[][] padAndTemplateAllowedWidths;
-	private float[][][][] cachedLogProbs;
+	private EmissionCacheStorageFactory storageFactory;
+	private IncrementalEmissionCache incrementalCache;
+	private EmissionCacheStorage cachedLogProbs;
+	private int[] charRowOffsets;
 	private int spaceIndex;
 	private int padMinWidth;
 	private int padMaxWidth;
     private int lineHeight;
+	private int columnWindow;
+	private double pruningMargin;
+	private int exposureCandidates;
+	private boolean[][] lineExposures;
+	private int offsetRadius;
+	private int[][] lineOffsetRanges;
+	private boolean recordAlignments;
+	private EmissionAlignmentTable alignments;
 	
-	public CachingEmissionModelVarLineHeight(CharacterTemplateVarLineHeight[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, int lineHeight, EmissionCacheInnerLoopVarLineHeight innerLoop) {
+	public CachingEmissionModelVarLineHeight(CharacterTemplateVarLineHeight[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, int lineHeight, EmissionCacheInnerLoopVarLineHeight innerLoop, EmissionCacheStorageFactory storageFactory, IncrementalEmissionCache incrementalCache, int columnWindow, double pruningMargin, int exposureCandidates, int offsetRadius, boolean recordAlignments) {
 		this.innerLoop = innerLoop;
+		this.storageFactory = storageFactory;
+		this.incrementalCache = incrementalCache;
 		
 		this.numChars = charIndexer.size();
 		this.spaceIndex = charIndexer.getIndex(Charset.SPACE);
@@ -46,30 +62,18 @@ public class CachingEmissionModelVarLineHeight implements EmissionModelVarLineHe
 		this.padMinWidth = padMinWidth;
 		this.padMaxWidth = padMaxWidth;
 		this.lineHeight = lineHeight;
+		this.columnWindow = columnWindow;
+		this.pruningMargin = pruningMargin;
+		this.exposureCandidates = exposureCandidates;
+		this.offsetRadius = offsetRadius;
+		this.recordAlignments = recordAlignments;
 		
 		for (int c=0; c<numChars; ++c) 
 			if (templates[c] == null) throw new RuntimeException("template for template["+c+"] ("+charIndexer.getObject(c)+") is null!"); 
 
-		this.whiteObservations = new float[observations.length][];
-		this.blackObservations = new float[observations.length][];
+		this.packedObservations = new BitPackedLine[observations.length];
 		for (int d=0; d<observations.length; ++d) {
-			this.whiteObservations[d] = new float[sequenceLength(d)*lineHeight];
-			this.blackObservations[d] = new float[sequenceLength(d)*lineHeight];
-			for (int t=0; t<sequenceLength(d); ++t) {
-				for (int j=0; j<lineHeight; ++j) {
-					PixelType observation = observations[d][t][j];
-					if (observation == PixelType.BLACK) {
-						this.whiteObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)] = 0.0f;
-						this.blackObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)] = 1.0f;
-					} else if (observation == PixelType.WHITE) {
-						this.whiteObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)] = 1.0f;
-						this.blackObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)] = 0.0f;
-					} else {
-						this.whiteObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)] = 0.0f;
-						this.blackObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)] = 0.0f;
-					} 
-				}
-			}
+			this.packedObservations[d] = new BitPackedLine(observations[d], lineHeight);
 		}
 	}
 	
@@ -94,7 +98,7 @@ public class CachingEmissionModelVarLineHeight implements EmissionModelVarLineHe
 	}
 	
 	public float logProb(int d, int t, int c, int w) {
-		return cachedLogProbs[d][t][c][w-padAndTemplateMinWidths[c]];
+		return cachedLogProbs.get(d, t, charRowOffsets[c] + w-padAndTemplateMinWidths[c]);
 	}
 	
 	public float logProb(int d, int t, TransitionState ts, int w) {
@@ -102,72 +106,87 @@ public class CachingEmissionModelVarLineHeight implements EmissionModelVarLineHe
 	}
 	
 	public int getExposure(int d, int t, TransitionState ts, int w) {
-		int c = ts.getGlyphChar().templateCharIndex;
-		double bestScore = Double.NEGATIVE_INFINITY;
-		int bestExposure = -1;
-		for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
-			for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
-				for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
-					int tw = w-pw;
-					if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
-						double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, offset);
-						if (score > bestScore) {
-							bestScore = score;
-							bestExposure = e;
-						}
-					}
-				}
-			}
-		}
-		return bestExposure;
+		return bestAlignment(d, t, ts, w)[0];
 	}
 	
 	public int getOffset(int d, int t, TransitionState ts, int w) {
-		int c = ts.getGlyphChar().templateCharIndex;
-		double bestScore = Double.NEGATIVE_INFINITY;
-		int bestOffset = Integer.MIN_VALUE;
-		for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
-			for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
-				for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
-					int tw = w-pw;
-					if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
-						double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, offset);
-						if (score > bestScore) {
-							bestScore = score;
-							bestOffset = offset;
-						}
-					}
-				}
-			}
-		}
-		return bestOffset;
+		return bestAlignment(d, t, ts, w)[1];
 	}
 	
 	public int getPadWidth(int d, int t, TransitionState ts, int w) {
+		return bestAlignment(d, t, ts, w)[2];
+	}
+	
+	/**
+	 * The exposure, offset and pad width that best explain ts over columns t
+	 * to t+w, as {exposure, offset, padWidth}, found in a single search.
+	 * The padding scores do not depend on the offset, so they are only
+	 * computed once per exposure and pad width. Only the exposures and
+	 * offsets the cache scored the line under are searched. When the cache
+	 * recorded the alignment behind the score, that is used instead.
+	 */
+	private int[] bestAlignment(int d, int t, TransitionState ts, int w) {
 		int c = ts.getGlyphChar().templateCharIndex;
+		if (alignments != null) {
+			int[] recorded = alignments.get(d, t, charRowOffsets[c] + w-padAndTemplateMinWidths[c]);
+			if (recorded != null) return recorded;
+		}
+		float[][] padLogProbs = new float[CharacterTemplateVarLineHeight.EXP_GAINS.length][padMaxWidth-padMinWidth+1];
+		for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
+			if (!lineExposures[d][e]) continue;
+			for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+				int tw = w-pw;
+				if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
+					padLogProbs[e][pw-padMinWidth] = templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, 0);
+				}
+			}
+		}
 		double bestScore = Double.NEGATIVE_INFINITY;
-		int bestPadWidth = -1;
-		for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
+		int[] best = new int[] {-1, Integer.MIN_VALUE, -1};
+		for (int offset=lineOffsetRanges[d][0]; offset<=lineOffsetRanges[d][1]; ++offset) {
 			for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
+				if (!lineExposures[d][e]) continue;
 				for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
 					int tw = w-pw;
 					if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
-						double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, offset);
+						double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + padLogProbs[e][pw-padMinWidth];
 						if (score > bestScore) {
 							bestScore = score;
-							bestPadWidth = pw;
+							best[0] = e;
+							best[1] = offset;
+							best[2] = pw;
 						}
 					}
 				}
 			}
 		}
-		return bestPadWidth;
+		return best;
+	}
+	
+	/**
+	 * What the cached scores of line d depend on besides the templates: the
+	 * exposures and offsets it is scored under.
+	 */
+	private long scoringKey(int d) {
+		long key = 0L;
+		for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
+			if (lineExposures[d][e]) key |= 1L << e;
+		}
+		key |= (long) (lineOffsetRanges[d][0]+CharacterTemplateVarLineHeight.MAX_OFFSET) << 16;
+		key |= (long) (lineOffsetRanges[d][1]+CharacterTemplateVarLineHeight.MAX_OFFSET) << 32;
+		return key;
 	}
 	
 	public float padWidthLogProb(int pw) {
 		return (float) Math.log(1.0 / ((padMaxWidth - padMinWidth) + 1.0)); 
 	}
 	
+	public void releaseCache() {
+		if (cachedLogProbs != null) cachedLogProbs.release();
+		cachedLogProbs = null;
+		alignments = null;
+	}
+
 	public void rebuildCache() {
 		long nanoTime = System.nanoTime();
 		
@@ -200,36 +219,97 @@ public class CachingEmissionModelVarLineHeight implements EmissionModelVarLineHe
 			}
 		}
 
-		final float[][][] logColumnProbsWhitespace = new float[observations.length][][];
+		// padLogProbs[d][(s*numExposures + e)*numPadWidths + pw-padMinWidth]: padding of pw space columns starting at column s,
+		// from running sums of the whitespace column scores so that it does not depend on pw or the character
+		final int numExposures = CharacterTemplateVarLineHeight.EXP_GAINS.length;
+		final int numPadWidths = padMaxWidth-padMinWidth+1;
+		final float[][] padLogProbs = new float[observations.length][];
+		final double[][][] cumulativeLogProbsWhitespace = new double[observations.length][][];
 		for (int d=0; d<observations.length; ++d) {
-			logColumnProbsWhitespace[d] = new float[sequenceLength(d)][CharacterTemplateVarLineHeight.EXP_GAINS.length];
-			for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
+			cumulativeLogProbsWhitespace[d] = new double[numExposures][sequenceLength(d)+1];
+			for (int e=0; e<numExposures; ++e) {
 				float[] logWhiteProbsWhitespace = templates[spaceIndex].logWhiteProbs(e, 0, 1)[0];
 				float[] logBlackProbsWhitespace = templates[spaceIndex].logBlackProbs(e, 0, 1)[0];
 				for (int t=0; t<sequenceLength(d); ++t) {
 					float logProb = 0.0f;
 					for (int j=0; j<lineHeight; ++j) {
-						logProb += logWhiteProbsWhitespace[j] * whiteObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)];
+						if (packedObservations[d].isWhite(t, j)) logProb += logWhiteProbsWhitespace[j];
+						else if (packedObservations[d].isBlack(t, j)) logProb += logBlackProbsWhitespace[j];
 					}
-					for (int j=0; j<lineHeight; ++j) {
-						logProb += logBlackProbsWhitespace[j] * blackObservations[d][CudaUtil.flatten(sequenceLength(d), lineHeight, t, j)];
+					cumulativeLogProbsWhitespace[d][e][t+1] = cumulativeLogProbsWhitespace[d][e][t] + logProb;
+				}
+			}
+			padLogProbs[d] = new float[(sequenceLength(d)+1)*numExposures*numPadWidths];
+			for (int s=0; s<=sequenceLength(d); ++s) {
+				for (int e=0; e<numExposures; ++e) {
+					for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+						padLogProbs[d][(s*numExposures + e)*numPadWidths + pw-padMinWidth] = (s+pw <= sequenceLength(d)) ? (float) (padWidthLogProb(pw) + cumulativeLogProbsWhitespace[d][e][s+pw] - cumulativeLogProbsWhitespace[d][e][s]) : Float.NEGATIVE_INFINITY;
 					}
-					logColumnProbsWhitespace[d][t][e] = logProb;
 				}
 			}
 		}
 		
-		cachedLogProbs = new float[numSequences()][][][];
-		for (int d=0; d<numSequences(); ++d) {
-			cachedLogProbs[d] = new float[sequenceLength(d)][][];
-			for (int t=0; t<sequenceLength(d); ++t) {
-				cachedLogProbs[d][t] = new float[numChars][];
-				for (int c=0; c<numChars; ++c) {
-					cachedLogProbs[d][t][c] = new float[padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1];
-					Arrays.fill(cachedLogProbs[d][t][c], Float.NEGATIVE_INFINITY);
+		// with exposure estimation, each line is only scored under the exposures that best explain its ink
+		lineExposures = new boolean[numSequences()][];
+		if (exposureCandidates > 0) {
+			LineExposureEstimator exposureEstimator = new LineExposureEstimator(templates, spaceIndex, lineHeight, exposureCandidates);
+			int[] numLinesPerExposure = new int[numExposures];
+			for (int d=0; d<numSequences(); ++d) {
+				lineExposures[d] = exposureEstimator.candidateExposures(packedObservations[d]);
+				for (int e=0; e<numExposures; ++e) if (lineExposures[d][e]) numLinesPerExposure[e]++;
+			}
+			System.out.println("Estimated line exposures (lines per exposure): " + Arrays.toString(numLinesPerExposure));
+		} else {
+			boolean[] allExposures = new boolean[numExposures];
+			Arrays.fill(allExposures, true);
+			Arrays.fill(lineExposures, allExposures);
+		}
+		
+		// with an offset radius, each line is only scored under the vertical offsets around where its text sits
+		lineOffsetRanges = new int[numSequences()][];
+		if (offsetRadius >= 0) {
+			LineOffsetEstimator offsetEstimator = new LineOffsetEstimator(templates, spaceIndex, lineHeight, offsetRadius);
+			int numNarrowed = 0;
+			for (int d=0; d<numSequences(); ++d) {
+				lineOffsetRanges[d] = offsetEstimator.offsetRange(packedObservations[d]);
+				if (lineOffsetRanges[d][1]-lineOffsetRanges[d][0] < 2*CharacterTemplateVarLineHeight.MAX_OFFSET) numNarrowed++;
+			}
+			System.out.println("Estimated line offset windows: " + numNarrowed + " of " + numSequences() + " lines narrowed to " + (2*Math.min(offsetRadius, CharacterTemplateVarLineHeight.MAX_OFFSET)+1) + " offsets");
+		} else {
+			Arrays.fill(lineOffsetRanges, new int[] {-CharacterTemplateVarLineHeight.MAX_OFFSET, CharacterTemplateVarLineHeight.MAX_OFFSET});
+		}
+		
+		charRowOffsets = new int[numChars];
+		int rowLength = 0;
+		for (int c=0; c<numChars; ++c) {
+			charRowOffsets[c] = rowLength;
+			rowLength += padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1;
+		}
+		int[] sequenceLengths = new int[numSequences()];
+		for (int d=0; d<numSequences(); ++d) sequenceLengths[d] = sequenceLength(d);
+		releaseCache(); // let the previous cache go before allocating the next one
+		cachedLogProbs = storageFactory.make(sequenceLengths, rowLength);
+		if (recordAlignments) alignments = new EmissionAlignmentTable(sequenceLengths, rowLength, -CharacterTemplateVarLineHeight.MAX_OFFSET, CharacterTemplateVarLineHeight.MAX_OFFSET, padMinWidth, padMaxWidth);
+		
+		// with an incremental cache, only the characters whose templates changed since a line was last scored are recomputed
+		final IncrementalEmissionCache.LineScores[] lineScores = new IncrementalEmissionCache.LineScores[numSequences()];
+		final boolean[][] staleChars = new boolean[numSequences()][];
+		boolean[] computeChars = new boolean[numChars];
+		if (incrementalCache != null) {
+			incrementalCache.updateTemplateVersions(templates, rowLength);
+			for (int d=0; d<numSequences(); ++d) {
+				lineScores[d] = incrementalCache.get(observations[d], numChars, rowLength, recordAlignments);
+				staleChars[d] = incrementalCache.staleChars(lineScores[d], spaceIndex, scoringKey(d));
+				if (staleChars[d] != null) {
+					for (int c=0; c<numChars; ++c) computeChars[c] |= staleChars[d][c];
 				}
 			}
+		} else {
+			Arrays.fill(computeChars, true);
+			Arrays.fill(staleChars, computeChars);
 		}
+		boolean anyComputeChars = false;
+		for (int c=0; c<numChars; ++c) anyComputeChars |= computeChars[c];
 		
 		int maxTemplateWidthTmp = Integer.MIN_VALUE;
 		int minTemplateWidthTmp = Integer.MAX_VALUE;
@@ -249,6 +329,7 @@ public class CachingEmissionModelVarLineHeight implements EmissionModelVarLineHe
 		}
 		final int[] templateNumIndices = new int[numTemplateWidths];
 		for (int c=0; c<numChars; ++c) {
+			if (!computeChars[c]) continue;
 			for (int tw : templateAllowedWidths[c]) {
 				for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
 					for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
@@ -269,6 +350,10 @@ public class CachingEmissionModelVarLineHeight implements EmissionModelVarLineHe
 			totalTemplateNumIndices += templateNumIndices[tw-minTemplateWidth];
 		}
 		
+		// the scores populate will not need, with pruning those a bound on their ink says are hopeless
+		final EmissionCachePruner pruner = new EmissionCachePruner(templates, templateAllowedWidths, templateMinWidths, templateMaxWidths, computeChars, spaceIndex, padMinWidth, lineHeight, pruningMargin, minTemplateWidth, templateIndices, templateNumIndices, templateIndicesOffsets);
+		final long[][] pruningCounts = new long[numSequences()][2];
+		
 		float[][] whiteTemplates = new float[numTemplateWidths][];
 		float[][] blackTemplates = new float[numTemplateWidths][];
 		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
@@ -276,52 +361,114 @@ public class CachingEmissionModelVarLineHeight implements EmissionModelVarLineHe
 			blackTemplates[tw-minTemplateWidth] = CudaUtil.flatten(blackTemplatesList[tw-minTemplateWidth]);
 		}
 		
+		// with a column window, long lines are scored a window at a time (plus the columns the widest template reaches past it), which bounds the scratch scores
 		int maxSequenceLength = Integer.MIN_VALUE;
 		for (int d=0; d<numSequences(); ++d) maxSequenceLength = Math.max(maxSequenceLength, sequenceLength(d));
+		if (columnWindow > 0) maxSequenceLength = Math.min(maxSequenceLength, columnWindow+maxTemplateWidth-1);
 		
-		innerLoop.startup(whiteTemplates, blackTemplates, templateNumIndices, templateIndicesOffsets, minTemplateWidth, maxTemplateWidth, maxSequenceLength, totalTemplateNumIndices, lineHeight);
-		float[][] scores = new float[innerLoop.numOuterThreads()][maxSequenceLength*totalTemplateNumIndices];
+		if (anyComputeChars) innerLoop.startup(whiteTemplates, blackTemplates, templateNumIndices, templateIndicesOffsets, minTemplateWidth, maxTemplateWidth, maxSequenceLength, totalTemplateNumIndices, lineHeight);
+		float[][] scores = new float[innerLoop.numOuterThreads()][anyComputeChars ? maxSequenceLength*totalTemplateNumIndices : 0];
+		// each thread's pruning flags, laid out like its scores
+		final Map<float[],boolean[]> pruned = new IdentityHashMap<float[],boolean[]>();
+		if (pruningMargin > 0.0 || exposureCandidates > 0 || offsetRadius >= 0) {
+			for (int i=0; i<innerLoop.numOuterThreads(); ++i) pruned.put(scores[i], new boolean[scores[i].length]);
+		}
 		BetterThreader.Function<Integer,float[]> func = new BetterThreader.Function<Integer,float[]>(){public void call(Integer d, float[] scores){
-			Arrays.fill(scores, 0.0f);
-			innerLoop.compute(scores, whiteObservations[d], blackObservations[d], sequenceLength(d));
-			populate(d, scores, minTemplateWidth, logColumnProbsWhitespace, templateIndices, templateNumIndices, templateIndicesOffsets, innerLoop.numPopulateThreads());
+			if (staleChars[d] == null) {
+				for (int t=0; t<sequenceLength(d); ++t) cachedLogProbs.setRow(d, t, Arrays.copyOfRange(lineScores[d].logProbs, t*cachedLogProbs.rowLength(), (t+1)*cachedLogProbs.rowLength()));
+				if (alignments != null) System.arraycopy(lineScores[d].alignments, 0, alignments.line(d), 0, lineScores[d].alignments.length);
+				return;
+			}
+			int windowLength = (columnWindow > 0 ? columnWindow : sequenceLength(d));
+			for (int windowStart=0; windowStart<sequenceLength(d); windowStart+=windowLength) {
+				int windowEnd = Math.min(sequenceLength(d), windowStart+windowLength);
+				int scoredEnd = Math.min(sequenceLength(d), windowEnd+maxTemplateWidth-1);
+				Arrays.fill(scores, 0.0f);
+				BitPackedLine subLine = (windowStart == 0 && scoredEnd == sequenceLength(d)) ? packedObservations[d] : packedObservations[d].columns(windowStart, scoredEnd);
+				boolean[] prunedScores = null;
+				if (pruningMargin > 0.0 || exposureCandidates > 0 || offsetRadius >= 0) {
+					prunedScores = pruned.get(scores);
+					pruner.prune(packedObservations[d], windowStart, windowEnd, scoredEnd-windowStart, prunedScores, cumulativeLogProbsWhitespace[d], staleChars[d], lineExposures[d], lineOffsetRanges[d], pruningCounts[d]);
+					innerLoop.compute(scores, subLine, prunedScores);
+				} else {
+					innerLoop.compute(scores, subLine);
+				}
+				populate(d, windowStart, windowEnd, scoredEnd-windowStart, scores, prunedScores, minTemplateWidth, padLogProbs[d], templateIndices, templateNumIndices, templateIndicesOffsets, staleChars[d], lineScores[d], innerLoop.numPopulateThreads());
+			}
 		}};
 		BetterThreader<Integer,float[]> threader = new BetterThreader<Integer,float[]>(func, innerLoop.numOuterThreads());
 		for (int d=0; d<numSequences(); ++d) threader.addFunctionArgument(d);
 		for (int t=0; t<innerLoop.numOuterThreads(); ++t) threader.setThreadArgument(t, scores[t]);
 		threader.run();
-		innerLoop.shutdown();
+		if (anyComputeChars) innerLoop.shutdown();
+		
+		if (pruningMargin > 0.0) {
+			long numPruned = 0L;
+			long numBounded = 0L;
+			for (int d=0; d<numSequences(); ++d) {
+				numPruned += pruningCounts[d][0];
+				numBounded += pruningCounts[d][1];
+			}
+			System.out.printf("Emission cache pruning: %d of %d (position, char, width) blocks pruned (%.1f%%)\n", numPruned, numBounded, 100.0 * numPruned / Math.max(1L, numBounded));
+		}
+		
+		if (incrementalCache != null) {
+			for (int d=0; d<numSequences(); ++d) incrementalCache.put(observations[d], lineScores[d], staleChars[d], scoringKey(d));
+			System.out.println("Incremental emission cache: " + incrementalCache.stats());
+		}
 		
 		System.out.println("Rebuild emission cache: " + (System.nanoTime() - nanoTime)/1000000 + "ms");
 		System.out.printf("Estimated emission cache size: %.3fgb\n", estimateMemoryUsage());
 	}
 	
-	private void populate(final int d, final float[] scores, final int minTemplateWidth, final float[][][] logColumnProbsWhitespace, final int[][][][] templateIndices, final int[] templateNumIndices, final int[] templateIndicesOffsets, int numThreads) {
-		BetterThreader.Function<Integer,Object> func = new BetterThreader.Function<Integer,Object>(){public void call(Integer t, Object ignore){
+	/**
+	 * Fill in the cache rows of columns windowStart to windowEnd of line d
+	 * from scores computed over the scoresLength columns starting at
+	 * windowStart. Only the line's offsets are read, and the flagged scores
+	 * are left out: characters pruned at a position and template width stay
+	 * at -infinity there, and so do the exposures the line is not scored
+	 * under.
+	 */
+	private void populate(final int d, final int windowStart, final int windowEnd, final int scoresLength, final float[] scores, final boolean[] pruned, final int minTemplateWidth, final float[] padLogProbs, final int[][][][] templateIndices, final int[] templateNumIndices, final int[] templateIndicesOffsets, final boolean[] computeChars, final IncrementalEmissionCache.LineScores previousScores, int numThreads) {
+		final int rowLength = cachedLogProbs.rowLength();
+		final int numExposures = CharacterTemplateVarLineHeight.EXP_GAINS.length;
+		final int numPadWidths = padMaxWidth-padMinWidth+1;
+		final int[] offsetRange = lineOffsetRanges[d];
+		BetterThreader.Function<Integer,float[]> func = new BetterThreader.Function<Integer,float[]>(){public void call(Integer t, float[] row){
+			if (previousScores != null) System.arraycopy(previousScores.logProbs, t*rowLength, row, 0, rowLength);
+			if (previousScores != null && alignments != null) System.arraycopy(previousScores.alignments, t*rowLength, alignments.line(d), t*rowLength, rowLength);
 			for (int c=0; c<numChars; ++c) {
+				if (!computeChars[c]) continue;
+				Arrays.fill(row, charRowOffsets[c], (c+1 < numChars ? charRowOffsets[c+1] : rowLength), Float.NEGATIVE_INFINITY);
+				if (alignments != null) alignments.clear(d, t, charRowOffsets[c], (c+1 < numChars ? charRowOffsets[c+1] : rowLength));
 				int[] templateWidths = templateAllowedWidths[c];
 				for (int tw : templateWidths) {
 					double templateWidthLogProb = templates[c].widthLogProb(tw);
 					if (t+tw+padMinWidth <= sequenceLength(d)) {
 						for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
+							if (pruned != null && pruned[templateIndicesOffsets[tw-minTemplateWidth]*scoresLength + CudaUtil.flatten(scoresLength, templateNumIndices[tw-minTemplateWidth], t-windowStart, templateIndices[tw-minTemplateWidth][c][e][offsetRange[0]+CharacterTemplateVarLineHeight.MAX_OFFSET])]) {
+								// an exposure the line is scored under was pruned here, so the widths it reaches are left to the search
+								if (alignments != null && lineExposures[d][e]) {
+									for (int pw=padMinWidth; pw<=padMaxWidth && t+tw+pw<=sequenceLength(d); ++pw) alignments.markPruned(d, t, charRowOffsets[c] + tw+pw-padAndTemplateMinWidths[c]);
+								}
+								continue;
+							}
 							float templateLogProb = Float.NEGATIVE_INFINITY;
-							for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
-								float logProb = (float) templateWidthLogProb + scores[templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength(d) + CudaUtil.flatten(sequenceLength(d), templateNumIndices[tw-minTemplateWidth], t, templateIndices[tw-minTemplateWidth][c][e][offset+CharacterTemplateVarLineHeight.MAX_OFFSET])];
+							int templateOffset = offsetRange[0];
+							for (int offset=offsetRange[0]; offset<=offsetRange[1]; ++offset) {
+								float logProb = (float) templateWidthLogProb + scores[templateIndicesOffsets[tw-minTemplateWidth]*scoresLength + CudaUtil.flatten(scoresLength, templateNumIndices[tw-minTemplateWidth], t-windowStart, templateIndices[tw-minTemplateWidth][c][e][offset+CharacterTemplateVarLineHeight.MAX_OFFSET])];
 								if (logProb > templateLogProb) {
 									templateLogProb = logProb;
+									templateOffset = offset;
 								}
 							}
 							for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
 								int w = tw + pw;
 								if (t+w <= sequenceLength(d)) {
-									float padLogProb = (float) padWidthLogProb(pw);
-									if (pw > 0) {
-										for (int tt=0; tt<pw; ++tt) {
-											padLogProb += logColumnProbsWhitespace[d][t+tw+tt][e];
-										}
-									}
-									if (templateLogProb + padLogProb > cachedLogProbs[d][t][c][w-padAndTemplateMinWidths[c]]) {
-										cachedLogProbs[d][t][c][w-padAndTemplateMinWidths[c]] = templateLogProb + padLogProb;
+									float padLogProb = padLogProbs[((t+tw)*numExposures + e)*numPadWidths + pw-padMinWidth];
+									if (templateLogProb + padLogProb > row[charRowOffsets[c] + w-padAndTemplateMinWidths[c]]) {
+										row[charRowOffsets[c] + w-padAndTemplateMinWidths[c]] = templateLogProb + padLogProb;
+										if (alignments != null) alignments.set(d, t, charRowOffsets[c] + w-padAndTemplateMinWidths[c], e, templateOffset, pw);
 									}
 								}
 							}
@@ -329,9 +476,13 @@ public class CachingEmissionModelVarLineHeight implements EmissionModelVarLineHe
 					}
 				}
 			}
+			cachedLogProbs.setRow(d, t, row);
+			if (previousScores != null) System.arraycopy(row, 0, previousScores.logProbs, t*rowLength, rowLength);
+			if (previousScores != null && alignments != null) System.arraycopy(alignments.line(d), t*rowLength, previousScores.alignments, t*rowLength, rowLength);
 		}};
-		BetterThreader<Integer,Object> threader = new BetterThreader<Integer,Object>(func, numThreads);
-		for (int t=0; t<sequenceLength(d); ++t) threader.addFunctionArgument(t);
+		BetterThreader<Integer,float[]> threader = new BetterThreader<Integer,float[]>(func, numThreads);
+		for (int t=windowStart; t<windowEnd; ++t) threader.addFunctionArgument(t);
+		for (int i=0; i<numThreads; ++i) threader.setThreadArgument(i, new float[cachedLogProbs.rowLength()]);
 		threader.run();
 	}
 
@@ -339,8 +490,8 @@ public class CachingEmissionModelVarLineHeight implements EmissionModelVarLineHe
 		if (count > 0.0) {
 			int c = ts.getGlyphChar().templateCharIndex;
 			int w = endCol - startCol;
-			int tw = w - getPadWidth(d, startCol, ts, w);
-			templates[c].incrementCounts(count, observations[d], startCol, tw, getExposure(d, startCol, ts, w), getOffset(d, startCol, ts, w));
+			int[] alignment = bestAlignment(d, startCol, ts, w);
+			templates[c].incrementCounts(count, observations[d], startCol, w - alignment[2], alignment[0], alignment[1]);
 		}
 	}
 	
@@ -354,19 +505,7 @@ public class CachingEmissionModelVarLineHeight implements EmissionModelVarLineHe
 	}
 	
 	private double estimateMemoryUsage() {
-		double elementsOfCache = 0.0;
-		for (int i=0; i<cachedLogProbs.length; ++i) {
-			if (cachedLogProbs[i] != null) {
-				for (int j=0; j<cachedLogProbs[i].length; ++j) {
-					if (cachedLogProbs[i][j] != null) {
-						for (int k=0; k<cachedLogProbs[i][j].length; ++k) {
-							if (cachedLogProbs[i][j][k] != null) elementsOfCache += cachedLogProbs[i][j][k].length;
-						}
-					}
-				}
-			}			
-		}
-		return 4 * elementsOfCache / 1e9;
+		return (cachedLogProbs.numBytes() + (alignments != null ? alignments.numBytes() : 0L)) / 1e9;
 	}
 	
 	public static class CachingEmissionModelFactory implements EmissionModelVarLineHeight.EmissionModelFactory {
@@ -375,15 +514,36 @@ public class CachingEmissionModelVarLineHeight implements EmissionModelVarLineHe
 		int padMaxWidth;
 	    int lineHeight;
 		EmissionCacheInnerLoopVarLineHeight innerLoop;
-		public CachingEmissionModelFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, int lineHeight, EmissionCacheInnerLoopVarLineHeight innerLoop) {
+		EmissionCacheStorageFactory storageFactory;
+		IncrementalEmissionCache incrementalCache;
+		int columnWindow;
+		double pruningMargin;
+		int exposureCandidates;
+		int offsetRadius;
+		boolean recordAlignments;
+		public CachingEmissionModelFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, int lineHeight, EmissionCacheInnerLoopVarLineHeight innerLoop, EmissionCacheStorageFactory storageFactory, IncrementalEmissionCache incrementalCache, int columnWindow, double pruningMargin, int exposureCandidates, int offsetRadius, boolean recordAlignments) {
 			this.charIndexer = charIndexer;
 			this.padMinWidth = padMinWidth;
 			this.padMaxWidth = padMaxWidth;
 			this.lineHeight = lineHeight;
 			this.innerLoop = innerLoop;
+			this.storageFactory = storageFactory;
+			this.incrementalCache = incrementalCache;
+			this.columnWindow = columnWindow;
+			this.pruningMargin = pruningMargin;
+			this.exposureCandidates = exposureCandidates;
+			this.offsetRadius = offsetRadius;
+			this.recordAlignments = recordAlignments;
 		}
 		public EmissionModelVarLineHeight make(CharacterTemplateVarLineHeight[] templates, PixelType[][][] observations) {
-			return new CachingEmissionModelVarLineHeight(templates, charIndexer, observations, padMinWidth, padMaxWidth, lineHeight, innerLoop);
+			return new CachingEmissionModelVarLineHeight(templates, charIndexer, observations, padMinWidth, padMaxWidth, lineHeight, innerLoop, storageFactory, incrementalCache, columnWindow, pruningMargin, exposureCandidates, offsetRadius, recordAlignments);
+		}
+		public long estimateNumBytes(CharacterTemplateVarLineHeight[] templates, PixelType[][] line) {
+			int rowLength = 0;
+			for (CharacterTemplateVarLineHeight template : templates) {
+				rowLength += ((template.templateMaxWidth()+padMaxWidth)-(template.templateMinWidth()+padMinWidth)+1);
+			}
+			return storageFactory.numBytes(line.length, rowLength) + (recordAlignments ? EmissionAlignmentTable.numBytes(line.length, rowLength) : 0L);
 		}
 	}
 }
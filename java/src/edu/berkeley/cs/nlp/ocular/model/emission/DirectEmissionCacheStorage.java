@@ -0,0 +1,71 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Emission cache kept off the Java heap, in one direct native-order buffer
+ * per line, indexed t*rowLength+i. The cache then neither counts against
+ * -Xmx nor has to be traced or copied by the garbage collector; the native
+ * memory is released when the storage object itself is collected.
+ */
+public class DirectEmissionCacheStorage implements EmissionCacheStorage {
+
+	private final FloatBuffer[] data;
+	private final int[] sequenceLengths;
+	private final int rowLength;
+
+	public DirectEmissionCacheStorage(int[] sequenceLengths, int rowLength) {
+		this.sequenceLengths = sequenceLengths;
+		this.rowLength = rowLength;
+		this.data = new FloatBuffer[sequenceLengths.length];
+		for (int d=0; d<sequenceLengths.length; ++d) {
+			long numBytes = numBytes(sequenceLengths[d], rowLength);
+			if (numBytes > Integer.MAX_VALUE) throw new RuntimeException("Emission cache for line " + d + " needs " + numBytes + " bytes, more than a single direct buffer can hold.");
+			this.data[d] = ByteBuffer.allocateDirect((int) numBytes).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+	}
+
+	public int numSequences() {
+		return sequenceLengths.length;
+	}
+
+	public int sequenceLength(int d) {
+		return sequenceLengths[d];
+	}
+
+	public int rowLength() {
+		return rowLength;
+	}
+
+	public float get(int d, int t, int i) {
+		return data[d].get(t*rowLength + i);
+	}
+
+	public void setRow(int d, int t, float[] row) {
+		FloatBuffer buffer = data[d].duplicate();
+		buffer.position(t*rowLength);
+		buffer.put(row, 0, rowLength);
+	}
+
+	public long numBytes() {
+		long numBytes = 0L;
+		for (int d=0; d<sequenceLengths.length; ++d) numBytes += numBytes(sequenceLengths[d], rowLength);
+		return numBytes;
+	}
+
+	static long numBytes(int sequenceLength, int rowLength) {
+		return 4L * sequenceLength * rowLength;
+	}
+
+	public static class DirectEmissionCacheStorageFactory implements EmissionCacheStorage.EmissionCacheStorageFactory {
+		public EmissionCacheStorage make(int[] sequenceLengths, int rowLength) {
+			return new DirectEmissionCacheStorage(sequenceLengths, rowLength);
+		}
+		public long numBytes(int sequenceLength, int rowLength) {
+			return DirectEmissionCacheStorage.numBytes(sequenceLength, rowLength);
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import java.util.Arrays;
+
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
+
+/**
+ * The exposure, vertical offset and padding width behind each score of an
+ * emission cache, recorded while the cache is populated so that training can
+ * look up the alignment of a decoded glyph instead of searching for it again.
+ * Laid out like the cache, one byte per score: the three are packed
+ * mixed-radix as (padIndex*numOffsets + offsetIndex)*numExposures + exposure,
+ * and NONE marks a score with nothing recorded (one left at -infinity).
+ * PRUNED marks a score that some pruned alignments would have gone into:
+ * the best of the alignments that were scored need not be the best one, so
+ * it is not kept, and the caller searches for the alignment as it would
+ * without the table. A model whose scores each belong to a single offset
+ * records the offset range {0, 0} and keeps the offset itself.
+ */
+public class EmissionAlignmentTable {
+
+	public static final int NONE = 0xff;
+	public static final int PRUNED = 0xfe;
+
+	private final byte[][] alignments;
+	private final int rowLength;
+	private final int minOffset;
+	private final int numOffsets;
+	private final int padMinWidth;
+	private final int numExposures;
+
+	public EmissionAlignmentTable(int[] sequenceLengths, int rowLength, int minOffset, int maxOffset, int padMinWidth, int padMaxWidth) {
+		this.rowLength = rowLength;
+		this.minOffset = minOffset;
+		this.numOffsets = maxOffset-minOffset+1;
+		this.padMinWidth = padMinWidth;
+		this.numExposures = CharacterTemplateVarLineHeight.EXP_GAINS.length;
+		int numAlignments = numExposures * numOffsets * (padMaxWidth-padMinWidth+1);
+		if (numAlignments > PRUNED) throw new RuntimeException("Cannot pack " + numAlignments + " (exposure, offset, pad width) alignments into a byte; narrow the padding widths or turn off recordEmissionAlignments");
+		this.alignments = new byte[sequenceLengths.length][];
+		for (int d=0; d<sequenceLengths.length; ++d) {
+			this.alignments[d] = new byte[sequenceLengths[d]*rowLength];
+			Arrays.fill(this.alignments[d], (byte) NONE);
+		}
+	}
+
+	/**
+	 * The alignments of line d, indexed t*rowLength+i like the cache.
+	 */
+	public byte[] line(int d) {
+		return alignments[d];
+	}
+
+	/**
+	 * Records the alignment behind a score, unless the score is marked pruned.
+	 */
+	public void set(int d, int t, int i, int exposure, int offset, int padWidth) {
+		if ((alignments[d][t*rowLength + i] & 0xff) == PRUNED) return;
+		alignments[d][t*rowLength + i] = (byte) (((padWidth-padMinWidth)*numOffsets + offset-minOffset)*numExposures + exposure);
+	}
+
+	public void markPruned(int d, int t, int i) {
+		alignments[d][t*rowLength + i] = (byte) PRUNED;
+	}
+
+	/**
+	 * Marks entries from to to of row t as having nothing recorded.
+	 */
+	public void clear(int d, int t, int from, int to) {
+		Arrays.fill(alignments[d], t*rowLength + from, t*rowLength + to, (byte) NONE);
+	}
+
+	/**
+	 * The recorded alignment as {exposure, offset, padWidth}, or null if
+	 * there is none or the score is marked pruned.
+	 */
+	public int[] get(int d, int t, int i) {
+		int code = alignments[d][t*rowLength + i] & 0xff;
+		if (code == NONE || code == PRUNED) return null;
+		return new int[] {code % numExposures, (code / numExposures) % numOffsets + minOffset, code / (numExposures*numOffsets) + padMinWidth};
+	}
+
+	public long numBytes() {
+		long numBytes = 0L;
+		for (byte[] line : alignments) numBytes += line.length;
+		return numBytes;
+	}
+
+	public static long numBytes(int sequenceLength, int rowLength) {
+		return (long) sequenceLength * rowLength;
+	}
+
+}
@@ -0,0 +1,165 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import java.util.Arrays;
+
+import edu.berkeley.cs.nlp.ocular.image.BitPackedLine;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
+import gpu.CudaUtil;
+
+/**
+ * Decides, for one rebuild of a caching emission model, which of the scratch
+ * scores the model's populate step will not need, so that the inner loop can
+ * skip them. The scores are laid out as the caching models lay them out:
+ * per template width, a block of scoresLength columns times the number of
+ * (char, exposure, offset) indices at that width.
+ *
+ * With a pruningMargin, the pruner also holds a bound on each character's
+ * score at a template width from the ink counts of the columns under it. The
+ * score is the template's total white log-prob, plus (logBlack - logWhite)
+ * for every black pixel and -logWhite for every obscured pixel. Each of the
+ * three is bounded over all exposures and offsets, the last two per template
+ * column.
+ */
+public class EmissionCachePruner {
+
+	private final CharacterTemplateVarLineHeight[] templates;
+	private final int[][] templateAllowedWidths;
+	private final int[] templateMinWidths;
+	private final boolean[] templateChars;
+	private final int spaceIndex;
+	private final int padMinWidth;
+	private final int lineHeight;
+	private final double pruningMargin;
+	private final int minTemplateWidth;
+	private final int[][][][] templateIndices;
+	private final int[] templateNumIndices;
+	private final int[] templateIndicesOffsets;
+	private final float[][] whiteTotalBounds;
+	private final float[][][] blackColumnBounds;
+	private final float[][][] obscuredColumnBounds;
+
+	/**
+	 * Only the templateChars are scored in this rebuild, and only they get
+	 * bounds.
+	 */
+	public EmissionCachePruner(CharacterTemplateVarLineHeight[] templates, int[][] templateAllowedWidths, int[] templateMinWidths, int[] templateMaxWidths, boolean[] templateChars, int spaceIndex, int padMinWidth, int lineHeight, double pruningMargin, int minTemplateWidth, int[][][][] templateIndices, int[] templateNumIndices, int[] templateIndicesOffsets) {
+		this.templates = templates;
+		this.templateAllowedWidths = templateAllowedWidths;
+		this.templateMinWidths = templateMinWidths;
+		this.templateChars = templateChars;
+		this.spaceIndex = spaceIndex;
+		this.padMinWidth = padMinWidth;
+		this.lineHeight = lineHeight;
+		this.pruningMargin = pruningMargin;
+		this.minTemplateWidth = minTemplateWidth;
+		this.templateIndices = templateIndices;
+		this.templateNumIndices = templateNumIndices;
+		this.templateIndicesOffsets = templateIndicesOffsets;
+
+		int numChars = templateAllowedWidths.length;
+		this.whiteTotalBounds = new float[numChars][];
+		this.blackColumnBounds = new float[numChars][][];
+		this.obscuredColumnBounds = new float[numChars][][];
+		if (pruningMargin > 0.0) {
+			for (int c=0; c<numChars; ++c) {
+				if (!templateChars[c] || c == spaceIndex) continue;
+				whiteTotalBounds[c] = new float[templateMaxWidths[c]-templateMinWidths[c]+1];
+				blackColumnBounds[c] = new float[templateMaxWidths[c]-templateMinWidths[c]+1][];
+				obscuredColumnBounds[c] = new float[templateMaxWidths[c]-templateMinWidths[c]+1][];
+				for (int tw : templateAllowedWidths[c]) {
+					float whiteTotalBound = Float.NEGATIVE_INFINITY;
+					float[] blackBounds = new float[tw];
+					float[] obscuredBounds = new float[tw];
+					Arrays.fill(blackBounds, Float.NEGATIVE_INFINITY);
+					Arrays.fill(obscuredBounds, Float.NEGATIVE_INFINITY);
+					for (int e=0; e<CharacterTemplateVarLineHeight.EXP_GAINS.length; ++e) {
+						for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
+							float[][] logWhiteProbsTemplate = templates[c].logWhiteProbs(e, offset, tw);
+							float[][] logBlackProbsTemplate = templates[c].logBlackProbs(e, offset, tw);
+							float whiteTotal = 0.0f;
+							for (int k=0; k<tw; ++k) {
+								for (int j=0; j<lineHeight; ++j) {
+									whiteTotal += logWhiteProbsTemplate[k][j];
+									blackBounds[k] = Math.max(blackBounds[k], logBlackProbsTemplate[k][j] - logWhiteProbsTemplate[k][j]);
+									obscuredBounds[k] = Math.max(obscuredBounds[k], -logWhiteProbsTemplate[k][j]);
+								}
+							}
+							whiteTotalBound = Math.max(whiteTotalBound, whiteTotal);
+						}
+					}
+					whiteTotalBounds[c][tw-templateMinWidths[c]] = whiteTotalBound;
+					blackColumnBounds[c][tw-templateMinWidths[c]] = blackBounds;
+					obscuredColumnBounds[c][tw-templateMinWidths[c]] = obscuredBounds;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flag the scores of columns windowStart to windowEnd of the line that
+	 * populate will not need: those of the exposures and offsets the line is
+	 * not scored under, and with a pruningMargin, the pruned ones.
+	 *
+	 * A character at a template width is pruned at a position, for every
+	 * exposure and offset, when the bound on its score falls more than
+	 * pruningMargin below the whitespace score of the same columns. The bound
+	 * is tight over blank columns, which is where most characters get pruned.
+	 * Characters the line does not need, and the columns past windowEnd that
+	 * are only there for the templates reaching into them, are flagged
+	 * without a bound. counts[0] and counts[1] get the number of pruned and
+	 * of bounded (position, char, width) blocks added to them.
+	 */
+	public void prune(BitPackedLine line, int windowStart, int windowEnd, int scoresLength, boolean[] pruned, double[][] cumulativeLogProbsWhitespace, boolean[] lineChars, boolean[] exposures, int[] offsetRange, long[] counts) {
+		final int numExposures = CharacterTemplateVarLineHeight.EXP_GAINS.length;
+		Arrays.fill(pruned, false);
+		int[] numBlack = new int[scoresLength];
+		int[] numObscured = new int[scoresLength];
+		for (int t=0; t<scoresLength; ++t) {
+			numBlack[t] = line.numBlack(windowStart+t);
+			numObscured[t] = lineHeight - numBlack[t] - line.numWhite(windowStart+t);
+		}
+		for (int t=windowStart; t<windowEnd; ++t) {
+			for (int c=0; c<templateAllowedWidths.length; ++c) {
+				if (!templateChars[c]) continue;
+				for (int tw : templateAllowedWidths[c]) {
+					int scoresOffset = templateIndicesOffsets[tw-minTemplateWidth]*scoresLength;
+					int numIndices = templateNumIndices[tw-minTemplateWidth];
+					boolean prune = (!lineChars[c] || t+tw+padMinWidth > line.sequenceLength());
+					if (!prune && pruningMargin > 0.0 && c != spaceIndex) {
+						counts[1]++;
+						float[] blackBounds = blackColumnBounds[c][tw-templateMinWidths[c]];
+						float[] obscuredBounds = obscuredColumnBounds[c][tw-templateMinWidths[c]];
+						double bound = templates[c].widthLogProb(tw) + whiteTotalBounds[c][tw-templateMinWidths[c]];
+						for (int k=0; k<tw; ++k) {
+							if (numBlack[t-windowStart+k] > 0) bound += numBlack[t-windowStart+k] * blackBounds[k];
+							if (numObscured[t-windowStart+k] > 0) bound += numObscured[t-windowStart+k] * obscuredBounds[k];
+						}
+						double whitespaceLogProb = Double.NEGATIVE_INFINITY;
+						for (int e=0; e<numExposures; ++e) {
+							if (exposures[e]) whitespaceLogProb = Math.max(whitespaceLogProb, cumulativeLogProbsWhitespace[e][t+tw] - cumulativeLogProbsWhitespace[e][t]);
+						}
+						if (bound < whitespaceLogProb - pruningMargin) {
+							prune = true;
+							counts[0]++;
+						}
+					}
+					for (int e=0; e<numExposures; ++e) {
+						for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
+							if (!prune && exposures[e] && offset >= offsetRange[0] && offset <= offsetRange[1]) continue;
+							pruned[scoresOffset + CudaUtil.flatten(scoresLength, numIndices, t-windowStart, templateIndices[tw-minTemplateWidth][c][e][offset+CharacterTemplateVarLineHeight.MAX_OFFSET])] = true;
+						}
+					}
+				}
+			}
+		}
+		for (int tw=minTemplateWidth; tw<minTemplateWidth+templateNumIndices.length; ++tw) {
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			for (int t=windowEnd; t<windowStart+scoresLength; ++t) {
+				for (int i=0; i<numIndices; ++i) {
+					pruned[templateIndicesOffsets[tw-minTemplateWidth]*scoresLength + CudaUtil.flatten(scoresLength, numIndices, t-windowStart, i)] = true;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,43 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+/**
+ * Backing store for a batch's emission log-probability cache.
+ *
+ * Every (line, column) pair owns one row of rowLength() floats; the caching
+ * emission models decide how a row is laid out over characters and widths.
+ * Rows are written whole with setRow(), read one entry at a time with get(),
+ * and different rows may be written from different threads.
+ */
+public interface EmissionCacheStorage {
+
+	public int numSequences();
+
+	public int sequenceLength(int d);
+
+	public int rowLength();
+
+	public float get(int d, int t, int i);
+
+	public void setRow(int d, int t, float[] row);
+
+	public long numBytes();
+
+	/**
+	 * Called once nothing will read or write the storage any more, so that
+	 * its memory can be reused right away. Storages that leave their memory
+	 * to the garbage collector do nothing.
+	 */
+	public default void release() {
+	}
+
+	public static interface EmissionCacheStorageFactory {
+		public EmissionCacheStorage make(int[] sequenceLengths, int rowLength);
+
+		/**
+		 * Bytes taken by the cache of one line; numBytes() of a storage is
+		 * the sum of this over its lines.
+		 */
+		public long numBytes(int sequenceLength, int rowLength);
+	}
+
+}
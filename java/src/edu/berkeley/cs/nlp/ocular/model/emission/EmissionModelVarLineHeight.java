@@ -23,6 +23,15 @@ public interface EmissionModelVarLineHeight {
 
 	public abstract float logProb(int d, int t, int c, int w);
 
+	/**
+	 * An upper bound on logProb(d, t, c, w), used by the coarse backward
+	 * pass. Models that can score exactly at no extra cost just return
+	 * logProb.
+	 */
+	public default float logProbBound(int d, int t, int c, int w) {
+		return logProb(d, t, c, w);
+	}
+
 	public abstract int getExposure(int d, int t, TransitionState ts, int w);
 
 	public abstract int getOffset(int d, int t, TransitionState ts, int w);
@@ -33,6 +42,14 @@ public interface EmissionModelVarLineHeight {
 
 	public abstract void rebuildCache();
 
+	/**
+	 * Called once the model will not be read any more, so that its cache can
+	 * be reused right away (see EmissionCacheStorage.release()). Models
+	 * whose cache is left to the garbage collector do nothing.
+	 */
+	public default void releaseCache() {
+	}
+
 	public abstract void incrementCount(int d, TransitionState ts, int startCol, int endCol, float count);
 
 	public abstract void incrementCounts(int d, TransitionState[] transitionStates, int[] widths);
@@ -40,6 +57,12 @@ public interface EmissionModelVarLineHeight {
 	
 	public static interface EmissionModelFactory {
 		public EmissionModelVarLineHeight make(CharacterTemplateVarLineHeight[] templates, PixelType[][][] observations);
+
+		/**
+		 * Predicted size in bytes of what a model made by this factory
+		 * keeps per line, for packing decode batches into a memory budget.
+		 */
+		public long estimateNumBytes(CharacterTemplateVarLineHeight[] templates, PixelType[][] line);
 	}
 	
 }
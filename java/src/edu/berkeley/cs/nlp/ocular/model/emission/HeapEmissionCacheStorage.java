@@ -0,0 +1,60 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+/**
+ * Emission cache kept in one flat float[] per line, indexed t*rowLength+i.
+ */
+public class HeapEmissionCacheStorage implements EmissionCacheStorage {
+
+	private final float[][] data;
+	private final int[] sequenceLengths;
+	private final int rowLength;
+
+	public HeapEmissionCacheStorage(int[] sequenceLengths, int rowLength) {
+		this.sequenceLengths = sequenceLengths;
+		this.rowLength = rowLength;
+		this.data = new float[sequenceLengths.length][];
+		for (int d=0; d<sequenceLengths.length; ++d) {
+			this.data[d] = new float[sequenceLengths[d]*rowLength];
+		}
+	}
+
+	public int numSequences() {
+		return sequenceLengths.length;
+	}
+
+	public int sequenceLength(int d) {
+		return sequenceLengths[d];
+	}
+
+	public int rowLength() {
+		return rowLength;
+	}
+
+	public float get(int d, int t, int i) {
+		return data[d][t*rowLength + i];
+	}
+
+	public void setRow(int d, int t, float[] row) {
+		System.arraycopy(row, 0, data[d], t*rowLength, rowLength);
+	}
+
+	public long numBytes() {
+		long numBytes = 0L;
+		for (int d=0; d<sequenceLengths.length; ++d) numBytes += numBytes(sequenceLengths[d], rowLength);
+		return numBytes;
+	}
+
+	static long numBytes(int sequenceLength, int rowLength) {
+		return 4L * sequenceLength * rowLength;
+	}
+
+	public static class HeapEmissionCacheStorageFactory implements EmissionCacheStorage.EmissionCacheStorageFactory {
+		public EmissionCacheStorage make(int[] sequenceLengths, int rowLength) {
+			return new HeapEmissionCacheStorage(sequenceLengths, rowLength);
+		}
+		public long numBytes(int sequenceLength, int rowLength) {
+			return HeapEmissionCacheStorage.numBytes(sequenceLength, rowLength);
+		}
+	}
+
+}
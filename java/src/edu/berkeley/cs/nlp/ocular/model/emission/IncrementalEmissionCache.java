@@ -0,0 +1,174 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
+
+/**
+ * Full-precision emission scores of recently seen lines, kept across decode
+ * batches and EM iterations so that a caching emission model only has to
+ * recompute the characters whose templates changed since a line was last
+ * scored.
+ *
+ * Every template has a version. A template gets a new version when one of its
+ * parameters (see CharacterTemplateVarLineHeight.parameterSnapshot()) has moved
+ * by more than tolerance since its current version was taken, so small M-step
+ * updates can accumulate until they matter. Each line remembers which version
+ * of every template its scores were computed with. Since all characters are
+ * padded with the space template, a new space version makes the whole line
+ * stale, and so does a change of the line's scoring key, which the emission
+ * model uses for whatever else its scores of the line depend on (such as the
+ * exposures and offsets it was scored under).
+ *
+ * A line's rows need not share the layout of the other lines: an emission
+ * model whose rows depend on the line (such as one that only keeps slots for
+ * the offsets the line is scored under) asks for the line's own row length,
+ * so that one line's layout changing leaves the others' scores alone.
+ *
+ * Lines are keyed by the identity of their pixel arrays and kept in
+ * least-recently-used order within maxBytes.
+ */
+public class IncrementalEmissionCache {
+
+	public static class LineScores {
+		public final float[] logProbs;
+		public final int[] charVersions;
+		public final int rowLength;
+		public final byte[] alignments;
+		long scoringKey = -1L;
+
+		LineScores(int sequenceLength, int rowLength, int numChars, boolean withAlignments) {
+			this.rowLength = rowLength;
+			this.logProbs = new float[sequenceLength*rowLength];
+			this.alignments = (withAlignments ? new byte[sequenceLength*rowLength] : null);
+			this.charVersions = new int[numChars];
+			Arrays.fill(charVersions, -1);
+		}
+	}
+
+	private final float tolerance;
+	private final long maxBytes;
+	private final LinkedHashMap<PixelType[][], LineScores> lines = new LinkedHashMap<PixelType[][], LineScores>(16, 0.75f, true);
+	private long numBytes = 0L;
+	private int rowLength = -1;
+	private float[][] snapshots;
+	private int[] versions;
+	private int nextVersion = 0;
+
+	private long numCharRowsReused = 0L;
+	private long numCharRowsComputed = 0L;
+
+	public IncrementalEmissionCache(float tolerance, long maxBytes) {
+		this.tolerance = tolerance;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Give a new version to every template that moved beyond the tolerance.
+	 * A different row layout (character set or widths) drops everything;
+	 * rowLength stands for that layout and need not be any line's row length.
+	 */
+	public synchronized void updateTemplateVersions(CharacterTemplateVarLineHeight[] templates, int rowLength) {
+		if (versions == null || versions.length != templates.length || this.rowLength != rowLength) {
+			lines.clear();
+			numBytes = 0L;
+			this.rowLength = rowLength;
+			snapshots = new float[templates.length][];
+			versions = new int[templates.length];
+		}
+		int numChanged = 0;
+		for (int c=0; c<templates.length; ++c) {
+			float[] snapshot = templates[c].parameterSnapshot();
+			if (snapshots[c] == null || changed(snapshots[c], snapshot)) {
+				snapshots[c] = snapshot;
+				versions[c] = nextVersion++;
+				numChanged++;
+			}
+		}
+		System.out.println("Incremental emission cache: " + numChanged + " of " + templates.length + " templates changed, " + lines.size() + " lines cached");
+	}
+
+	private boolean changed(float[] previous, float[] current) {
+		if (previous.length != current.length) return true;
+		for (int i=0; i<current.length; ++i) {
+			if (previous[i] != current[i] && !(Math.abs(previous[i] - current[i]) <= tolerance)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The cached scores of a line, or a fresh entry (stale for every
+	 * character) if the line is not cached. The entry is not added to the
+	 * cache until put() is called.
+	 */
+	public synchronized LineScores get(PixelType[][] line, int numChars) {
+		return get(line, numChars, rowLength, false);
+	}
+
+	/**
+	 * As get(line, numChars), for a line with rows of its own length, and
+	 * with room for the alignments behind its scores (see
+	 * EmissionAlignmentTable) if asked for. Cached scores with rows of another
+	 * length, or without alignments when they are asked for, are not
+	 * returned; the fresh entry replaces them on put().
+	 */
+	public synchronized LineScores get(PixelType[][] line, int numChars, int lineRowLength, boolean withAlignments) {
+		LineScores scores = lines.get(line);
+		if (scores == null || scores.rowLength != lineRowLength || (withAlignments && scores.alignments == null)) scores = new LineScores(line.length, lineRowLength, numChars, withAlignments);
+		return scores;
+	}
+
+	/**
+	 * Which characters of the line have to be recomputed, or null if none do.
+	 */
+	public synchronized boolean[] staleChars(LineScores scores, int spaceIndex, long scoringKey) {
+		boolean allStale = (scores.charVersions[spaceIndex] != versions[spaceIndex] || scores.scoringKey != scoringKey);
+		boolean[] stale = new boolean[versions.length];
+		boolean anyStale = false;
+		for (int c=0; c<versions.length; ++c) {
+			stale[c] = allStale || scores.charVersions[c] != versions[c];
+			anyStale |= stale[c];
+			if (stale[c]) numCharRowsComputed++;
+			else numCharRowsReused++;
+		}
+		return anyStale ? stale : null;
+	}
+
+	/**
+	 * Record that the scores of the given characters are now up to date, and
+	 * (re)insert the line, evicting the least recently used lines beyond
+	 * the memory limit.
+	 */
+	public synchronized void put(PixelType[][] line, LineScores scores, boolean[] computedChars, long scoringKey) {
+		if (computedChars != null) {
+			scores.scoringKey = scoringKey;
+			for (int c=0; c<versions.length; ++c) {
+				if (computedChars[c]) scores.charVersions[c] = versions[c];
+			}
+		}
+		LineScores previous = lines.put(line, scores);
+		if (previous != scores) {
+			if (previous != null) numBytes -= numBytes(previous);
+			numBytes += numBytes(scores);
+		}
+		Iterator<Map.Entry<PixelType[][], LineScores>> iter = lines.entrySet().iterator();
+		while (numBytes > maxBytes && iter.hasNext()) {
+			numBytes -= numBytes(iter.next().getValue());
+			iter.remove();
+		}
+	}
+
+	private static long numBytes(LineScores scores) {
+		return 4L*scores.logProbs.length + 4L*scores.charVersions.length + (scores.alignments != null ? scores.alignments.length : 0L);
+	}
+
+	public synchronized String stats() {
+		long total = numCharRowsReused + numCharRowsComputed;
+		return String.format("reused %d of %d line/character score blocks (%.1f%%), %.3fgb cached", numCharRowsReused, total, 100.0 * numCharRowsReused / Math.max(1L, total), numBytes / 1e9);
+	}
+
+}
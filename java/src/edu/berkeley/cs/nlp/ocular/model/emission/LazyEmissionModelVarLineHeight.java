@@ -0,0 +1,458 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.berkeley.cs.nlp.ocular.data.textreader.Charset;
+import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+import indexer.Indexer;
+
+/**
+ * Emission model that scores a (line, column, character) block only the
+ * first time the decoder asks for it, and memoizes it from then on. The
+ * beam only ever looks at the characters reachable from its few states at
+ * each column, so most of the blocks an eager cache would fill are never
+ * computed.
+ *
+ * rebuildCache() only prepares what every block needs: per-template white
+ * totals and (black - white) planes, per-line lists of black and obscured
+ * pixels, and padding scores for every start column and pad width. A block
+ * is then scored from the ink under each window, like the SPARSE engine does.
+ *
+ * The dense backward pass gets logProbBound() instead of exact scores: each
+ * template column is bounded by its best white and black log probability
+ * over all exposures and offsets, times the number of white and black pixels
+ * in the observed column.
+ *
+ * With explicitOffset set, blocks keep one score per vertical offset, and
+ * logProb(d, t, ts, w) honors the offset of the transition state, as
+ * CachingEmissionModelExplicitOffsetVarLineHeight does.
+ */
+public class LazyEmissionModelVarLineHeight implements EmissionModelVarLineHeight {
+
+	private static final int NUM_OFFSETS = 2*CharacterTemplateVarLineHeight.MAX_OFFSET+1;
+	private static final int NUM_EXPOSURES = CharacterTemplateVarLineHeight.EXP_GAINS.length;
+
+	private int numChars;
+	private CharacterTemplateVarLineHeight[] templates;
+	private PixelType[][][] observations;
+	private boolean explicitOffset;
+	private int numOffsetSlots;
+	private int[][] templateAllowedWidths;
+	private int[] templateMinWidths;
+	private int[] templateMaxWidths;
+	private int[] padAndTemplateMinWidths;
+	private int[] padAndTemplateMaxWidths;
+	private int[][] padAndTemplateAllowedWidths;
+	private int spaceIndex;
+	private int padMinWidth;
+	private int padMaxWidth;
+	private int lineHeight;
+
+	// [c][tw-templateMinWidths[c]][e*NUM_OFFSETS+offset+MAX_OFFSET]
+	private float[][][] whiteTotals;
+	// [c][tw-templateMinWidths[c]][e*NUM_OFFSETS+offset+MAX_OFFSET] -> tw*lineHeight values, column-major
+	private float[][][][] blackMinusWhite;
+	private float[][][][] negWhite;
+	// [c][tw-templateMinWidths[c]][k]: best log prob of any row of template column k, over all exposures and offsets
+	private float[][][] columnMaxLogWhite;
+	private float[][][] columnMaxLogBlack;
+
+	// per line: flat indices t*lineHeight+j of black and obscured pixels, with per-column start positions
+	private int[][] blackPixels;
+	private int[][] blackColumnStarts;
+	private int[][] obscuredPixels;
+	private int[][] obscuredColumnStarts;
+	private int[][] columnNumWhite;
+	private int[][] columnNumBlack;
+	// per line: [(s*NUM_EXPOSURES + e)*numPadWidths + pw-padMinWidth], the score of pw space columns starting at column s
+	private float[][] padLogProbs;
+	private int numPadWidths;
+
+	private float[][][][] cachedBlocks;
+
+	public LazyEmissionModelVarLineHeight(CharacterTemplateVarLineHeight[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, int lineHeight, boolean explicitOffset) {
+		this.numChars = charIndexer.size();
+		this.spaceIndex = charIndexer.getIndex(Charset.SPACE);
+		this.templates = templates;
+		this.observations = observations;
+		this.padMinWidth = padMinWidth;
+		this.padMaxWidth = padMaxWidth;
+		this.lineHeight = lineHeight;
+		this.explicitOffset = explicitOffset;
+		this.numOffsetSlots = (explicitOffset ? NUM_OFFSETS : 1);
+
+		for (int c=0; c<numChars; ++c)
+			if (templates[c] == null) throw new RuntimeException("template for template["+c+"] ("+charIndexer.getObject(c)+") is null!");
+	}
+
+	public int numChars() {
+		return numChars;
+	}
+
+	public int numSequences() {
+		return observations.length;
+	}
+
+	public int sequenceLength(int d) {
+		return observations[d].length;
+	}
+
+	public int[] allowedWidths(int c) {
+		return padAndTemplateAllowedWidths[c];
+	}
+
+	public int[] allowedWidths(TransitionState ts) {
+		return allowedWidths(ts.getGlyphChar().templateCharIndex);
+	}
+
+	public float logProb(int d, int t, int c, int w) {
+		float[] block = block(d, t, c);
+		int numWidths = padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1;
+		float result = Float.NEGATIVE_INFINITY;
+		for (int slot=0; slot<numOffsetSlots; ++slot) {
+			result = Math.max(result, block[slot*numWidths + w-padAndTemplateMinWidths[c]]);
+		}
+		return result;
+	}
+
+	public float logProb(int d, int t, TransitionState ts, int w) {
+		int c = ts.getGlyphChar().templateCharIndex;
+		if (!explicitOffset) return logProb(d, t, c, w);
+		int numWidths = padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1;
+		return block(d, t, c)[(ts.getOffset()+CharacterTemplateVarLineHeight.MAX_OFFSET)*numWidths + w-padAndTemplateMinWidths[c]];
+	}
+
+	public float logProbBound(int d, int t, int c, int w) {
+		float bound = Float.NEGATIVE_INFINITY;
+		for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+			int tw = w-pw;
+			if (tw < templateMinWidths[c] || tw > templateMaxWidths[c] || t+w > sequenceLength(d)) continue;
+			float templateWidthLogProb = (float) templates[c].widthLogProb(tw);
+			if (templateWidthLogProb == Float.NEGATIVE_INFINITY) continue;
+			float[] maxLogWhite = columnMaxLogWhite[c][tw-templateMinWidths[c]];
+			float[] maxLogBlack = columnMaxLogBlack[c][tw-templateMinWidths[c]];
+			float templateBound = templateWidthLogProb;
+			for (int k=0; k<tw; ++k) {
+				templateBound += columnNumWhite[d][t+k]*maxLogWhite[k] + columnNumBlack[d][t+k]*maxLogBlack[k];
+			}
+			float padBound = Float.NEGATIVE_INFINITY;
+			for (int e=0; e<NUM_EXPOSURES; ++e) {
+				padBound = Math.max(padBound, padLogProbs[d][((t+tw)*NUM_EXPOSURES + e)*numPadWidths + pw-padMinWidth]);
+			}
+			bound = Math.max(bound, templateBound + padBound);
+		}
+		return bound;
+	}
+
+	public int getExposure(int d, int t, TransitionState ts, int w) {
+		return bestAlignment(d, t, ts, w)[0];
+	}
+
+	public int getOffset(int d, int t, TransitionState ts, int w) {
+		return bestAlignment(d, t, ts, w)[1];
+	}
+
+	public int getPadWidth(int d, int t, TransitionState ts, int w) {
+		return bestAlignment(d, t, ts, w)[2];
+	}
+
+	/**
+	 * The exposure, offset and pad width that best explain ts over columns t
+	 * to t+w, as {exposure, offset, padWidth}, found in a single search. With
+	 * explicitOffset, the offset is always the one of ts.
+	 * The padding scores do not depend on the offset, so they are only
+	 * computed once per exposure and pad width.
+	 */
+	private int[] bestAlignment(int d, int t, TransitionState ts, int w) {
+		int c = ts.getGlyphChar().templateCharIndex;
+		float[][] padLogProbs = new float[NUM_EXPOSURES][padMaxWidth-padMinWidth+1];
+		for (int e=0; e<NUM_EXPOSURES; ++e) {
+			for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+				int tw = w-pw;
+				if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
+					padLogProbs[e][pw-padMinWidth] = templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, 0);
+				}
+			}
+		}
+		double bestScore = Double.NEGATIVE_INFINITY;
+		int[] best = new int[] {-1, Integer.MIN_VALUE, -1};
+		for (int offset=(explicitOffset ? ts.getOffset() : -CharacterTemplateVarLineHeight.MAX_OFFSET); offset<=(explicitOffset ? ts.getOffset() : CharacterTemplateVarLineHeight.MAX_OFFSET); ++offset) {
+			for (int e=0; e<NUM_EXPOSURES; ++e) {
+				for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+					int tw = w-pw;
+					if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
+						double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + padLogProbs[e][pw-padMinWidth];
+						if (score > bestScore) {
+							bestScore = score;
+							best[0] = e;
+							best[1] = offset;
+							best[2] = pw;
+						}
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	public float padWidthLogProb(int pw) {
+		return (float) Math.log(1.0 / ((padMaxWidth - padMinWidth) + 1.0));
+	}
+
+	public void rebuildCache() {
+		long nanoTime = System.nanoTime();
+
+		templateAllowedWidths = new int[numChars][];
+		templateMinWidths = new int[numChars];
+		templateMaxWidths = new int[numChars];
+		padAndTemplateMinWidths = new int[numChars];
+		padAndTemplateMaxWidths = new int[numChars];
+		padAndTemplateAllowedWidths = new int[numChars][];
+		for (int c=0; c<numChars; ++c) {
+			templateAllowedWidths[c] = templates[c].allowedWidths();
+			templateMinWidths[c] = templates[c].templateMinWidth();
+			templateMaxWidths[c] = templates[c].templateMaxWidth();
+			padAndTemplateMinWidths[c] = templates[c].templateMinWidth() + padMinWidth;
+			padAndTemplateMaxWidths[c] = templates[c].templateMaxWidth() + padMaxWidth;
+			boolean[] padAndTemplateAllowedWidthsBool = new boolean[padAndTemplateMaxWidths[c]+1];
+			for (int tw : templateAllowedWidths[c]) {
+				for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+					padAndTemplateAllowedWidthsBool[tw+pw] = true;
+				}
+			}
+			List<Integer> padAndTemplateAllowedWidthsList = new ArrayList<Integer>();
+			for (int w=0; w<padAndTemplateAllowedWidthsBool.length; ++w) {
+				if (padAndTemplateAllowedWidthsBool[w]) padAndTemplateAllowedWidthsList.add(w);
+			}
+			padAndTemplateAllowedWidths[c] = new int[padAndTemplateAllowedWidthsList.size()];
+			for (int wi=0; wi<padAndTemplateAllowedWidthsList.size(); ++wi) {
+				padAndTemplateAllowedWidths[c][wi] = padAndTemplateAllowedWidthsList.get(wi);
+			}
+		}
+
+		whiteTotals = new float[numChars][][];
+		blackMinusWhite = new float[numChars][][][];
+		negWhite = new float[numChars][][][];
+		columnMaxLogWhite = new float[numChars][][];
+		columnMaxLogBlack = new float[numChars][][];
+		for (int c=0; c<numChars; ++c) {
+			int numTemplateWidths = templateMaxWidths[c]-templateMinWidths[c]+1;
+			whiteTotals[c] = new float[numTemplateWidths][];
+			blackMinusWhite[c] = new float[numTemplateWidths][][];
+			negWhite[c] = new float[numTemplateWidths][][];
+			columnMaxLogWhite[c] = new float[numTemplateWidths][];
+			columnMaxLogBlack[c] = new float[numTemplateWidths][];
+			for (int tw : templateAllowedWidths[c]) {
+				int twi = tw-templateMinWidths[c];
+				whiteTotals[c][twi] = new float[NUM_EXPOSURES*NUM_OFFSETS];
+				blackMinusWhite[c][twi] = new float[NUM_EXPOSURES*NUM_OFFSETS][];
+				negWhite[c][twi] = new float[NUM_EXPOSURES*NUM_OFFSETS][];
+				columnMaxLogWhite[c][twi] = new float[tw];
+				columnMaxLogBlack[c][twi] = new float[tw];
+				Arrays.fill(columnMaxLogWhite[c][twi], Float.NEGATIVE_INFINITY);
+				Arrays.fill(columnMaxLogBlack[c][twi], Float.NEGATIVE_INFINITY);
+				for (int e=0; e<NUM_EXPOSURES; ++e) {
+					for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
+						int eo = e*NUM_OFFSETS + offset+CharacterTemplateVarLineHeight.MAX_OFFSET;
+						float[][] logWhiteProbsTemplate = templates[c].logWhiteProbs(e, offset, tw);
+						float[][] logBlackProbsTemplate = templates[c].logBlackProbs(e, offset, tw);
+						float[] bmw = new float[tw*lineHeight];
+						float[] nw = new float[tw*lineHeight];
+						float total = 0.0f;
+						for (int k=0; k<tw; ++k) {
+							for (int j=0; j<lineHeight; ++j) {
+								bmw[k*lineHeight+j] = logBlackProbsTemplate[k][j] - logWhiteProbsTemplate[k][j];
+								nw[k*lineHeight+j] = -logWhiteProbsTemplate[k][j];
+								total += logWhiteProbsTemplate[k][j];
+								columnMaxLogWhite[c][twi][k] = Math.max(columnMaxLogWhite[c][twi][k], logWhiteProbsTemplate[k][j]);
+								columnMaxLogBlack[c][twi][k] = Math.max(columnMaxLogBlack[c][twi][k], logBlackProbsTemplate[k][j]);
+							}
+						}
+						whiteTotals[c][twi][eo] = total;
+						blackMinusWhite[c][twi][eo] = bmw;
+						negWhite[c][twi][eo] = nw;
+					}
+				}
+			}
+		}
+
+		float[][] logWhiteProbsWhitespace = new float[NUM_EXPOSURES][];
+		float[][] logBlackProbsWhitespace = new float[NUM_EXPOSURES][];
+		for (int e=0; e<NUM_EXPOSURES; ++e) {
+			logWhiteProbsWhitespace[e] = templates[spaceIndex].logWhiteProbs(e, 0, 1)[0];
+			logBlackProbsWhitespace[e] = templates[spaceIndex].logBlackProbs(e, 0, 1)[0];
+		}
+
+		blackPixels = new int[numSequences()][];
+		blackColumnStarts = new int[numSequences()][];
+		obscuredPixels = new int[numSequences()][];
+		obscuredColumnStarts = new int[numSequences()][];
+		columnNumWhite = new int[numSequences()][];
+		columnNumBlack = new int[numSequences()][];
+		numPadWidths = padMaxWidth-padMinWidth+1;
+		padLogProbs = new float[numSequences()][];
+		cachedBlocks = new float[numSequences()][][][];
+		for (int d=0; d<numSequences(); ++d) {
+			int sequenceLength = sequenceLength(d);
+			List<Integer> black = new ArrayList<Integer>();
+			List<Integer> obscured = new ArrayList<Integer>();
+			blackColumnStarts[d] = new int[sequenceLength+1];
+			obscuredColumnStarts[d] = new int[sequenceLength+1];
+			columnNumWhite[d] = new int[sequenceLength];
+			columnNumBlack[d] = new int[sequenceLength];
+			double[][] cumulativeLogProbsWhitespace = new double[NUM_EXPOSURES][sequenceLength+1];
+			for (int t=0; t<sequenceLength; ++t) {
+				blackColumnStarts[d][t] = black.size();
+				obscuredColumnStarts[d][t] = obscured.size();
+				for (int j=0; j<lineHeight; ++j) {
+					PixelType observation = observations[d][t][j];
+					if (observation == PixelType.BLACK) {
+						black.add(t*lineHeight+j);
+						columnNumBlack[d][t]++;
+					} else if (observation == PixelType.WHITE) {
+						columnNumWhite[d][t]++;
+					} else {
+						obscured.add(t*lineHeight+j);
+					}
+				}
+				for (int e=0; e<NUM_EXPOSURES; ++e) {
+					float logProb = 0.0f;
+					for (int j=0; j<lineHeight; ++j) {
+						if (observations[d][t][j] == PixelType.WHITE) logProb += logWhiteProbsWhitespace[e][j];
+						else if (observations[d][t][j] == PixelType.BLACK) logProb += logBlackProbsWhitespace[e][j];
+					}
+					cumulativeLogProbsWhitespace[e][t+1] = cumulativeLogProbsWhitespace[e][t] + logProb;
+				}
+			}
+			padLogProbs[d] = new float[(sequenceLength+1)*NUM_EXPOSURES*numPadWidths];
+			for (int s=0; s<=sequenceLength; ++s) {
+				for (int e=0; e<NUM_EXPOSURES; ++e) {
+					for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+						padLogProbs[d][(s*NUM_EXPOSURES + e)*numPadWidths + pw-padMinWidth] = (s+pw <= sequenceLength) ? (float) (padWidthLogProb(pw) + cumulativeLogProbsWhitespace[e][s+pw] - cumulativeLogProbsWhitespace[e][s]) : Float.NEGATIVE_INFINITY;
+					}
+				}
+			}
+			blackColumnStarts[d][sequenceLength] = black.size();
+			obscuredColumnStarts[d][sequenceLength] = obscured.size();
+			blackPixels[d] = new int[black.size()];
+			for (int i=0; i<black.size(); ++i) blackPixels[d][i] = black.get(i);
+			obscuredPixels[d] = new int[obscured.size()];
+			for (int i=0; i<obscured.size(); ++i) obscuredPixels[d][i] = obscured.get(i);
+			cachedBlocks[d] = new float[sequenceLength][numChars][];
+		}
+
+		System.out.println("Prepare lazy emission model: " + (System.nanoTime() - nanoTime)/1000000 + "ms");
+	}
+
+	/**
+	 * The scores of character c at column t of line d for all its widths
+	 * (and offsets, with explicitOffset), computed on first use. The blocks
+	 * are stored with plain writes, so a line must be confined to one thread
+	 * at a time, as the decoder does: each line is decoded by a single
+	 * thread, and the threads are joined before another one takes the line
+	 * over (to re-decode it, or to increment its counts).
+	 */
+	private float[] block(int d, int t, int c) {
+		float[] block = cachedBlocks[d][t][c];
+		if (block == null) {
+			block = computeBlock(d, t, c);
+			cachedBlocks[d][t][c] = block;
+		}
+		return block;
+	}
+
+	private float[] computeBlock(int d, int t, int c) {
+		int sequenceLength = sequenceLength(d);
+		int numWidths = padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1;
+		float[] block = new float[numOffsetSlots*numWidths];
+		Arrays.fill(block, Float.NEGATIVE_INFINITY);
+		float[] templateLogProbs = new float[NUM_OFFSETS];
+		int base = t*lineHeight;
+		for (int tw : templateAllowedWidths[c]) {
+			if (t+tw+padMinWidth > sequenceLength) continue;
+			int twi = tw-templateMinWidths[c];
+			float templateWidthLogProb = (float) templates[c].widthLogProb(tw);
+			int blackStart = blackColumnStarts[d][t];
+			int blackEnd = blackColumnStarts[d][t+tw];
+			int obscuredStart = obscuredColumnStarts[d][t];
+			int obscuredEnd = obscuredColumnStarts[d][t+tw];
+			for (int e=0; e<NUM_EXPOSURES; ++e) {
+				for (int o=0; o<NUM_OFFSETS; ++o) {
+					int eo = e*NUM_OFFSETS + o;
+					float[] bmw = blackMinusWhite[c][twi][eo];
+					float[] nw = negWhite[c][twi][eo];
+					float score = whiteTotals[c][twi][eo];
+					for (int k=blackStart; k<blackEnd; ++k) score += bmw[blackPixels[d][k]-base];
+					for (int k=obscuredStart; k<obscuredEnd; ++k) score += nw[obscuredPixels[d][k]-base];
+					templateLogProbs[o] = templateWidthLogProb + score;
+				}
+				if (!explicitOffset) {
+					float best = Float.NEGATIVE_INFINITY;
+					for (int o=0; o<NUM_OFFSETS; ++o) best = Math.max(best, templateLogProbs[o]);
+					templateLogProbs[0] = best;
+				}
+				for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+					int w = tw + pw;
+					if (t+w <= sequenceLength) {
+						float padLogProb = padLogProbs[d][((t+tw)*NUM_EXPOSURES + e)*numPadWidths + pw-padMinWidth];
+						for (int slot=0; slot<numOffsetSlots; ++slot) {
+							int i = slot*numWidths + w-padAndTemplateMinWidths[c];
+							block[i] = Math.max(block[i], templateLogProbs[slot] + padLogProb);
+						}
+					}
+				}
+			}
+		}
+		return block;
+	}
+
+	public void incrementCount(int d, TransitionState ts, int startCol, int endCol, float count) {
+		if (count > 0.0) {
+			int c = ts.getGlyphChar().templateCharIndex;
+			int w = endCol - startCol;
+			int[] alignment = bestAlignment(d, startCol, ts, w);
+			templates[c].incrementCounts(count, observations[d], startCol, w - alignment[2], alignment[0], alignment[1]);
+		}
+	}
+
+	public void incrementCounts(int d, TransitionState[] ts, int[] widths) {
+		int t=0;
+		for (int i=0; i<ts.length; ++i) {
+			int width = widths[i];
+			incrementCount(d, ts[i], t, t+width, 1.0f);
+			t += width;
+		}
+	}
+
+	public static class LazyEmissionModelFactory implements EmissionModelVarLineHeight.EmissionModelFactory {
+		Indexer<String> charIndexer;
+		int padMinWidth;
+		int padMaxWidth;
+		int lineHeight;
+		boolean explicitOffset;
+		public LazyEmissionModelFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, int lineHeight, boolean explicitOffset) {
+			this.charIndexer = charIndexer;
+			this.padMinWidth = padMinWidth;
+			this.padMaxWidth = padMaxWidth;
+			this.lineHeight = lineHeight;
+			this.explicitOffset = explicitOffset;
+		}
+		public EmissionModelVarLineHeight make(CharacterTemplateVarLineHeight[] templates, PixelType[][][] observations) {
+			return new LazyEmissionModelVarLineHeight(templates, charIndexer, observations, padMinWidth, padMaxWidth, lineHeight, explicitOffset);
+		}
+		public long estimateNumBytes(CharacterTemplateVarLineHeight[] templates, PixelType[][] line) {
+			// blocks are only filled in as the beam asks for them, but how many it asks for is not known up front, so count them all
+			long blockBytes = 0L;
+			for (CharacterTemplateVarLineHeight template : templates) {
+				int numWidths = (template.templateMaxWidth()+padMaxWidth)-(template.templateMinWidth()+padMinWidth)+1;
+				blockBytes += 16L + 4L * (explicitOffset ? NUM_OFFSETS : 1) * numWidths;
+			}
+			long padBytes = 4L * (line.length+1) * NUM_EXPOSURES * (padMaxWidth-padMinWidth+1);
+			return line.length * (8L * templates.length + blockBytes) + 4L * line.length * lineHeight + padBytes;
+		}
+	}
+}
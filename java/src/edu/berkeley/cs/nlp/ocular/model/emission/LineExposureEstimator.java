@@ -0,0 +1,102 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import edu.berkeley.cs.nlp.ocular.image.BitPackedLine;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
+
+/**
+ * Picks the few exposures (CharacterTemplateVarLineHeight.EXP_GAINS) that
+ * best explain a line's ink density, so that the emission cache only has to
+ * score the line under those.
+ *
+ * Each exposure is summarized by its average glyph column: the black
+ * probability of every row, averaged over all columns of all widths of all
+ * non-space templates. A line is summarized by its per-row black and white
+ * counts over the columns that have ink, and by its white and black counts
+ * over the blank ones. The exposures are ranked by the likelihood of the inked
+ * counts under the average glyph column plus that of the blank counts under
+ * the space template, which takes a pass over the line's bit-packed columns.
+ */
+public class LineExposureEstimator {
+
+	private final int lineHeight;
+	private final int numCandidates;
+	private final float[][] logBlackProfiles;
+	private final float[][] logWhiteProfiles;
+	private final float[][] logBlackProbsWhitespace;
+	private final float[][] logWhiteProbsWhitespace;
+
+	public LineExposureEstimator(CharacterTemplateVarLineHeight[] templates, int spaceIndex, int lineHeight, int numCandidates) {
+		int numExposures = CharacterTemplateVarLineHeight.EXP_GAINS.length;
+		if (numCandidates < 1 || numCandidates > numExposures) throw new RuntimeException("Number of exposure candidates must be between 1 and " + numExposures + ", got " + numCandidates);
+		this.lineHeight = lineHeight;
+		this.numCandidates = numCandidates;
+		this.logBlackProfiles = new float[numExposures][lineHeight];
+		this.logWhiteProfiles = new float[numExposures][lineHeight];
+		this.logBlackProbsWhitespace = new float[numExposures][];
+		this.logWhiteProbsWhitespace = new float[numExposures][];
+		for (int e=0; e<numExposures; ++e) {
+			double[] blackProbSums = new double[lineHeight];
+			int numColumns = 0;
+			for (int c=0; c<templates.length; ++c) {
+				if (c == spaceIndex) continue;
+				for (int tw : templates[c].allowedWidths()) {
+					float[][] blackProbs = templates[c].blackProbs(e, 0, tw);
+					for (int k=0; k<tw; ++k) {
+						for (int j=0; j<lineHeight; ++j) blackProbSums[j] += blackProbs[k][j];
+					}
+					numColumns += tw;
+				}
+			}
+			for (int j=0; j<lineHeight; ++j) {
+				double blackProb = (numColumns > 0 ? blackProbSums[j] / numColumns : 0.5);
+				logBlackProfiles[e][j] = (float) Math.log(blackProb);
+				logWhiteProfiles[e][j] = (float) Math.log(1.0 - blackProb);
+			}
+			logBlackProbsWhitespace[e] = templates[spaceIndex].logBlackProbs(e, 0, 1)[0];
+			logWhiteProbsWhitespace[e] = templates[spaceIndex].logWhiteProbs(e, 0, 1)[0];
+		}
+	}
+
+	/**
+	 * The exposures to score the line under, as a flag per exposure.
+	 */
+	public boolean[] candidateExposures(BitPackedLine line) {
+		int numExposures = CharacterTemplateVarLineHeight.EXP_GAINS.length;
+		int[] inkedBlackCounts = new int[lineHeight];
+		int[] inkedWhiteCounts = new int[lineHeight];
+		int[] blankBlackCounts = new int[lineHeight];
+		int[] blankWhiteCounts = new int[lineHeight];
+		for (int t=0; t<line.sequenceLength(); ++t) {
+			// a column with a single black pixel is as likely to be noise as ink
+			boolean inked = line.numBlack(t) > 1;
+			for (int j=0; j<lineHeight; ++j) {
+				if (line.isBlack(t, j)) {
+					if (inked) inkedBlackCounts[j]++;
+					else blankBlackCounts[j]++;
+				} else if (line.isWhite(t, j)) {
+					if (inked) inkedWhiteCounts[j]++;
+					else blankWhiteCounts[j]++;
+				}
+			}
+		}
+		double[] logLikelihoods = new double[numExposures];
+		for (int e=0; e<numExposures; ++e) {
+			double logLikelihood = 0.0;
+			for (int j=0; j<lineHeight; ++j) {
+				logLikelihood += inkedBlackCounts[j] * logBlackProfiles[e][j] + inkedWhiteCounts[j] * logWhiteProfiles[e][j];
+				logLikelihood += blankBlackCounts[j] * logBlackProbsWhitespace[e][j] + blankWhiteCounts[j] * logWhiteProbsWhitespace[e][j];
+			}
+			logLikelihoods[e] = logLikelihood;
+		}
+		boolean[] candidates = new boolean[numExposures];
+		for (int n=0; n<numCandidates; ++n) {
+			int best = -1;
+			for (int e=0; e<numExposures; ++e) {
+				if (!candidates[e] && (best < 0 || logLikelihoods[e] > logLikelihoods[best])) best = e;
+			}
+			candidates[best] = true;
+		}
+		return candidates;
+	}
+
+}
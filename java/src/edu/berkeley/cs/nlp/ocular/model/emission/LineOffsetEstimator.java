@@ -0,0 +1,94 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import edu.berkeley.cs.nlp.ocular.image.BitPackedLine;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
+
+/**
+ * Finds where a line's text sits vertically, so that the emission cache only
+ * has to try the few vertical offsets around it.
+ *
+ * The templates are summarized by their average glyph column (the black
+ * probability of every row, averaged over all columns of all widths of all
+ * non-space templates, at the first exposure), and the line by its per-row
+ * black and white counts over the columns that have ink. The line's offset is
+ * the one under which the shifted average column best explains those counts,
+ * which amounts to aligning the line's baseline and x-height band with the
+ * font's. The window is that offset plus or minus radius. When no offset
+ * outside the window comes within CONFIDENCE_LOG_PROB of the best one, the
+ * line gets the window; otherwise, as for lines with no ink, the full range.
+ */
+public class LineOffsetEstimator {
+
+	public static final double CONFIDENCE_LOG_PROB = 10.0;
+
+	private final int lineHeight;
+	private final int radius;
+	private final float[] logBlackProfile;
+	private final float[] logWhiteProfile;
+
+	public LineOffsetEstimator(CharacterTemplateVarLineHeight[] templates, int spaceIndex, int lineHeight, int radius) {
+		if (radius < 0) throw new RuntimeException("Offset window radius must not be negative, got " + radius);
+		this.lineHeight = lineHeight;
+		this.radius = Math.min(radius, CharacterTemplateVarLineHeight.MAX_OFFSET);
+		this.logBlackProfile = new float[lineHeight];
+		this.logWhiteProfile = new float[lineHeight];
+		double[] blackProbSums = new double[lineHeight];
+		int numColumns = 0;
+		for (int c=0; c<templates.length; ++c) {
+			if (c == spaceIndex) continue;
+			for (int tw : templates[c].allowedWidths()) {
+				float[][] blackProbs = templates[c].blackProbs(0, 0, tw);
+				for (int k=0; k<tw; ++k) {
+					for (int j=0; j<lineHeight; ++j) blackProbSums[j] += blackProbs[k][j];
+				}
+				numColumns += tw;
+			}
+		}
+		for (int j=0; j<lineHeight; ++j) {
+			double blackProb = (numColumns > 0 ? blackProbSums[j] / numColumns : 0.5);
+			logBlackProfile[j] = (float) Math.log(blackProb);
+			logWhiteProfile[j] = (float) Math.log(1.0 - blackProb);
+		}
+	}
+
+	/**
+	 * The vertical offsets to try for the line, as {minOffset, maxOffset}.
+	 */
+	public int[] offsetRange(BitPackedLine line) {
+		int[] inkedBlackCounts = new int[lineHeight];
+		int[] inkedWhiteCounts = new int[lineHeight];
+		boolean anyInk = false;
+		for (int t=0; t<line.sequenceLength(); ++t) {
+			// a column with a single black pixel is as likely to be noise as ink
+			if (line.numBlack(t) <= 1) continue;
+			anyInk = true;
+			for (int j=0; j<lineHeight; ++j) {
+				if (line.isBlack(t, j)) inkedBlackCounts[j]++;
+				else if (line.isWhite(t, j)) inkedWhiteCounts[j]++;
+			}
+		}
+		int[] fullRange = new int[] {-CharacterTemplateVarLineHeight.MAX_OFFSET, CharacterTemplateVarLineHeight.MAX_OFFSET};
+		if (!anyInk) return fullRange;
+
+		// offset o puts template row j+o over line row j
+		double[] logLikelihoods = new double[2*CharacterTemplateVarLineHeight.MAX_OFFSET+1];
+		int bestOffset = -CharacterTemplateVarLineHeight.MAX_OFFSET;
+		for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
+			double logLikelihood = 0.0;
+			for (int j=0; j<lineHeight; ++j) {
+				int row = Math.min(lineHeight-1, Math.max(0, j+offset));
+				logLikelihood += inkedBlackCounts[j] * logBlackProfile[row] + inkedWhiteCounts[j] * logWhiteProfile[row];
+			}
+			logLikelihoods[offset+CharacterTemplateVarLineHeight.MAX_OFFSET] = logLikelihood;
+			if (logLikelihood > logLikelihoods[bestOffset+CharacterTemplateVarLineHeight.MAX_OFFSET]) bestOffset = offset;
+		}
+		int minOffset = Math.max(-CharacterTemplateVarLineHeight.MAX_OFFSET, Math.min(CharacterTemplateVarLineHeight.MAX_OFFSET-2*radius, bestOffset-radius));
+		int maxOffset = minOffset + 2*radius;
+		for (int offset=-CharacterTemplateVarLineHeight.MAX_OFFSET; offset<=CharacterTemplateVarLineHeight.MAX_OFFSET; ++offset) {
+			if (offset >= minOffset && offset <= maxOffset) continue;
+			if (logLikelihoods[offset+CharacterTemplateVarLineHeight.MAX_OFFSET] > logLikelihoods[bestOffset+CharacterTemplateVarLineHeight.MAX_OFFSET] - CONFIDENCE_LOG_PROB) return fullRange;
+		}
+		return new int[] {minOffset, maxOffset};
+	}
+
+}
@@ -0,0 +1,183 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Emission cache spilled to a memory-mapped temporary file, indexed
+ * t*rowLength+i within each line. Rows are written into the mapping as they
+ * are computed and the operating system pages them in and out on demand
+ * during the forward and backward passes, so neither the Java heap nor
+ * physical memory has to hold the whole cache, however wide the lines are.
+ *
+ * A single mapping cannot exceed 2GB, so the file is mapped in chunks of
+ * CHUNK_BYTES, each holding whole rows. The file goes to java.io.tmpdir and
+ * is deleted as soon as it is mapped (where the platform allows it,
+ * otherwise on exit). Its disk space only comes back when the mappings are
+ * collected, which with so little of this storage on the heap can take
+ * long, so a storage made by the factory hands its file back to the factory
+ * on release(), and the next batch's storage maps over it again, after
+ * growing it if it is too small.
+ */
+public class MappedEmissionCacheStorage implements EmissionCacheStorage {
+
+	/**
+	 * Number of columns of a line the caching emission models score at a
+	 * time with this storage, so that their scratch scores stay small too.
+	 */
+	public static final int COLUMN_WINDOW = 512;
+
+	private static final long CHUNK_BYTES = 1L << 30;
+
+	/**
+	 * A mapped temporary file of numBytes bytes, as chunks of CHUNK_BYTES
+	 * (the last one possibly shorter).
+	 */
+	private static class MappedFile {
+		public final long numBytes;
+		public final ByteBuffer[] chunks;
+		public MappedFile(long numBytes) {
+			this.numBytes = numBytes;
+			this.chunks = new ByteBuffer[(int) ((numBytes + CHUNK_BYTES - 1) / CHUNK_BYTES)];
+			File file = null;
+			try {
+				file = File.createTempFile("ocular-emission-cache", ".bin");
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(numBytes);
+					FileChannel channel = raf.getChannel();
+					for (int k=0; k<chunks.length; ++k) {
+						chunks[k] = channel.map(FileChannel.MapMode.READ_WRITE, k * CHUNK_BYTES, Math.min(CHUNK_BYTES, numBytes - k * CHUNK_BYTES)).order(ByteOrder.nativeOrder());
+					}
+				} finally {
+					raf.close(); // the mappings stay valid
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Could not map an emission cache of " + numBytes + " bytes to " + file, e);
+			} finally {
+				if (file != null && !file.delete()) file.deleteOnExit();
+			}
+		}
+	}
+
+	private final MappedEmissionCacheStorageFactory factory;
+	private MappedFile mappedFile;
+	private final FloatBuffer[] chunks;
+	private final int[] sequenceLengths;
+	private final long[] lineStartRows;
+	private final int rowLength;
+	private final int rowsPerChunk;
+
+	public MappedEmissionCacheStorage(int[] sequenceLengths, int rowLength) {
+		this(sequenceLengths, rowLength, null);
+	}
+
+	private MappedEmissionCacheStorage(int[] sequenceLengths, int rowLength, MappedEmissionCacheStorageFactory factory) {
+		this.factory = factory;
+		this.sequenceLengths = sequenceLengths;
+		this.rowLength = rowLength;
+		this.lineStartRows = new long[sequenceLengths.length];
+		long numRows = 0L;
+		for (int d=0; d<sequenceLengths.length; ++d) {
+			lineStartRows[d] = numRows;
+			numRows += sequenceLengths[d];
+		}
+		if (4L * rowLength > CHUNK_BYTES) throw new RuntimeException("An emission cache row of " + rowLength + " floats does not fit in a " + CHUNK_BYTES + " byte mapping");
+		this.rowsPerChunk = (int) (CHUNK_BYTES / (4L * Math.max(1, rowLength)));
+		this.chunks = new FloatBuffer[(int) ((numRows + rowsPerChunk - 1) / rowsPerChunk)];
+		// chunk k of the rows lies at the start of chunk k of the file
+		long numBytes = (chunks.length == 0 ? 0L : (chunks.length-1) * CHUNK_BYTES + 4L * (numRows - (long) (chunks.length-1) * rowsPerChunk) * rowLength);
+		this.mappedFile = (factory != null ? factory.takeMappedFile(numBytes) : new MappedFile(Math.max(1L, numBytes)));
+		for (int k=0; k<chunks.length; ++k) {
+			chunks[k] = mappedFile.chunks[k].duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+	}
+
+	public int numSequences() {
+		return sequenceLengths.length;
+	}
+
+	public int sequenceLength(int d) {
+		return sequenceLengths[d];
+	}
+
+	public int rowLength() {
+		return rowLength;
+	}
+
+	public float get(int d, int t, int i) {
+		long row = lineStartRows[d] + t;
+		return chunks[(int) (row / rowsPerChunk)].get((int) (row % rowsPerChunk)*rowLength + i);
+	}
+
+	public void setRow(int d, int t, float[] row) {
+		long r = lineStartRows[d] + t;
+		FloatBuffer buffer = chunks[(int) (r / rowsPerChunk)].duplicate();
+		buffer.position((int) (r % rowsPerChunk)*rowLength);
+		buffer.put(row, 0, rowLength);
+	}
+
+	/**
+	 * Hands the mapped file back to the factory that made this storage, for
+	 * the next storage it makes. Nothing may read or write this storage
+	 * afterwards.
+	 */
+	public void release() {
+		if (factory != null && mappedFile != null) factory.returnMappedFile(mappedFile);
+		mappedFile = null;
+	}
+
+	public long numBytes() {
+		long numBytes = 0L;
+		for (int d=0; d<sequenceLengths.length; ++d) numBytes += numBytes(sequenceLengths[d], rowLength);
+		return numBytes;
+	}
+
+	static long numBytes(int sequenceLength, int rowLength) {
+		return 4L * sequenceLength * rowLength;
+	}
+
+	/**
+	 * Makes storages that reuse the mapped files of the storages released
+	 * before them. There are as many files as storages alive at once (two,
+	 * with the pipelined E-step); a file that is too small for the next
+	 * storage is dropped for one twice its size, or as big as needed.
+	 */
+	public static class MappedEmissionCacheStorageFactory implements EmissionCacheStorage.EmissionCacheStorageFactory {
+		private final List<MappedFile> freeMappedFiles = new ArrayList<MappedFile>();
+		public EmissionCacheStorage make(int[] sequenceLengths, int rowLength) {
+			return new MappedEmissionCacheStorage(sequenceLengths, rowLength, this);
+		}
+		private synchronized MappedFile takeMappedFile(long numBytes) {
+			MappedFile largest = null;
+			for (MappedFile mappedFile : freeMappedFiles) {
+				if (mappedFile.numBytes >= numBytes) {
+					freeMappedFiles.remove(mappedFile);
+					return mappedFile;
+				}
+				if (largest == null || mappedFile.numBytes > largest.numBytes) largest = mappedFile;
+			}
+			long grownBytes = numBytes;
+			if (largest != null) {
+				// dropped, its disk space comes back once the mapping is collected
+				freeMappedFiles.remove(largest);
+				grownBytes = Math.max(numBytes, 2 * largest.numBytes);
+			}
+			return new MappedFile(Math.max(1L, grownBytes));
+		}
+		private synchronized void returnMappedFile(MappedFile mappedFile) {
+			freeMappedFiles.add(mappedFile);
+		}
+		public long numBytes(int sequenceLength, int rowLength) {
+			return MappedEmissionCacheStorage.numBytes(sequenceLength, rowLength);
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+/**
+ * Emission cache kept at reduced precision, one flat array per line, indexed
+ * t*rowLength+i. Every row is stored relative to its own maximum, which is
+ * kept at full precision, and only a fixed window below the maximum is
+ * resolved, so how accurately the entries that matter to the beam (those near
+ * the best score at a column) are stored does not depend on how bad the
+ * worst entry of the row is.
+ *
+ * HALF stores (value - max) as an IEEE half-precision float, with a relative
+ * error of at most 2^-11; differences beyond the largest half are stored as
+ * the largest half. INT16 and INT8 spread INT16_WINDOW and INT8_WINDOW below
+ * the max over 65534 and 254 even steps, and store anything further below as
+ * the bottom of the window. The top code stands for negative infinity.
+ */
+public class QuantizedEmissionCacheStorage implements EmissionCacheStorage {
+
+	public static enum Precision { HALF, INT16, INT8 };
+
+	private static final int INT16_LEVELS = 0xFFFF;
+	private static final int INT8_LEVELS = 0xFF;
+	private static final float INT16_WINDOW = 1024.0f;
+	private static final float INT8_WINDOW = 64.0f;
+	private static final float INT16_STEP = INT16_WINDOW / (INT16_LEVELS - 1);
+	private static final float INT8_STEP = INT8_WINDOW / (INT8_LEVELS - 1);
+	private static final float HALF_MAX = 65504.0f;
+
+	private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+	static {
+		for (int h=0; h<HALF_TO_FLOAT.length; ++h) HALF_TO_FLOAT[h] = halfToFloat((short) h);
+	}
+
+	private final Precision precision;
+	private final int[] sequenceLengths;
+	private final int rowLength;
+	private final short[][] shortData;
+	private final byte[][] byteData;
+	private final float[][] rowMaxes;
+
+	public QuantizedEmissionCacheStorage(int[] sequenceLengths, int rowLength, Precision precision) {
+		this.precision = precision;
+		this.sequenceLengths = sequenceLengths;
+		this.rowLength = rowLength;
+		this.rowMaxes = new float[sequenceLengths.length][];
+		if (precision == Precision.INT8) {
+			this.shortData = null;
+			this.byteData = new byte[sequenceLengths.length][];
+		} else {
+			this.shortData = new short[sequenceLengths.length][];
+			this.byteData = null;
+		}
+		for (int d=0; d<sequenceLengths.length; ++d) {
+			rowMaxes[d] = new float[sequenceLengths[d]];
+			if (precision == Precision.INT8) byteData[d] = new byte[sequenceLengths[d]*rowLength];
+			else shortData[d] = new short[sequenceLengths[d]*rowLength];
+		}
+	}
+
+	public int numSequences() {
+		return sequenceLengths.length;
+	}
+
+	public int sequenceLength(int d) {
+		return sequenceLengths[d];
+	}
+
+	public int rowLength() {
+		return rowLength;
+	}
+
+	public float get(int d, int t, int i) {
+		switch (precision) {
+			case HALF: {
+				return rowMaxes[d][t] + HALF_TO_FLOAT[shortData[d][t*rowLength + i] & 0xFFFF];
+			}
+			case INT16: {
+				int code = shortData[d][t*rowLength + i] & 0xFFFF;
+				return (code == INT16_LEVELS) ? Float.NEGATIVE_INFINITY : rowMaxes[d][t] - code*INT16_STEP;
+			}
+			case INT8: {
+				int code = byteData[d][t*rowLength + i] & 0xFF;
+				return (code == INT8_LEVELS) ? Float.NEGATIVE_INFINITY : rowMaxes[d][t] - code*INT8_STEP;
+			}
+		}
+		throw new RuntimeException("precision=" + precision + " not supported");
+	}
+
+	public void setRow(int d, int t, float[] row) {
+		float max = Float.NEGATIVE_INFINITY;
+		for (int i=0; i<rowLength; ++i) {
+			max = Math.max(max, row[i]);
+		}
+		rowMaxes[d][t] = max;
+		int start = t*rowLength;
+		switch (precision) {
+			case HALF: {
+				for (int i=0; i<rowLength; ++i) {
+					shortData[d][start + i] = (row[i] == Float.NEGATIVE_INFINITY || max == Float.NEGATIVE_INFINITY) ? floatToHalf(Float.NEGATIVE_INFINITY) : floatToHalf(Math.max(row[i] - max, -HALF_MAX));
+				}
+				break;
+			}
+			case INT16:
+			case INT8: {
+				int levels = (precision == Precision.INT16) ? INT16_LEVELS : INT8_LEVELS;
+				float step = (precision == Precision.INT16) ? INT16_STEP : INT8_STEP;
+				for (int i=0; i<rowLength; ++i) {
+					int code = (row[i] == Float.NEGATIVE_INFINITY || max == Float.NEGATIVE_INFINITY) ? levels : Math.min(levels - 1, Math.round((max - row[i]) / step));
+					if (precision == Precision.INT16) shortData[d][start + i] = (short) code;
+					else byteData[d][start + i] = (byte) code;
+				}
+				break;
+			}
+		}
+	}
+
+	public long numBytes() {
+		long numBytes = 0L;
+		for (int d=0; d<sequenceLengths.length; ++d) numBytes += numBytes(sequenceLengths[d], rowLength, precision);
+		return numBytes;
+	}
+
+	static long numBytes(int sequenceLength, int rowLength, Precision precision) {
+		return 4L * sequenceLength + (precision == Precision.INT8 ? 1L : 2L) * sequenceLength * rowLength;
+	}
+
+	static short floatToHalf(float f) {
+		int bits = Float.floatToIntBits(f);
+		int sign = (bits >>> 16) & 0x8000;
+		int val = (bits & 0x7fffffff) + 0x1000; // round to nearest
+		if (val >= 0x47800000) {
+			if ((bits & 0x7fffffff) >= 0x47800000) {
+				if (val < 0x7f800000) return (short) (sign | 0x7c00); // too large: infinity
+				return (short) (sign | 0x7c00 | ((bits & 0x007fffff) >>> 13)); // infinity or NaN
+			}
+			return (short) (sign | 0x7bff); // rounds up past the largest half: clamp
+		}
+		if (val >= 0x38800000) return (short) (sign | ((val - 0x38000000) >>> 13)); // normal
+		if (val < 0x33000000) return (short) sign; // too small: zero
+		val = (bits & 0x7fffffff) >>> 23; // subnormal
+		return (short) (sign | ((((bits & 0x7fffff) | 0x800000) + (0x800000 >>> (val - 102))) >>> (126 - val)));
+	}
+
+	static float halfToFloat(short half) {
+		int h = half & 0xFFFF;
+		int mant = h & 0x03ff;
+		int exp = h & 0x7c00;
+		if (exp == 0x7c00) {
+			exp = 0x3fc00; // infinity or NaN
+		} else if (exp != 0) {
+			exp += 0x1c000; // normal
+		} else if (mant != 0) {
+			exp = 0x1c400; // subnormal: renormalize
+			do {
+				mant <<= 1;
+				exp -= 0x400;
+			} while ((mant & 0x400) == 0);
+			mant &= 0x3ff;
+		}
+		return Float.intBitsToFloat(((h & 0x8000) << 16) | ((exp | mant) << 13));
+	}
+
+	public static class QuantizedEmissionCacheStorageFactory implements EmissionCacheStorage.EmissionCacheStorageFactory {
+		Precision precision;
+		public QuantizedEmissionCacheStorageFactory(Precision precision) {
+			this.precision = precision;
+		}
+		public EmissionCacheStorage make(int[] sequenceLengths, int rowLength) {
+			return new QuantizedEmissionCacheStorage(sequenceLengths, rowLength, precision);
+		}
+		public long numBytes(int sequenceLength, int rowLength) {
+			return QuantizedEmissionCacheStorage.numBytes(sequenceLength, rowLength, precision);
+		}
+	}
+
+}
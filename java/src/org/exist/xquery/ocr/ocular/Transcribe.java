@@ -37,6 +37,7 @@ import java.util.Set;
 import static edu.berkeley.cs.nlp.ocular.eval.BasicSingleDocumentEvaluatorAndOutputPrinterResource.diplomaticTranscriptionOutputFile;
 import static edu.berkeley.cs.nlp.ocular.eval.BasicSingleDocumentEvaluatorAndOutputPrinterResource.makeOutputFilenameBase;
 import static edu.berkeley.cs.nlp.ocular.main.FonttrainTranscribeSharedResource.EmissionCacheInnerLoopType;
+import static edu.berkeley.cs.nlp.ocular.main.FonttrainTranscribeSharedResource.EmissionCacheStorageType;
 
 import edu.berkeley.cs.nlp.ocular.data.Document;
 import edu.berkeley.cs.nlp.ocular.data.LazyRawImageLoaderResource;
@@ -52,6 +53,7 @@ import edu.berkeley.cs.nlp.ocular.main.FonttrainTranscribeSharedResource;
 import edu.berkeley.cs.nlp.ocular.main.NoDocumentsFoundException;
 import edu.berkeley.cs.nlp.ocular.main.NoDocumentsToProcessException;
 import edu.berkeley.cs.nlp.ocular.model.DecoderEMVarLineHeight;
+import edu.berkeley.cs.nlp.ocular.model.DecoderEMVarLineHeight.DecodeSettings;
 import edu.berkeley.cs.nlp.ocular.model.CharacterTemplateVarLineHeight;
 import edu.berkeley.cs.nlp.ocular.train.FontTrainerResource;
 import edu.berkeley.cs.nlp.ocular.util.FileUtil;
@@ -230,16 +232,40 @@ public class Transcribe extends BasicFunction {
     //@Option(gloss = "Size of beam for Viterbi inference. (Usually in range 10-50. Increasing beam size can improve accuracy, but will reduce speed.)")
     private int beamSize = 10;
 
-    //@Option(gloss = "Engine to use for inner loop of emission cache computation. DEFAULT: Uses Java on CPU, which works on any machine but is the slowest method. OPENCL: Faster engine that uses either the CPU or integrated GPU (depending on processor) and requires OpenCL installation. CUDA: Fastest method, but requires a discrete NVIDIA GPU and CUDA installation.")
+    //@Option(gloss = "Engine to use for inner loop of emission cache computation. DEFAULT: Uses Java on CPU, which works on any machine but is the slowest method. VECTOR: Java on CPU, laid out so the JIT can use SIMD instructions; works on any machine and is usually faster than DEFAULT. SPARSE: Java on CPU, only visits the non-white pixels of each line; fastest CPU option on mostly white pages. SHARED_OFFSET: like SPARSE, but scores the vertical offsets of each template together from one shared copy of it. BITPACKED: Java on CPU, scores 8-bit quantized templates against bit-packed lines with popcounts (approximate). FFT: Java on CPU, scores wide templates by FFT cross-correlation, whose cost does not grow with the template width or the amount of ink; for tall lines and wide fonts. OPENCL: Faster engine that uses either the CPU or integrated GPU (depending on processor) and requires OpenCL installation. CUDA: Fastest method, but requires a discrete NVIDIA GPU and CUDA installation. AUTO: times DEFAULT, VECTOR, SPARSE, SHARED_OFFSET, FFT and OPENCL (where available) at several thread counts on a short synthetic batch the first time it is needed, and uses the fastest; numEmissionCacheThreads is then ignored.")
     private EmissionCacheInnerLoopType emissionEngine = EmissionCacheInnerLoopType.DEFAULT;
 
+    //@Option(gloss = "Where to keep the emission log-probability cache of a decode batch. HEAP: one flat float array per line on the Java heap. DIRECT: off-heap direct buffers, which keeps the cache out of -Xmx and out of the garbage collector's way (native memory is bounded by -XX:MaxDirectMemorySize). HALF, INT16, INT8: reduced-precision copies relative to each column's best score, 2x, 2x and 4x smaller than HEAP. Scores near the best are kept to within about 0.05% (HALF), 0.008 (INT16) and 0.13 (INT8); scores more than 65504, 1024 and 64 below it are raised to that. MAPPED: a memory-mapped temporary file in java.io.tmpdir that the operating system pages in on demand, with long lines scored a window of columns at a time, for pages too wide to cache in memory.")
+    private EmissionCacheStorageType emissionCacheStorage = EmissionCacheStorageType.HEAP;
+
+    //@Option(gloss = "Score (line, column, character) emission blocks only when the beam first asks for them, instead of filling the whole emission cache up front. The coarse backward pass then uses a cheap upper bound on the emission scores. Uses much less memory and skips most of the emission work; emissionEngine and emissionCacheStorage are ignored.")
+    private boolean lazyEmissionCache = false;
+
+    //@Option(gloss = "Keep up to this many gigabytes of full-precision emission scores across decode batches and EM iterations, and only recompute the characters whose templates changed since a line was last scored. Mostly useful for font training. 0 turns it off.")
+    private double incrementalEmissionCacheGb = 0.0;
+
+    //@Option(gloss = "How far a template parameter (a template weight or a log width probability) may move before the character is rescored when incrementalEmissionCacheGb is on. 0 rescores on any change.")
+    private double incrementalEmissionCacheTolerance = 0.0;
+
+    //@Option(gloss = "Skip the emission scores of a character at a position and template width when a cheap bound from the ink counts of the columns under it falls more than this many nats below the whitespace score of the same columns; the character is left at -infinity there. Only for the caching emission models; the DEFAULT, SPARSE and SHARED_OFFSET engines skip the pruned work, the others still score it. 0 turns it off.")
+    private double emissionPruningMargin = 0.0;
+
+    //@Option(gloss = "Score each line only under this many of the exposures, those that best explain its ink density, estimated in a cheap pass over the line, instead of under all 3. 1 or 2 cut the emission work accordingly on scans of uniform quality; the DEFAULT, SPARSE and SHARED_OFFSET engines skip the other exposures, the others still score them. Only for the caching emission models. 0 scores all exposures.")
+    private int lineExposureCandidates = 0;
+
+    //@Option(gloss = "Score each line only under the vertical offsets within this many pixels of where its text sits, estimated from the line's per-row ink counts, instead of under all 11; lines where the estimate is ambiguous keep all of them. With markovVerticalOffset this also shrinks the emission cache. The DEFAULT and SPARSE engines skip the other offsets, the others still score them. Only for the caching emission models. -1 tries all offsets.")
+    private int lineOffsetRadius = -1;
+
+    //@Option(gloss = "Record, while building the emission cache, the exposure, vertical offset and padding width behind every cached score, one byte per score, so that training looks up the alignment of each decoded glyph instead of searching the templates for it again. Adds a quarter of the HEAP cache's size (as much as an INT8 cache takes) to the emission cache's memory. Only for the caching emission models.")
+    private boolean recordEmissionAlignments = false;
+
     //@Option(gloss = "GPU ID when using CUDA emission engine.")
     private int cudaDeviceID = 0;
 
     //@Option(gloss = "Number of threads to use for LFBGS during m-step.")
     private int numMstepThreads = 8;
 
-    //@Option(gloss = "Number of threads to use during emission cache compuation. (Only has effect when emissionEngine is set to DEFAULT.)")
+    //@Option(gloss = "Number of threads to use during emission cache compuation. (Only has effect when emissionEngine is set to DEFAULT, VECTOR, SPARSE, SHARED_OFFSET, BITPACKED or FFT.)")
     public int numEmissionCacheThreads = 8;
 
     //@Option(gloss = "Number of threads to use for decoding. (More thread may increase speed, but may cause a loss of continuity across lines.)")
@@ -248,6 +274,30 @@ public class Transcribe extends BasicFunction {
     //@Option(gloss = "Number of lines that compose a single decode batch. (Smaller batch size can reduce memory consumption.)")
     private int decodeBatchSize = 32;
 
+    //@Option(gloss = "Memory budget in gigabytes for the emission cache of a decode batch. Lines are packed into variable-size batches by their predicted emission cache size, and decodeBatchSize is ignored. (0.0 means batches of decodeBatchSize lines.)")
+    private double decodeMemoryBudget = 0.0;
+
+    //@Option(gloss = "Number of successor rows (the language and glyph substitution model weighted next states) kept across lines, batches and documents while decoding. A transition state has up to two rows, one for the rest of its line and one for the start of the next; past the limit, the least recently used rows are dropped and recomputed when needed. The states themselves and their ids are not bounded by it and are kept for as long as the models stay the same. Raise it for high-order language models if memory allows. 0 keeps them all.")
+    private int successorCacheSize = 100000;
+
+    //@Option(gloss = "Keep only this many of the most probable preceding characters per character in the coarse backward pass that ranks the decoder's beam candidates, and bound the rest by the largest dropped transition, which makes the pass O(numChars * k) per column instead of O(numChars^2). Worth it with large character sets; the beam ranking gets coarser. 0 keeps all transitions.")
+    private int coarseBackwardTopK = 0;
+
+    //@Option(gloss = "With numDecodeThreads > 1, decode every thread's block of lines from the generic line start states at once, then re-decode the lines after each block boundary from where the previous block actually ends until they come out as before, so that the output is the single-threaded Viterbi decode. Without it, each block starts afresh and the decode differs slightly at the boundaries.")
+    private boolean speculativeDecode = false;
+
+    //@Option(gloss = "Build the next batch's emission model on a separate thread while the current batch is decoded and counted, so that the two overlap. At most two batches' emission models are in memory at once, and with decodeMemoryBudget each batch is packed within half of the budget.")
+    private boolean pipelineEStep = false;
+
+    //@Option(gloss = "Relative log-score threshold for adaptive beam pruning: a hypothesis whose score plus backward bound falls more than this below the best one at its column is kept but not extended, except for the best minBeamSize. Saves work on easy columns. (0.0 extends every hypothesis on the beam.)")
+    private double beamThreshold = 0.0;
+
+    //@Option(gloss = "Fewest hypotheses extended per column under beamThreshold.")
+    private int minBeamSize = 1;
+
+    //@Option(gloss = "Largest beam a line is retried with when no hypothesis reaches its end: the line is decoded again with twice the beam size and twice the beamThreshold until one does, or the beam would exceed this. (0 means 4 * beamSize.)")
+    private int maxBeamSize = 0;
+
     //@Option(gloss = "Min horizontal padding between characters in pixels. (Best left at default value: 1.)")
     private int paddingMinWidth = 1;
 
@@ -349,19 +399,85 @@ public class Transcribe extends BasicFunction {
 	    } else if ("decodeBatchSize".equals(property)) {
                 String value = parameters.getProperty(property);
                 decodeBatchSize = Integer.valueOf(value);
+	    } else if ("decodeMemoryBudget".equals(property)) {
+                String value = parameters.getProperty(property);
+                decodeMemoryBudget = Double.valueOf(value);
+	    } else if ("successorCacheSize".equals(property)) {
+                String value = parameters.getProperty(property);
+                successorCacheSize = Integer.valueOf(value);
+	    } else if ("coarseBackwardTopK".equals(property)) {
+                String value = parameters.getProperty(property);
+                coarseBackwardTopK = Integer.valueOf(value);
+	    } else if ("speculativeDecode".equals(property)) {
+                String value = parameters.getProperty(property);
+                speculativeDecode = Boolean.valueOf(value);
+	    } else if ("pipelineEStep".equals(property)) {
+                String value = parameters.getProperty(property);
+                pipelineEStep = Boolean.valueOf(value);
+	    } else if ("beamThreshold".equals(property)) {
+                String value = parameters.getProperty(property);
+                beamThreshold = Double.valueOf(value);
+	    } else if ("minBeamSize".equals(property)) {
+                String value = parameters.getProperty(property);
+                minBeamSize = Integer.valueOf(value);
+	    } else if ("maxBeamSize".equals(property)) {
+                String value = parameters.getProperty(property);
+                maxBeamSize = Integer.valueOf(value);
             } else if ("emissionEngine".equals(property)) {
                 String value = parameters.getProperty(property);
                 switch (value) {
 		case "DEFAULT": 
 		    emissionEngine = EmissionCacheInnerLoopType.DEFAULT;
 		    break;
+		case "VECTOR": 
+		    emissionEngine = EmissionCacheInnerLoopType.VECTOR;
+		    break;
+		case "SPARSE": 
+		    emissionEngine = EmissionCacheInnerLoopType.SPARSE;
+		    break;
+		case "SHARED_OFFSET": 
+		    emissionEngine = EmissionCacheInnerLoopType.SHARED_OFFSET;
+		    break;
+		case "BITPACKED": 
+		    emissionEngine = EmissionCacheInnerLoopType.BITPACKED;
+		    break;
+		case "FFT": 
+		    emissionEngine = EmissionCacheInnerLoopType.FFT;
+		    break;
 		case "OPENCL": 
 		    emissionEngine = EmissionCacheInnerLoopType.OPENCL;
 		    break;
 		case "CUDA": 
 		    emissionEngine = EmissionCacheInnerLoopType.CUDA;
 		    break;
+		case "AUTO": 
+		    emissionEngine = EmissionCacheInnerLoopType.AUTO;
+		    break;
 		}
+	    } else if ("emissionCacheStorage".equals(property)) {
+                String value = parameters.getProperty(property);
+                emissionCacheStorage = EmissionCacheStorageType.valueOf(value);
+	    } else if ("lazyEmissionCache".equals(property)) {
+                String value = parameters.getProperty(property);
+                lazyEmissionCache = Boolean.valueOf(value);
+	    } else if ("incrementalEmissionCacheGb".equals(property)) {
+                String value = parameters.getProperty(property);
+                incrementalEmissionCacheGb = Double.valueOf(value);
+	    } else if ("incrementalEmissionCacheTolerance".equals(property)) {
+                String value = parameters.getProperty(property);
+                incrementalEmissionCacheTolerance = Double.valueOf(value);
+	    } else if ("emissionPruningMargin".equals(property)) {
+                String value = parameters.getProperty(property);
+                emissionPruningMargin = Double.valueOf(value);
+	    } else if ("lineExposureCandidates".equals(property)) {
+                String value = parameters.getProperty(property);
+                lineExposureCandidates = Integer.valueOf(value);
+	    } else if ("lineOffsetRadius".equals(property)) {
+                String value = parameters.getProperty(property);
+                lineOffsetRadius = Integer.valueOf(value);
+	    } else if ("recordEmissionAlignments".equals(property)) {
+                String value = parameters.getProperty(property);
+                recordEmissionAlignments = Boolean.valueOf(value);
 	    } else if ("cudaDeviceID".equals(property)) {
                 String value = parameters.getProperty(property);
                 cudaDeviceID = Integer.valueOf(value);
@@ -380,7 +496,16 @@ public class Transcribe extends BasicFunction {
 	Indexer<String> charIndexer = initialLM.getCharacterIndexer();
 	Indexer<String> langIndexer = initialLM.getLanguageIndexer();
 
-	DecoderEMVarLineHeight decoderEM = FonttrainTranscribeSharedResource.makeDecoder(charIndexer, emissionEngine, lineHeight, allowGlyphSubstitution, gsmNoCharSubPrior, gsmElideAnything, markovVerticalOffset, beamSize, numDecodeThreads, numMstepThreads, decodeBatchSize);
+	DecodeSettings decodeSettings = new DecodeSettings();
+	decodeSettings.decodeMemoryBudget = decodeMemoryBudget;
+	decodeSettings.successorCacheSize = successorCacheSize;
+	decodeSettings.coarseBackwardTopK = coarseBackwardTopK;
+	decodeSettings.speculativeDecode = speculativeDecode;
+	decodeSettings.pipelineEStep = pipelineEStep;
+	decodeSettings.beamThreshold = beamThreshold;
+	decodeSettings.minBeamSize = minBeamSize;
+	decodeSettings.maxBeamSize = maxBeamSize;
+	DecoderEMVarLineHeight decoderEM = FonttrainTranscribeSharedResource.makeDecoder(charIndexer, emissionEngine, emissionCacheStorage, lazyEmissionCache, incrementalEmissionCacheGb, incrementalEmissionCacheTolerance, emissionPruningMargin, lineExposureCandidates, lineOffsetRadius, recordEmissionAlignments, lineHeight, allowGlyphSubstitution, gsmNoCharSubPrior, gsmElideAnything, markovVerticalOffset, beamSize, numDecodeThreads, numMstepThreads, decodeBatchSize, decodeSettings);
 
 	boolean evalCharIncludesDiacritic = true;
 	SingleDocumentEvaluatorAndOutputPrinter documentOutputPrinterAndEvaluator = new BasicSingleDocumentEvaluatorAndOutputPrinterResource(charIndexer, langIndexer, allowGlyphSubstitution, evalCharIncludesDiacritic);